@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.util.Util;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the groups from the group attribute of the user entry, e.g. memberOf. No further search is required.
+ */
+class AttributeGroupResolutionStrategy implements GroupResolutionStrategy {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AttributeGroupResolutionStrategy.class);
+
+  @Override
+  public Set<String> resolve(LdapConnection connection, LdapConfig config, User user) {
+    Set<String> groups = new HashSet<>();
+
+    String groupAttribute = config.getAttributeNameGroup();
+
+    if (Util.isNotEmpty(groupAttribute)) {
+      LOG.trace("try to get groups from group attribute {}", groupAttribute);
+      try {
+        Attribute groupsAttribute = RangedAttributeReader.find(user.getAttributes(), groupAttribute);
+        if (groupsAttribute != null) {
+          // large attributes are returned in ranges, the values are added range by range
+          RangedAttributeReader.forEachValue(connection, user.getDn(), user.getAttributes(), groupAttribute, group -> {
+            LOG.debug("append group {} to user result", group);
+            groups.add(group);
+          });
+        } else {
+          LOG.debug("user has no group attributes assigned");
+        }
+      } catch (NamingException ex) {
+        LOG.warn("could not read group attribute", ex);
+      }
+    } else {
+      LOG.debug("group attribute is empty");
+    }
+    return groups;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import com.google.common.base.Strings;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Control which is used to subscribe to changes of the directory, in order to invalidate cached entries.
+ */
+public enum ChangeNotification {
+
+  /**
+   * cached entries expire only after their time to live
+   */
+  NONE(null, null),
+
+  /**
+   * persistent search control (draft-ietf-ldapext-psearch), supported by OpenDJ, 389 Directory Server and others.
+   * The value requests all change types (add, delete, modify and modify dn) and only changes after the search was
+   * started, without entry change notification controls.
+   */
+  PERSISTENT_SEARCH("2.16.840.1.113730.3.4.3", new byte[]{
+    0x30, 0x09, 0x02, 0x01, 0x0F, 0x01, 0x01, (byte) 0xFF, 0x01, 0x01, 0x00
+  }),
+
+  /**
+   * change notification control of active directory, deleted entries are not reported. Active directory accepts the
+   * control only for searches with the filter {@code (objectClass=*)} at the root of a naming context.
+   */
+  AD_NOTIFICATION("1.2.840.113556.1.4.528", null);
+
+  private final String oid;
+  private final byte[] value;
+
+  ChangeNotification(String oid, byte[] value) {
+    this.oid = oid;
+    this.value = value;
+  }
+
+  /**
+   * Returns the reason, why the notification can not be used with the configuration, or {@code null} if it can be
+   * used.
+   */
+  String checkConfiguration(LdapConfig config) {
+    if (this == AD_NOTIFICATION && !isDomainRoot(config.getBaseDn())) {
+      return "change notifications of active directory require the root of the domain as base dn (e.g. dc=example,dc=com), but the base dn is "
+        + config.getBaseDn() + "; change the base dn or disable change notifications";
+    }
+    return null;
+  }
+
+  private static boolean isDomainRoot(String baseDn) {
+    if (Strings.isNullOrEmpty(baseDn)) {
+      return false;
+    }
+    try {
+      for (Rdn rdn : new LdapName(baseDn).getRdns()) {
+        if (!"dc".equalsIgnoreCase(rdn.getType())) {
+          return false;
+        }
+      }
+      return true;
+    } catch (InvalidNameException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the critical request control, which turns a search into a subscription for changes.
+   */
+  Control createControl() {
+    return new BasicControl(oid, true, value != null ? value.clone() : null);
+  }
+}
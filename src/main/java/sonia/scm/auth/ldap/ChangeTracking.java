@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+/**
+ * Attribute which is used to find groups, which have changed since the last refresh of the group snapshot.
+ */
+public enum ChangeTracking {
+
+  /**
+   * changes are only picked up by full reloads
+   */
+  NONE(null),
+
+  /**
+   * operational timestamp attribute, which is maintained by most directory servers like OpenLDAP
+   */
+  MODIFY_TIMESTAMP("modifyTimestamp"),
+
+  /**
+   * update sequence number of active directory, the number is specific to the domain controller
+   */
+  USN_CHANGED("uSNChanged");
+
+  private final String attribute;
+
+  ChangeTracking(String attribute) {
+    this.attribute = attribute;
+  }
+
+  String getAttribute() {
+    return attribute;
+  }
+
+  /**
+   * Returns {@code true}, if watermarks of one server can not be compared with the ones of another server.
+   */
+  boolean isServerSpecific() {
+    return this == USN_CHANGED;
+  }
+
+  /**
+   * Returns a filter, which matches all entries changed after the watermark.
+   */
+  String createFilter(String watermark) {
+    if (this == USN_CHANGED) {
+      return "(" + attribute + ">=" + (Long.parseLong(watermark) + 1) + ")";
+    }
+    // generalized time has only a precision of seconds, so changes of the same second are fetched again
+    return "(" + attribute + ">=" + watermark + ")";
+  }
+
+  /**
+   * Returns the more recent of the two watermarks, each of them may be {@code null}.
+   */
+  String max(String a, String b) {
+    if (a == null) {
+      return b;
+    } else if (b == null) {
+      return a;
+    } else if (this == USN_CHANGED) {
+      return Long.parseLong(a) >= Long.parseLong(b) ? a : b;
+    }
+    return a.compareTo(b) >= 0 ? a : b;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+/**
+ * Thrown without contacting the directory, if the circuit breakers of all configured servers are open.
+ */
+@SuppressWarnings("squid:MaximumInheritanceDepth")
+public class CircuitBreakerOpenException extends LdapException {
+
+  public CircuitBreakerOpenException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts login failures per key, e.g. per username or per source address. After the threshold is reached, further
+ * logins are rejected for a backoff, which doubles with every further failure up to a maximum. Counters below the
+ * threshold expire the maximum backoff after their first failure, so that occasional failures do not add up forever.
+ * Counters at or above the threshold expire after the maximum backoff without failure.
+ */
+class FailureCounter {
+
+  /**
+   * upper limit for the number of counted keys, expired counters are removed if the limit is exceeded
+   */
+  private static final int MAX_ENTRIES = 10000;
+
+  private final Map<String, Failures> failures = new ConcurrentHashMap<>();
+  private final LongSupplier clock;
+
+  FailureCounter(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  void recordFailure(String key, Backoff backoff) {
+    long now = clock.getAsLong();
+    failures.compute(key, (k, current) -> {
+      if (current == null || current.isExpired(now, backoff)) {
+        return new Failures(1, now, now);
+      }
+      return new Failures(current.count + 1, current.firstFailure, now);
+    });
+    if (failures.size() > MAX_ENTRIES) {
+      cleanUp(now, backoff);
+    }
+  }
+
+  void reset(String key) {
+    failures.remove(key);
+  }
+
+  /**
+   * Decreases the failures of the key by one, e.g. after a successful login.
+   */
+  void decrement(String key) {
+    failures.computeIfPresent(key, (k, current) ->
+      current.count > 1 ? new Failures(current.count - 1, current.firstFailure, current.lastFailure) : null
+    );
+  }
+
+  /**
+   * Returns the remaining time in milliseconds, for which logins with the key are rejected.
+   */
+  long getRemainingBackoff(String key, Backoff backoff) {
+    Failures current = failures.get(key);
+    if (current == null || !backoff.isEnabled() || current.count < backoff.threshold) {
+      return 0;
+    }
+    long remaining = current.lastFailure + backoff.getDelay(current.count) - clock.getAsLong();
+    return Math.max(0, remaining);
+  }
+
+  int getCount(String key) {
+    Failures current = failures.get(key);
+    return current != null ? current.count : 0;
+  }
+
+  int size() {
+    return failures.size();
+  }
+
+  private void cleanUp(long now, Backoff backoff) {
+    failures.values().removeIf(f -> f.isExpired(now, backoff));
+    if (failures.size() > MAX_ENTRIES) {
+      // keep the counters which are throttled already
+      failures.values().removeIf(f -> f.count < backoff.threshold);
+    }
+  }
+
+  /**
+   * Threshold and delays of the backoff.
+   */
+  static final class Backoff {
+
+    private final int threshold;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    Backoff(int threshold, long initialDelay, long maxDelay) {
+      this.threshold = threshold;
+      this.initialDelay = Math.max(0, initialDelay);
+      this.maxDelay = Math.max(this.initialDelay, maxDelay);
+    }
+
+    static Backoff of(int threshold, LdapConfig config) {
+      return new Backoff(
+        threshold,
+        TimeUnit.SECONDS.toMillis(config.getLoginBackoff()),
+        TimeUnit.SECONDS.toMillis(config.getLoginMaxBackoff())
+      );
+    }
+
+    boolean isEnabled() {
+      return threshold > 0 && initialDelay > 0;
+    }
+
+    /**
+     * Returns the delay after the given number of failures, which doubles with every failure above the threshold.
+     */
+    long getDelay(int count) {
+      int exponent = Math.min(count - threshold, 30);
+      return Math.min(maxDelay, initialDelay << exponent);
+    }
+  }
+
+  private static final class Failures {
+
+    private final int count;
+    private final long firstFailure;
+    private final long lastFailure;
+
+    private Failures(int count, long firstFailure, long lastFailure) {
+      this.count = count;
+      this.firstFailure = firstFailure;
+      this.lastFailure = lastFailure;
+    }
+
+    private boolean isExpired(long now, Backoff backoff) {
+      if (count < backoff.threshold) {
+        // the window of counters below the threshold is not extended by further failures
+        return now - firstFailure > backoff.maxDelay;
+      }
+      return now - lastFailure > backoff.maxDelay;
+    }
+  }
+}
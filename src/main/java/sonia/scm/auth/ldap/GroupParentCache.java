@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import sonia.scm.cache.Cache;
+import sonia.scm.cache.CacheManager;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache for the edges of the nested group graph, which maps the dn of a group to the dns of its parent groups.
+ * The cache is shared by all principals, because most users are members of the same groups. Size and expiration are
+ * configured in gcache.xml.
+ */
+class GroupParentCache {
+
+  static final String CACHE_NAME = "sonia.scm.ldap.groupParents";
+
+  private final Cache<String, Set<String>> cache;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  GroupParentCache(CacheManager cacheManager) {
+    this.cache = cacheManager.getCache(CACHE_NAME);
+  }
+
+  /**
+   * Returns the cached parents of the group or {@code null}, if the group is not cached.
+   */
+  Set<String> get(String groupDn) {
+    Set<String> parents = cache.get(key(groupDn));
+    if (parents != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return parents;
+  }
+
+  void put(String groupDn, Set<String> parents) {
+    cache.put(key(groupDn), Collections.unmodifiableSet(parents));
+  }
+
+  void remove(String groupDn) {
+    cache.remove(key(groupDn));
+  }
+
+  /**
+   * Removes the cached parents of all groups, which have the given group as parent.
+   */
+  void removeParent(String parentDn) {
+    cache.removeAll(groupDn -> {
+      Set<String> parents = cache.get(groupDn);
+      return parents != null && parents.stream().anyMatch(parentDn::equalsIgnoreCase);
+    });
+  }
+
+  void clear() {
+    cache.clear();
+  }
+
+  /**
+   * Returns the number of edges which were served from the cache.
+   */
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of edges which had to be fetched from the directory.
+   */
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  private String key(String groupDn) {
+    // dns are case insensitive and may be written with different escaping or spacing
+    return LdapDn.normalize(groupDn);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+/**
+ * Sources which are used to find the groups of a user.
+ */
+public enum GroupResolution {
+
+  /**
+   * groups are read from the group attribute of the user, e.g. memberOf
+   */
+  ATTRIBUTE,
+
+  /**
+   * groups are searched with the group search filter
+   */
+  SEARCH,
+
+  /**
+   * groups are read from the group attribute and searched with the group search filter
+   */
+  BOTH,
+
+  /**
+   * transitive groups are read from the constructed tokenGroups attribute of active directory
+   */
+  TOKEN_GROUPS
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import javax.naming.directory.Attributes;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Strategy to find the groups of a user. The groups are returned as dns, nested groups are resolved by the caller,
+ * unless the strategy returns the transitive groups already.
+ */
+@FunctionalInterface
+interface GroupResolutionStrategy {
+
+  Set<String> resolve(LdapConnection connection, LdapConfig config, User user);
+
+  /**
+   * Returns {@code true}, if the resolved groups include all nested groups.
+   */
+  default boolean isTransitive() {
+    return false;
+  }
+
+  /**
+   * Returns a strategy, which returns the groups of both strategies.
+   */
+  static GroupResolutionStrategy both(GroupResolutionStrategy first, GroupResolutionStrategy second) {
+    return (connection, config, user) -> {
+      Set<String> groups = new HashSet<>(first.resolve(connection, config, user));
+      groups.addAll(second.resolve(connection, config, user));
+      return groups;
+    };
+  }
+
+  /**
+   * The user entry, as it was found by the user search.
+   */
+  final class User {
+
+    private final String dn;
+    private final String principal;
+    private final String mail;
+    private final Attributes attributes;
+
+    User(String dn, String principal, String mail, Attributes attributes) {
+      this.dn = dn;
+      this.principal = principal;
+      this.mail = mail;
+      this.attributes = attributes;
+    }
+
+    String getDn() {
+      return dn;
+    }
+
+    String getPrincipal() {
+      return principal;
+    }
+
+    String getMail() {
+      return mail;
+    }
+
+    Attributes getAttributes() {
+      return attributes;
+    }
+  }
+}
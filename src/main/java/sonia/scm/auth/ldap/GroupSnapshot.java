@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Immutable in-memory index of all groups of the directory. The index maps the members of the groups to their
+ * direct groups and each group to the transitive closure of its parent groups. Changed groups can be applied with
+ * {@link #update(Collection, String, long)}, which creates a new snapshot and recomputes only the affected entries.
+ */
+final class GroupSnapshot {
+
+  private final Object configKey;
+  private final long createdAt;
+  private final long updatedAt;
+  private final String watermark;
+  private final String source;
+  private final MembershipAttribute memberAttribute;
+  private final MembershipAttribute nestedAttribute;
+  private final Map<String, Group> groups;
+  private final Map<String, Set<String>> groupsByMember;
+  private final Map<String, Set<String>> parentsByChild;
+  private final Map<String, Set<String>> closures;
+
+  private GroupSnapshot(GroupSnapshot base, Map<String, Group> groups, Map<String, Set<String>> groupsByMember,
+                        Map<String, Set<String>> parentsByChild, Map<String, Set<String>> closures,
+                        String watermark, long updatedAt) {
+    this.configKey = base.configKey;
+    this.createdAt = base.createdAt;
+    this.memberAttribute = base.memberAttribute;
+    this.nestedAttribute = base.nestedAttribute;
+    this.groups = groups;
+    this.groupsByMember = groupsByMember;
+    this.parentsByChild = parentsByChild;
+    this.closures = closures;
+    this.watermark = watermark;
+    this.source = base.source;
+    this.updatedAt = updatedAt;
+  }
+
+  private GroupSnapshot(Builder builder) {
+    this.configKey = builder.configKey;
+    this.createdAt = builder.createdAt;
+    this.updatedAt = builder.createdAt;
+    this.watermark = builder.watermark;
+    this.source = builder.source;
+    this.memberAttribute = builder.memberAttribute;
+    this.nestedAttribute = builder.nestedAttribute;
+    this.groups = new HashMap<>(builder.groups);
+    this.groupsByMember = new HashMap<>();
+    this.parentsByChild = new HashMap<>();
+    for (Group group : groups.values()) {
+      index(group, groupsByMember, parentsByChild);
+    }
+    this.closures = new HashMap<>();
+    if (nestedAttribute != null) {
+      for (Group group : groups.values()) {
+        closures.put(group.key, computeClosure(group.dn));
+      }
+    }
+  }
+
+  Object getConfigKey() {
+    return configKey;
+  }
+
+  /**
+   * Returns the time of the last full load.
+   */
+  long getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * Returns the time of the last full load or incremental update.
+   */
+  long getUpdatedAt() {
+    return updatedAt;
+  }
+
+  /**
+   * Returns the highest change marker (e.g. {@code modifyTimestamp} or {@code uSNChanged}) of the loaded groups, or
+   * {@code null} if changes are not tracked.
+   */
+  String getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * Returns the url of the server, from which the snapshot was loaded.
+   */
+  String getSource() {
+    return source;
+  }
+
+  int getGroupCount() {
+    return groups.size();
+  }
+
+  /**
+   * Returns {@code true} if the snapshot contains the group with the given dn.
+   */
+  boolean containsGroup(String groupDN) {
+    return groups.containsKey(LdapDn.normalize(groupDN));
+  }
+
+  /**
+   * Returns the dns of the groups, which contain the user directly. The arguments are the same as the arguments of
+   * the group search filter.
+   */
+  Set<String> getGroups(String userDN, String uid, String mail) {
+    String memberValue = memberAttribute.memberValue(userDN, uid, mail);
+    if (memberValue == null) {
+      return Collections.emptySet();
+    }
+    return Collections.unmodifiableSet(groupsByMember.getOrDefault(memberValue, Collections.emptySet()));
+  }
+
+  /**
+   * Returns the given groups and all of their parent groups.
+   */
+  Set<String> withParents(Collection<String> groupDNs) {
+    Set<String> result = new HashSet<>(groupDNs);
+    if (nestedAttribute != null) {
+      for (String groupDN : groupDNs) {
+        Set<String> closure = closures.get(LdapDn.normalize(groupDN));
+        result.addAll(closure != null ? closure : computeClosure(groupDN));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates a new snapshot, in which the changed groups replace their previous versions. The member index is updated
+   * for the changed groups only and closures are recomputed only for groups, which are affected by a changed nesting.
+   */
+  GroupSnapshot update(Collection<Group> changed, String newWatermark, long now) {
+    Map<String, Group> updatedGroups = new HashMap<>(groups);
+    Map<String, Set<String>> updatedGroupsByMember = new HashMap<>(groupsByMember);
+    Map<String, Set<String>> updatedParentsByChild = new HashMap<>(parentsByChild);
+    Set<String> affectedChildren = new HashSet<>();
+
+    for (Group group : changed) {
+      Group previous = updatedGroups.put(group.key, group);
+      if (previous != null) {
+        unindex(previous, updatedGroupsByMember, updatedParentsByChild);
+        previous.children.forEach(child -> affectedChildren.add(nestedKey(child)));
+      }
+      index(group, updatedGroupsByMember, updatedParentsByChild);
+      group.children.forEach(child -> affectedChildren.add(nestedKey(child)));
+    }
+
+    GroupSnapshot updated = new GroupSnapshot(
+      this, updatedGroups, updatedGroupsByMember, updatedParentsByChild, new HashMap<>(closures), newWatermark, now
+    );
+    if (nestedAttribute != null) {
+      updated.recomputeClosures(changed, affectedChildren);
+    }
+    return updated;
+  }
+
+  private void recomputeClosures(Collection<Group> changed, Set<String> affectedChildren) {
+    for (Group group : groups.values()) {
+      Set<String> closure = closures.get(group.key);
+      boolean affected = closure == null || containsAffectedGroup(closure, affectedChildren);
+      if (affected) {
+        closures.put(group.key, computeClosure(group.dn));
+      }
+    }
+    for (Group group : changed) {
+      closures.put(group.key, computeClosure(group.dn));
+    }
+  }
+
+  private boolean containsAffectedGroup(Set<String> closure, Set<String> affectedChildren) {
+    for (String groupDN : closure) {
+      if (affectedChildren.contains(nestedAttribute.memberValue(groupDN, LdapUtil.getName(groupDN)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Set<String> computeClosure(String groupDN) {
+    Set<String> found = new HashSet<>();
+    found.add(groupDN);
+    Queue<String> toSearch = new ArrayDeque<>(found);
+    while (!toSearch.isEmpty()) {
+      String current = toSearch.poll();
+      String key = nestedAttribute.memberValue(current, LdapUtil.getName(current));
+      for (String parent : parentsByChild.getOrDefault(key, Collections.emptySet())) {
+        if (found.add(parent)) {
+          toSearch.add(parent);
+        }
+      }
+    }
+    return Collections.unmodifiableSet(found);
+  }
+
+  private void index(Group group, Map<String, Set<String>> groupsByMember, Map<String, Set<String>> parentsByChild) {
+    for (String member : group.members) {
+      groupsByMember.merge(memberAttribute.normalize(member), Collections.singleton(group.dn), GroupSnapshot::union);
+    }
+    for (String child : group.children) {
+      parentsByChild.merge(nestedKey(child), Collections.singleton(group.dn), GroupSnapshot::union);
+    }
+  }
+
+  private void unindex(Group group, Map<String, Set<String>> groupsByMember, Map<String, Set<String>> parentsByChild) {
+    for (String member : group.members) {
+      groupsByMember.computeIfPresent(memberAttribute.normalize(member), (key, dns) -> without(dns, group.dn));
+    }
+    for (String child : group.children) {
+      parentsByChild.computeIfPresent(nestedKey(child), (key, dns) -> without(dns, group.dn));
+    }
+  }
+
+  /**
+   * Children are only recorded, if groups are nested. Without nesting the children are never looked up, so their
+   * values are used as they are.
+   */
+  private String nestedKey(String child) {
+    return nestedAttribute != null ? nestedAttribute.normalize(child) : child;
+  }
+
+  /**
+   * Sets of the index are never modified after they were added, because they may be shared with older snapshots.
+   */
+  private static Set<String> union(Set<String> a, Set<String> b) {
+    Set<String> result = new HashSet<>(a);
+    result.addAll(b);
+    return result;
+  }
+
+  private static Set<String> without(Set<String> dns, String dn) {
+    Set<String> result = new HashSet<>(dns);
+    result.remove(dn);
+    return result.isEmpty() ? null : result;
+  }
+
+  /**
+   * A single group with its member and child values, which are normalized by the snapshot.
+   */
+  static final class Group {
+
+    private final String key;
+    private final String dn;
+    private final Set<String> members = new HashSet<>();
+    private final Set<String> children = new HashSet<>();
+
+    Group(String dn) {
+      this.key = LdapDn.normalize(dn);
+      this.dn = dn;
+    }
+
+    Group addMember(String memberValue) {
+      members.add(memberValue);
+      return this;
+    }
+
+    Group addChild(String childValue) {
+      children.add(childValue);
+      return this;
+    }
+
+    String getDn() {
+      return dn;
+    }
+
+    boolean isEmpty() {
+      return members.isEmpty() && children.isEmpty();
+    }
+  }
+
+  static class Builder {
+
+    private final Object configKey;
+    private final long createdAt;
+    private final MembershipAttribute memberAttribute;
+    private final MembershipAttribute nestedAttribute;
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private String watermark;
+    private String source;
+
+    /**
+     * @param memberAttribute attribute which contains the users of a group
+     * @param nestedAttribute attribute which contains the child groups of a group, or {@code null} if groups are not nested
+     */
+    Builder(Object configKey, long createdAt, MembershipAttribute memberAttribute, MembershipAttribute nestedAttribute) {
+      this.configKey = configKey;
+      this.createdAt = createdAt;
+      this.memberAttribute = memberAttribute;
+      this.nestedAttribute = nestedAttribute;
+    }
+
+    Builder addGroup(String groupDN) {
+      group(groupDN);
+      return this;
+    }
+
+    Builder addGroup(Group group) {
+      groups.put(group.key, group);
+      return this;
+    }
+
+    Builder addMember(String groupDN, String memberValue) {
+      group(groupDN).addMember(memberValue);
+      return this;
+    }
+
+    Builder addChild(String groupDN, String childValue) {
+      group(groupDN).addChild(childValue);
+      return this;
+    }
+
+    Builder watermark(String watermark) {
+      this.watermark = watermark;
+      return this;
+    }
+
+    Builder source(String source) {
+      this.source = source;
+      return this;
+    }
+
+    private Group group(String groupDN) {
+      return groups.computeIfAbsent(LdapDn.normalize(groupDN), key -> new Group(groupDN));
+    }
+
+    GroupSnapshot build() {
+      return new GroupSnapshot(this);
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the current {@link GroupSnapshot}. The snapshot is loaded in the background with a single search for all
+ * groups below the group unit and replaced atomically, so readers are never blocked by a refresh.
+ * If change tracking is configured, groups which were changed since the last load are searched periodically and
+ * applied to the snapshot. Deleted groups are only removed by the next full reload.
+ */
+class GroupSnapshotIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GroupSnapshotIndex.class);
+
+  /**
+   * time to wait before a failed refresh is retried
+   */
+  private static final long RETRY_AFTER_FAILURE = TimeUnit.MINUTES.toMillis(1);
+
+  private static final String ATTRIBUTE_GROUP_NAME = "cn";
+
+  private final LdapConnectionFactory connectionFactory;
+  private final LongSupplier clock;
+  private final Executor executor;
+  private final Runnable changeListener;
+
+  private final AtomicReference<GroupSnapshot> snapshot = new AtomicReference<>();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile long nextAttempt = 0;
+
+  /**
+   * @param changeListener is called after changed groups were applied to the snapshot
+   */
+  GroupSnapshotIndex(LdapConnectionFactory connectionFactory, Runnable changeListener) {
+    this(connectionFactory, System::currentTimeMillis, Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "LdapGroupSnapshot");
+      thread.setDaemon(true);
+      return thread;
+    }), changeListener);
+  }
+
+  GroupSnapshotIndex(LdapConnectionFactory connectionFactory, LongSupplier clock, Executor executor, Runnable changeListener) {
+    this.connectionFactory = connectionFactory;
+    this.clock = clock;
+    this.executor = executor;
+    this.changeListener = changeListener;
+  }
+
+  /**
+   * Returns the snapshot for the configuration without blocking. If the snapshot is missing, outdated or was created
+   * with another configuration, a refresh is started in the background. If only the poll interval has elapsed, the
+   * changed groups are applied in the background. The result is empty, until a snapshot for the configuration is
+   * available.
+   */
+  Optional<GroupSnapshot> get(LdapConfig config) {
+    Object configKey = configKey(config);
+    GroupSnapshot current = snapshot.get();
+    boolean matches = current != null && current.getConfigKey().equals(configKey);
+    long now = clock.getAsLong();
+    if (now >= nextAttempt) {
+      long refreshInterval = TimeUnit.SECONDS.toMillis(config.getGroupSnapshotRefreshInterval());
+      long pollInterval = TimeUnit.SECONDS.toMillis(config.getGroupSnapshotPollInterval());
+      if (!matches || now - current.getCreatedAt() >= refreshInterval) {
+        runInBackground(() -> refresh(config));
+      } else if (current.getWatermark() != null && now - current.getUpdatedAt() >= pollInterval) {
+        runInBackground(() -> applyChanges(config));
+      }
+    }
+    return matches ? Optional.of(current) : Optional.empty();
+  }
+
+  private void runInBackground(Runnable task) {
+    if (refreshing.compareAndSet(false, true)) {
+      try {
+        executor.execute(() -> {
+          try {
+            task.run();
+          } catch (RuntimeException ex) {
+            LOG.warn("failed to load snapshot of ldap groups", ex);
+            nextAttempt = clock.getAsLong() + RETRY_AFTER_FAILURE;
+          } finally {
+            refreshing.set(false);
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        refreshing.set(false);
+        LOG.warn("could not start refresh of ldap group snapshot", ex);
+      }
+    }
+  }
+
+  /**
+   * Loads a new snapshot and replaces the current one.
+   */
+  GroupSnapshot refresh(LdapConfig config) {
+    try (LdapConnection connection = connectionFactory.createBindConnection(config)) {
+      return refresh(config, connection);
+    }
+  }
+
+  private GroupSnapshot refresh(LdapConfig config, LdapConnection connection) {
+    long start = clock.getAsLong();
+    SnapshotQuery query = new SnapshotQuery(config);
+    GroupSnapshot.Builder builder = new GroupSnapshot.Builder(configKey(config), start, query.memberAttribute, query.nestedAttribute);
+    String watermark = search(connection, config, query, query.filter, group -> builder.addGroup(group));
+    GroupSnapshot loaded = builder.watermark(watermark).source(connection.getServerUrl()).build();
+    snapshot.set(loaded);
+    LOG.info("loaded snapshot of {} ldap groups in {}ms", loaded.getGroupCount(), clock.getAsLong() - start);
+    return loaded;
+  }
+
+  /**
+   * Searches the groups which were changed since the last load and applies them to the current snapshot.
+   * Changes are searched at the server, from which the snapshot was loaded. If the watermark is specific to the
+   * server and the server is not available, the snapshot is reloaded from another server instead.
+   * Returns the number of changed groups or the number of all groups, if the snapshot was reloaded.
+   */
+  int applyChanges(LdapConfig config) {
+    GroupSnapshot current = snapshot.get();
+    if (current == null || current.getWatermark() == null || !current.getConfigKey().equals(configKey(config))) {
+      return 0;
+    }
+    SnapshotQuery query = new SnapshotQuery(config);
+    try (LdapConnection connection = connectionFactory.createBindConnection(config, current.getSource())) {
+      if (query.changeTracking.isServerSpecific() && !Objects.equals(current.getSource(), connection.getServerUrl())) {
+        LOG.info("ldap server changed from {} to {}, reload snapshot, because {} is specific to the server",
+          current.getSource(), connection.getServerUrl(), query.changeTracking.getAttribute());
+        GroupSnapshot loaded = refresh(config, connection);
+        changeListener.run();
+        return loaded.getGroupCount();
+      }
+      return applyChanges(connection, config, query, current);
+    }
+  }
+
+  private int applyChanges(LdapConnection connection, LdapConfig config, SnapshotQuery query, GroupSnapshot current) {
+    // the filter must not require members, otherwise groups whose last member was removed would never be found
+    String filter = query.changeTracking.createFilter(current.getWatermark());
+    List<GroupSnapshot.Group> changed = new ArrayList<>();
+    String watermark = query.changeTracking.max(current.getWatermark(), search(connection, config, query, filter, group -> {
+      // entries without members are only relevant, if they replace a group of the snapshot
+      if (!group.isEmpty() || current.containsGroup(group.getDn())) {
+        changed.add(group);
+      }
+    }));
+
+    GroupSnapshot updated = current.update(changed, watermark, clock.getAsLong());
+    if (!snapshot.compareAndSet(current, updated)) {
+      LOG.debug("snapshot was replaced while changes were applied, discard changes");
+      return 0;
+    }
+    if (!changed.isEmpty()) {
+      LOG.debug("applied {} changed ldap groups to snapshot", changed.size());
+      changeListener.run();
+    }
+    return changed.size();
+  }
+
+  /**
+   * Searches the groups and passes each of them to the consumer. Returns the highest change marker of the result.
+   */
+  private String search(LdapConnection connection, LdapConfig config, SnapshotQuery query, String filter, Consumer<GroupSnapshot.Group> consumer) {
+    SearchControls searchControls = new SearchControls();
+    searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    searchControls.setReturningAttributes(query.attributes);
+
+    String searchDN = LdapQueryPlan.of(config).getGroupBaseDn();
+    LOG.debug("search groups for snapshot at {} with filter {}", searchDN, filter);
+
+    AtomicReference<String> watermark = new AtomicReference<>();
+    List<GroupSnapshot.Group> incomplete = new ArrayList<>();
+    List<RangedAttributeReader.PendingRange> pendingRanges = new ArrayList<>();
+    try {
+      // a truncated result would remove groups from the snapshot, so the size limit is not ignored here
+      connection.search(searchDN, filter, searchControls, config.getSearchPageSize(), searchResult -> {
+        Attributes attributes = searchResult.getAttributes();
+        String dn = searchResult.getNameInNamespace();
+        GroupSnapshot.Group group = new GroupSnapshot.Group(dn);
+        // members of large groups are returned in ranges, the remaining ranges are read after the search
+        int pending = pendingRanges.size();
+        addPending(pendingRanges, RangedAttributeReader.forEachValueOfFirstRange(dn, attributes, query.memberAttribute.getName(), group::addMember));
+        if (query.nestedAttribute != null) {
+          addPending(pendingRanges, RangedAttributeReader.forEachValueOfFirstRange(dn, attributes, query.nestedAttribute.getName(), group::addChild));
+        }
+        if (query.changeTracking != ChangeTracking.NONE) {
+          watermark.set(query.changeTracking.max(watermark.get(), LdapUtil.getAttribute(attributes, query.changeTracking.getAttribute())));
+        }
+        if (pendingRanges.size() > pending) {
+          incomplete.add(group);
+        } else {
+          consumer.accept(group);
+        }
+      });
+      for (RangedAttributeReader.PendingRange pendingRange : pendingRanges) {
+        pendingRange.read(connection);
+      }
+      incomplete.forEach(consumer);
+    } catch (NamingException ex) {
+      throw new LdapException("failed to load groups for snapshot", ex);
+    }
+    return watermark.get();
+  }
+
+  private static void addPending(List<RangedAttributeReader.PendingRange> pendingRanges, RangedAttributeReader.PendingRange pendingRange) {
+    if (pendingRange != null) {
+      pendingRanges.add(pendingRange);
+    }
+  }
+
+  private static String parenthesize(String filter) {
+    return filter.startsWith("(") ? filter : "(" + filter + ")";
+  }
+
+  /**
+   * A snapshot can only be used for the configuration, with which it was created.
+   */
+  private Object configKey(LdapConfig config) {
+    return Arrays.asList(
+      config.getHostUrl(), config.getBaseDn(), config.getConnectionDn(), config.getUnitGroup(),
+      config.getSearchFilterGroup(), config.getSearchFilterNestedGroup(),
+      config.isEnableNestedGroups(), config.isEnableNestedADGroups(), changeTracking(config)
+    );
+  }
+
+  private static ChangeTracking changeTracking(LdapConfig config) {
+    ChangeTracking changeTracking = config.getGroupSnapshotChangeTracking();
+    return changeTracking != null ? changeTracking : ChangeTracking.NONE;
+  }
+
+  /**
+   * Filter and attributes to load the groups of the snapshot.
+   */
+  private static final class SnapshotQuery {
+
+    private final MembershipAttribute memberAttribute;
+    private final MembershipAttribute nestedAttribute;
+    private final ChangeTracking changeTracking;
+    private final String filter;
+    private final String[] attributes;
+
+    private SnapshotQuery(LdapConfig config) {
+      memberAttribute = MembershipAttribute.parse(config.getSearchFilterGroup())
+        .orElseThrow(() -> new ConfigurationException("group snapshot requires a group filter with a single membership assertion"));
+      changeTracking = changeTracking(config);
+      String groupFilter = memberAttribute.presenceFilter(config.getSearchFilterGroup());
+      if (config.isEnableNestedGroups()) {
+        nestedAttribute = MembershipAttribute.parse(config.getSearchFilterNestedGroup())
+          .orElseThrow(() -> new ConfigurationException("group snapshot requires a nested group filter with a single membership assertion"));
+        filter = "(|" + parenthesize(groupFilter) + parenthesize(nestedAttribute.presenceFilter(config.getSearchFilterNestedGroup())) + ")";
+      } else if (config.isEnableNestedADGroups() && memberAttribute.getArgument() == 0) {
+        // the matching rule of active directory follows the member attribute of the groups
+        nestedAttribute = memberAttribute;
+        filter = groupFilter;
+      } else {
+        nestedAttribute = null;
+        filter = groupFilter;
+      }
+
+      Set<String> names = new LinkedHashSet<>();
+      names.add(ATTRIBUTE_GROUP_NAME);
+      names.add(memberAttribute.getName());
+      if (nestedAttribute != null) {
+        names.add(nestedAttribute.getName());
+      }
+      if (changeTracking != ChangeTracking.NONE) {
+        names.add(changeTracking.getAttribute());
+      }
+      attributes = names.toArray(new String[0]);
+    }
+  }
+}
@@ -16,59 +16,206 @@
 
 package sonia.scm.auth.ldap;
 
+import com.google.common.base.Strings;
 import com.google.inject.Inject;
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.ExcessiveAttemptsException;
 import org.apache.shiro.authc.UsernamePasswordToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sonia.scm.cache.Cache;
 import sonia.scm.cache.CacheManager;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * Cache for credentials, which are known to be invalid. The passwords are only kept as SHA-256 digests. The digests
+ * are computed with a digest and a buffer per thread, so that concurrent logins do not have to be synchronized.
+ * Additionally, the failures are counted per username and per source. Once a threshold is reached, further logins are
+ * rejected with an exponential backoff, before any connection to the directory is opened.
+ */
 class InvalidCredentialsCache {
 
+  private static final String ALGORITHM = "SHA-256";
+
+  private static final Logger LOG = LoggerFactory.getLogger(InvalidCredentialsCache.class);
+
   private final Cache<UsernamePasswordKey, Object> cache;
-  private final MessageDigest passwordCacheDigest;
+  private final ThreadLocal<PasswordDigest> passwordDigests;
+  private final FailureCounter userFailures;
+  private final FailureCounter sourceFailures;
+  private final LongAdder rejections = new LongAdder();
 
   @Inject
   InvalidCredentialsCache(CacheManager cacheManager) throws NoSuchAlgorithmException {
+    this(cacheManager, System::currentTimeMillis);
+  }
+
+  InvalidCredentialsCache(CacheManager cacheManager, LongSupplier clock) throws NoSuchAlgorithmException {
     this.cache = cacheManager.getCache("sonia.scm.ldap.invalidCredentials");
-    this.passwordCacheDigest = MessageDigest.getInstance("SHA-256");
+    // fail early, if the algorithm is not available
+    MessageDigest.getInstance(ALGORITHM);
+    this.passwordDigests = ThreadLocal.withInitial(PasswordDigest::new);
+    this.userFailures = new FailureCounter(clock);
+    this.sourceFailures = new FailureCounter(clock);
   }
 
   void verifyNotInvalid(UsernamePasswordToken token) {
-    if (cache.contains(new UsernamePasswordKey(token))) {
+    if (cache.contains(createKey(token))) {
       throw new AuthenticationException("this is known to be wrong");
     }
   }
 
+  /**
+   * Rejects the login, if the username or the source of the token have failed too often.
+   */
+  void verifyNotThrottled(UsernamePasswordToken token, LdapConfig config) {
+    long remaining = userFailures.getRemainingBackoff(userKey(token), FailureCounter.Backoff.of(config.getLoginFailureThreshold(), config));
+    String source = sourceKey(token, config);
+    if (source != null) {
+      remaining = Math.max(remaining, sourceFailures.getRemainingBackoff(source, FailureCounter.Backoff.of(config.getSourceFailureThreshold(), config)));
+    }
+    if (remaining > 0) {
+      rejections.increment();
+      LOG.debug("reject login of {} from {} for another {}ms", token.getUsername(), token.getHost(), remaining);
+      throw new ExcessiveAttemptsException("too many failed logins, retry in " + remaining + "ms");
+    }
+  }
+
   void cacheAsInvalid(UsernamePasswordToken upt) {
-    cache.put(new UsernamePasswordKey(upt), new Object());
+    cache.put(createKey(upt), new Object());
   }
 
-  private class UsernamePasswordKey {
-    private final String username;
-    private final byte[] password;
+  /**
+   * Counts a failed login for the username and the source of the token.
+   */
+  void recordFailure(UsernamePasswordToken token, LdapConfig config) {
+    String user = userKey(token);
+    FailureCounter.Backoff userBackoff = FailureCounter.Backoff.of(config.getLoginFailureThreshold(), config);
+    userFailures.recordFailure(user, userBackoff);
+    if (userFailures.getCount(user) == config.getLoginFailureThreshold()) {
+      LOG.info("start throttling logins of user {} after {} failures, {}", token.getUsername(), userFailures.getCount(user), getStatistics());
+    }
+    String source = sourceKey(token, config);
+    if (source != null) {
+      sourceFailures.recordFailure(source, FailureCounter.Backoff.of(config.getSourceFailureThreshold(), config));
+      if (sourceFailures.getCount(source) == config.getSourceFailureThreshold()) {
+        LOG.info("start throttling logins from {} after {} failures, {}", source, sourceFailures.getCount(source), getStatistics());
+      }
+    }
+  }
+
+  /**
+   * Returns the counters of the cache as a single line for the log.
+   */
+  String getStatistics() {
+    return "failures are counted for " + userFailures.size() + " users and " + sourceFailures.size()
+      + " sources, " + getRejectionCount() + " logins were rejected without contacting the directory";
+  }
+
+  /**
+   * Resets the failures of the username after a successful login. The failures of the source are only decreased by
+   * one, so that a single valid account does not unlock further guesses from the same source, but the successful
+   * logins of many users behind a shared proxy outweigh their occasional typos.
+   */
+  void resetFailures(UsernamePasswordToken token) {
+    userFailures.reset(userKey(token));
+    if (token.getHost() != null) {
+      sourceFailures.decrement(token.getHost());
+    }
+  }
 
-    private UsernamePasswordKey(UsernamePasswordToken token) {
-      this.username = token.getUsername();
-      this.password = passwordCacheDigest.digest(toBytes(token.getPassword()));
+  int getUserFailureCount(String username) {
+    return userFailures.getCount(username.toLowerCase(Locale.ENGLISH));
+  }
+
+  int getSourceFailureCount(String source) {
+    return sourceFailures.getCount(source);
+  }
+
+  /**
+   * Returns the number of logins, which were rejected without contacting the directory.
+   */
+  long getRejectionCount() {
+    return rejections.sum();
+  }
+
+  private String userKey(UsernamePasswordToken token) {
+    // most directories compare usernames case insensitive
+    return Strings.nullToEmpty(token.getUsername()).toLowerCase(Locale.ENGLISH);
+  }
+
+  private String sourceKey(UsernamePasswordToken token, LdapConfig config) {
+    // source throttling is opt-in, because all logins behind a reverse proxy share a single host
+    return config.getSourceFailureThreshold() > 0 ? token.getHost() : null;
+  }
+
+  private UsernamePasswordKey createKey(UsernamePasswordToken token) {
+    return new UsernamePasswordKey(token.getUsername(), passwordDigests.get().digest(token.getPassword()));
+  }
+
+  /**
+   * Digest and encoding buffer of a single thread. The buffer is reused and cleared after each digest.
+   */
+  private static class PasswordDigest {
+
+    private final MessageDigest digest;
+    // lone surrogates are replaced like String.getBytes does, so that the rest of the password is not silently dropped
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer buffer = ByteBuffer.allocate(64);
+
+    private PasswordDigest() {
+      try {
+        this.digest = MessageDigest.getInstance(ALGORITHM);
+      } catch (NoSuchAlgorithmException ex) {
+        throw new IllegalStateException("could not create digest " + ALGORITHM, ex);
+      }
     }
 
-    private byte[] toBytes(char[] chars) {
-      CharBuffer charBuffer = CharBuffer.wrap(chars);
-      ByteBuffer byteBuffer = UTF_8.encode(charBuffer);
-      byte[] bytes = Arrays.copyOfRange(byteBuffer.array(),
-        byteBuffer.position(), byteBuffer.limit());
-      Arrays.fill(byteBuffer.array(), (byte) 0); // clear sensitive data
-      return bytes;
+    private byte[] digest(char[] password) {
+      char[] chars = password != null ? password : new char[0];
+      int required = (int) Math.ceil(chars.length * encoder.maxBytesPerChar());
+      if (buffer.capacity() < required) {
+        buffer = ByteBuffer.allocate(required);
+      }
+      try {
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(chars), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        digest.update(buffer);
+        return digest.digest();
+      } finally {
+        Arrays.fill(buffer.array(), (byte) 0); // clear sensitive data
+        buffer.clear();
+      }
+    }
+  }
+
+  private static final class UsernamePasswordKey {
+
+    private final String username;
+    private final byte[] password;
+    private final int hashCode;
+
+    private UsernamePasswordKey(String username, byte[] password) {
+      this.username = username;
+      this.password = password;
+      this.hashCode = 31 * Objects.hashCode(username) + Arrays.hashCode(password);
     }
 
     @Override
@@ -79,12 +226,14 @@ class InvalidCredentialsCache {
 
       UsernamePasswordKey that = (UsernamePasswordKey) o;
 
-      return new EqualsBuilder().append(username, that.username).append(password, that.password).isEquals();
+      return hashCode == that.hashCode
+        && Objects.equals(username, that.username)
+        && MessageDigest.isEqual(password, that.password);
     }
 
     @Override
     public int hashCode() {
-      return new HashCodeBuilder(17, 37).append(username).append(password).toHashCode();
+      return hashCode;
     }
   }
 }
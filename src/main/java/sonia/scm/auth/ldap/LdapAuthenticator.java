@@ -18,10 +18,10 @@ package sonia.scm.auth.ldap;
 
 import com.google.common.base.Strings;
 import lombok.extern.slf4j.Slf4j;
+import sonia.scm.auth.ldap.UserEntryCache.UserEntry;
 import sonia.scm.user.User;
 import sonia.scm.util.ValidationUtil;
 
-import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
 import java.util.Optional;
 
@@ -30,13 +30,57 @@ public class LdapAuthenticator {
 
   private final LdapConnectionFactory connectionFactory;
   private final LdapConfig config;
+  private final UserEntryCache userEntryCache;
 
   public LdapAuthenticator(LdapConnectionFactory connectionFactory, LdapConfig config) {
+    this(connectionFactory, config, null);
+  }
+
+  LdapAuthenticator(LdapConnectionFactory connectionFactory, LdapConfig config, UserEntryCache userEntryCache) {
     this.connectionFactory = connectionFactory;
     this.config = config;
+    this.userEntryCache = userEntryCache;
   }
 
   public Optional<User> authenticate(String username, String password) {
+    if (config.isDirectBindEnabled()) {
+      return authenticateDirectly(username, password);
+    }
+    UserEntry cached = userEntryCache != null ? userEntryCache.get(username) : null;
+    if (cached != null) {
+      log.trace("found cached dn {} for user {}, skip user search", cached.getDn(), username);
+      Optional<UserEntry> entry = readUserEntry(username, cached.getDn());
+      if (entry.isPresent()) {
+        try {
+          authenticateUser(cached.getDn(), password);
+        } catch (UserAuthenticationFailedException ex) {
+          userEntryCache.remove(username);
+          throw ex;
+        }
+        userEntryCache.put(username, entry.get());
+        return Optional.of(createUser(entry.get()));
+      }
+      // the entry could have been moved or deleted or it does not match the search filter anymore
+      log.debug("cached dn {} of user {} is not valid anymore, search user again", cached.getDn(), username);
+      userEntryCache.remove(username);
+    }
+    return searchAndAuthenticate(username, password);
+  }
+
+  /**
+   * Reads the entry with the cached dn. The search filter is evaluated again, because it is often used to restrict the
+   * access, e.g. to members of a group or to enabled accounts. The read of a single entry is much cheaper than the
+   * search below the people unit.
+   */
+  private Optional<UserEntry> readUserEntry(String username, String userDN) {
+    try (LdapConnection bindConnection = connectionFactory.createBindConnection(config)) {
+      UserSearcher userSearcher = new UserSearcher(config, bindConnection);
+      return userSearcher.read(userDN, username, LdapQueryPlan.of(config).getUserAttributes())
+        .map(searchResult -> UserEntry.from(config, userDN, searchResult.getAttributes()));
+    }
+  }
+
+  private Optional<User> searchAndAuthenticate(String username, String password) {
     try (LdapConnection bindConnection = connectionFactory.createBindConnection(config)) {
       log.trace("bind connection to ldap server established");
       UserSearcher userSearcher = new UserSearcher(config, bindConnection);
@@ -44,11 +88,13 @@ public class LdapAuthenticator {
       if (optionalSearchResult.isPresent()) {
         SearchResult searchResult = optionalSearchResult.get();
         String userDN = searchResult.getNameInNamespace();
-
         authenticateUser(userDN, password);
-        Attributes attributes = searchResult.getAttributes();
-        User user = createUser(attributes);
+        UserEntry entry = UserEntry.from(config, userDN, searchResult.getAttributes());
+        User user = createUser(entry);
         log.trace("successfully created external user from ldap response: {}", user);
+        if (userEntryCache != null) {
+          userEntryCache.put(username, entry);
+        }
         return Optional.of(user);
       }
     }
@@ -56,34 +102,55 @@ public class LdapAuthenticator {
     return Optional.empty();
   }
 
+  /**
+   * Binds as the user with the dn from the user dn template and reads the entry of the user over the same connection,
+   * so neither the connection dn nor a user search is required.
+   */
+  private Optional<User> authenticateDirectly(String username, String password) {
+    if (Strings.isNullOrEmpty(password)) {
+      // an empty password would result in an anonymous bind
+      throw new UserAuthenticationFailedException("empty password for user " + username, null);
+    }
+    String userDN = LdapQueryPlan.of(config).createUserDn(username);
+    try (LdapConnection userConnection = connectionFactory.createUserConnection(config, userDN, password)) {
+      log.debug("user {} successfully authenticated", userDN);
+      UserSearcher userSearcher = new UserSearcher(config, userConnection);
+      Optional<SearchResult> optionalSearchResult = userSearcher.read(userDN, username, LdapQueryPlan.of(config).getUserAttributes());
+      if (optionalSearchResult.isPresent()) {
+        User user = createUser(UserEntry.from(config, userDN, optionalSearchResult.get().getAttributes()));
+        log.trace("successfully created external user from ldap response: {}", user);
+        return Optional.of(user);
+      }
+    }
+    return Optional.empty();
+  }
+
   private Optional<SearchResult> searchUser(String username, UserSearcher userSearcher) {
-    String nameAttribute = config.getAttributeNameId();
-    if (Strings.isNullOrEmpty(nameAttribute)) {
+    if (Strings.isNullOrEmpty(config.getAttributeNameId())) {
       throw new ConfigurationException("no name attribute was specified");
     }
-    return userSearcher.search(username, nameAttribute, config.getAttributeNameFullname(), config.getAttributeNameMail());
+    return userSearcher.search(username, LdapQueryPlan.of(config).getUserAttributes());
   }
 
 
   private void authenticateUser(String userDN, String password) {
-    try (LdapConnection ignored = connectionFactory.createUserConnection(config, userDN, password)) {
-      log.debug("user {} successfully authenticated", userDN);
-    }
+    connectionFactory.verifyCredentials(config, userDN, password);
+    log.debug("user {} successfully authenticated", userDN);
   }
 
-  private User createUser(Attributes attributes) {
+  private User createUser(UserEntry entry) {
     User user = new User();
     user.setExternal(true);
 
-    String username = LdapUtil.getAttribute(attributes, config.getAttributeNameId());
+    String username = entry.getId();
     user.setName(username);
-    String displayName = LdapUtil.getAttribute(attributes, config.getAttributeNameFullname());
+    String displayName = entry.getDisplayName();
     if (Strings.isNullOrEmpty(displayName)) {
       displayName = username;
     }
     user.setDisplayName(displayName);
 
-    String mail = LdapUtil.getAttribute(attributes, config.getAttributeNameMail());
+    String mail = entry.getMail();
     if (ValidationUtil.isMailAddressValid(mail)) {
       user.setMail(mail);
     } else {
@@ -20,6 +20,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.util.Providers;
+import sonia.scm.cache.CacheManager;
 
 import javax.net.ssl.SSLContext;
 import java.security.NoSuchAlgorithmException;
@@ -28,18 +29,24 @@ import java.security.NoSuchAlgorithmException;
 public class LdapAuthenticatorFactory {
 
   private final LdapConnectionFactory ldapConnectionFactory;
+  private final UserEntryCache userEntryCache;
 
   @Inject
-  public LdapAuthenticatorFactory(LdapConnectionFactory ldapConnectionFactory) {
-    this.ldapConnectionFactory = ldapConnectionFactory;
+  public LdapAuthenticatorFactory(LdapConnectionFactory ldapConnectionFactory, CacheManager cacheManager) {
+    this(ldapConnectionFactory, new UserEntryCache(cacheManager));
   }
 
   @VisibleForTesting
   protected LdapAuthenticatorFactory() throws NoSuchAlgorithmException {
-    this(new LdapConnectionFactory(Providers.of(SSLContext.getDefault())));
+    this(new LdapConnectionFactory(Providers.of(SSLContext.getDefault())), (UserEntryCache) null);
+  }
+
+  private LdapAuthenticatorFactory(LdapConnectionFactory ldapConnectionFactory, UserEntryCache userEntryCache) {
+    this.ldapConnectionFactory = ldapConnectionFactory;
+    this.userEntryCache = userEntryCache;
   }
 
   public LdapAuthenticator create(LdapConfig config) {
-    return new LdapAuthenticator(ldapConnectionFactory, config);
+    return new LdapAuthenticator(ldapConnectionFactory, config, userEntryCache);
   }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Subscribes to the change notifications of the directory with a long running search in a background thread. Each
+ * changed entry is passed to the change handler. If the connection is lost, the search is started again with an
+ * exponential backoff. Changes may have been missed in the meantime, so the subscribe listener is called each time
+ * the subscription was (re-)established.
+ */
+class LdapChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapChangeListener.class);
+
+  private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+  private final LdapConnectionFactory connectionFactory;
+  private final BiConsumer<LdapConfig, SearchResult> changeHandler;
+  private final Runnable subscribeListener;
+  private final long minBackoff;
+
+  private volatile Subscription subscription;
+  private volatile Object rejectedConfigKey;
+
+  LdapChangeListener(LdapConnectionFactory connectionFactory, BiConsumer<LdapConfig, SearchResult> changeHandler, Runnable subscribeListener) {
+    this(connectionFactory, changeHandler, subscribeListener, TimeUnit.SECONDS.toMillis(1));
+  }
+
+  LdapChangeListener(LdapConnectionFactory connectionFactory, BiConsumer<LdapConfig, SearchResult> changeHandler, Runnable subscribeListener, long minBackoff) {
+    this.connectionFactory = connectionFactory;
+    this.changeHandler = changeHandler;
+    this.subscribeListener = subscribeListener;
+    this.minBackoff = minBackoff;
+  }
+
+  /**
+   * Starts, restarts or stops the subscription, if the relevant parts of the configuration have changed.
+   */
+  void update(LdapConfig config) {
+    ChangeNotification notification = config.getChangeNotification();
+    boolean enabled = config.isEnabled() && notification != null && notification != ChangeNotification.NONE;
+    if (enabled && !isSupported(config, notification)) {
+      enabled = false;
+    }
+    if (enabled || subscription != null) {
+      update(config, enabled);
+    }
+  }
+
+  /**
+   * The directory would reject the subscription again and again, so it is not started and the reason is logged once
+   * for each configuration.
+   */
+  private boolean isSupported(LdapConfig config, ChangeNotification notification) {
+    String problem = notification.checkConfiguration(config);
+    if (problem == null) {
+      return true;
+    }
+    Object configKey = configKey(config);
+    if (!configKey.equals(rejectedConfigKey)) {
+      rejectedConfigKey = configKey;
+      LOG.error("could not subscribe for changes of ldap directory: {}", problem);
+    }
+    return false;
+  }
+
+  private synchronized void update(LdapConfig config, boolean enabled) {
+    Object configKey = configKey(config);
+    if (subscription != null && (!enabled || !subscription.configKey.equals(configKey))) {
+      subscription.stop();
+      subscription = null;
+    }
+    if (enabled && subscription == null) {
+      subscription = new Subscription(config, configKey);
+      subscription.start();
+    }
+  }
+
+  synchronized void stop() {
+    if (subscription != null) {
+      subscription.stop();
+      subscription = null;
+    }
+  }
+
+  synchronized boolean isRunning() {
+    return subscription != null;
+  }
+
+  /**
+   * Returns the number of failed subscription attempts of the current subscription.
+   */
+  synchronized int getFailures() {
+    return subscription != null ? subscription.failures : 0;
+  }
+
+  private Object configKey(LdapConfig config) {
+    return Arrays.asList(
+      config.getHostUrl(), config.getBaseDn(), config.getConnectionDn(), config.getConnectionPassword(),
+      config.isEnableStartTls(), config.getReferralStrategy(), config.getChangeNotification()
+    );
+  }
+
+  private final class Subscription implements Runnable {
+
+    private final LdapConfig config;
+    private final Object configKey;
+    private final Thread thread;
+
+    private volatile boolean stopped = false;
+    private volatile LdapConnection connection;
+    private volatile int failures = 0;
+
+    private Subscription(LdapConfig config, Object configKey) {
+      this.config = config;
+      this.configKey = configKey;
+      this.thread = new Thread(this, "LdapChangeListener");
+      this.thread.setDaemon(true);
+    }
+
+    private void start() {
+      thread.start();
+    }
+
+    private void stop() {
+      stopped = true;
+      thread.interrupt();
+      // closing the connection unblocks the pending search
+      LdapConnection current = connection;
+      if (current != null) {
+        current.destroy();
+      }
+    }
+
+    @Override
+    public void run() {
+      long backoff = minBackoff;
+      while (!stopped) {
+        if (listen()) {
+          backoff = minBackoff;
+        } else {
+          failures++;
+        }
+        if (!stopped) {
+          LOG.debug("subscription for ldap changes ended, subscribe again in {}ms", backoff);
+          if (!sleep(backoff)) {
+            return;
+          }
+          backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+      }
+    }
+
+    /**
+     * Waits for changes until the search ends. Returns {@code true}, if the subscription was established.
+     */
+    private boolean listen() {
+      boolean subscribed = false;
+      SearchControls searchControls = new SearchControls();
+      searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      try (LdapConnection current = connectionFactory.createNotificationConnection(config)) {
+        connection = current;
+        if (stopped) {
+          return false;
+        }
+        // the filter is required by the notification control of active directory, the search returns before the
+        // first change arrives, because the notification connection has a batch size of zero
+        try (AutoCloseableNamingEnumeration<SearchResult> changes = current.search(config.getBaseDn(), "(objectClass=*)", searchControls, config.getChangeNotification().createControl())) {
+          LOG.info("subscribed for changes of ldap directory with {}", config.getChangeNotification());
+          subscribed = true;
+          subscribeListener.run();
+          while (!stopped && changes.hasMore()) {
+            SearchResult change = changes.next();
+            LOG.debug("received change notification for {}", change.getNameInNamespace());
+            changeHandler.accept(config, change);
+          }
+        }
+      } catch (NamingException | RuntimeException ex) {
+        if (!stopped) {
+          LOG.warn("failed to listen for changes of ldap directory: {}", ex.getMessage());
+          LOG.debug("subscription failure", ex);
+        }
+      } finally {
+        connection = null;
+      }
+      return subscribed;
+    }
+
+    private boolean sleep(long millis) {
+      try {
+        Thread.sleep(millis);
+        return true;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker for a single ldap server. The breaker opens after a number of consecutive failures, while it is open
+ * calls fail fast without contacting the server. After the open duration the breaker is half open and lets a limited
+ * number of trial calls pass. A successful trial call closes the breaker, a failed one opens it again.
+ */
+class LdapCircuitBreaker {
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final LongSupplier clock;
+
+  private int failureThreshold = 3;
+  private long openDuration = 30000;
+  private int halfOpenCalls = 1;
+
+  private State state = State.CLOSED;
+  private long stateSince;
+  private int failures = 0;
+  private int trialCalls = 0;
+
+  LdapCircuitBreaker(LongSupplier clock) {
+    this.clock = clock;
+    this.stateSince = clock.getAsLong();
+  }
+
+  synchronized void configure(int failureThreshold, long openDuration, int halfOpenCalls) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openDuration = Math.max(0, openDuration);
+    this.halfOpenCalls = Math.max(1, halfOpenCalls);
+  }
+
+  /**
+   * Returns {@code true} if a call would currently be permitted, without reserving a trial call.
+   */
+  synchronized boolean isCallPermitted() {
+    switch (state) {
+      case OPEN:
+        return isOpenDurationElapsed();
+      case HALF_OPEN:
+        return trialCalls < halfOpenCalls || isOpenDurationElapsed();
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Returns {@code true} if the call is permitted. If the breaker is half open, a trial call is reserved, which is
+   * released by the next recorded success or failure. Trial calls which never report a result are released after the
+   * open duration.
+   */
+  synchronized boolean tryAcquirePermission() {
+    if (state == State.OPEN) {
+      if (!isOpenDurationElapsed()) {
+        return false;
+      }
+      transitionTo(State.HALF_OPEN);
+    } else if (state == State.HALF_OPEN && trialCalls >= halfOpenCalls) {
+      if (!isOpenDurationElapsed()) {
+        return false;
+      }
+      transitionTo(State.HALF_OPEN);
+    }
+    if (state == State.HALF_OPEN) {
+      trialCalls++;
+    }
+    return true;
+  }
+
+  synchronized void onSuccess() {
+    failures = 0;
+    if (state != State.CLOSED) {
+      transitionTo(State.CLOSED);
+    }
+  }
+
+  synchronized void onFailure() {
+    failures++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      transitionTo(State.OPEN);
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Returns the time at which the breaker lets trial calls pass again, or zero if the breaker is closed.
+   */
+  synchronized long getOpenUntil() {
+    return state == State.CLOSED ? 0 : stateSince + openDuration;
+  }
+
+  private boolean isOpenDurationElapsed() {
+    return clock.getAsLong() >= stateSince + openDuration;
+  }
+
+  private void transitionTo(State newState) {
+    state = newState;
+    stateSince = clock.getAsLong();
+    trialCalls = 0;
+  }
+}
@@ -25,7 +25,12 @@ import jakarta.xml.bind.annotation.XmlAccessType;
 import jakarta.xml.bind.annotation.XmlAccessorType;
 import jakarta.xml.bind.annotation.XmlElement;
 import jakarta.xml.bind.annotation.XmlRootElement;
+import jakarta.xml.bind.annotation.XmlTransient;
 import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Thorsten Ludewig
@@ -34,6 +39,8 @@ import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class LdapConfig implements Validateable {
 
+  private static final Field[] FIELDS = instanceFields();
+
   @XmlElement(name = "attribute-name-fullname")
   private String attributeNameFullname = "cn";
 
@@ -98,12 +105,163 @@ public class LdapConfig implements Validateable {
   @XmlElement(name = "enable-nested-groups")
   private boolean enableNestedGroups = false;
 
+  /**
+   * sources which are used to find the groups of a user
+   */
+  @XmlElement(name = "group-resolution")
+  private GroupResolution groupResolution = GroupResolution.BOTH;
+
+  /**
+   * number of groups which are combined into a single nested group search, values below 2 disable batching
+   */
+  @XmlElement(name = "nested-group-batch-size")
+  private int nestedGroupBatchSize = 0;
+
+  /**
+   * number of concurrent searches for the groups of a nesting level, values below 2 search sequentially
+   */
+  @XmlElement(name = "nested-group-parallelism")
+  private int nestedGroupParallelism = 1;
+
+  /**
+   * resolve groups from an in-memory snapshot of all groups, instead of searching the groups of each user
+   */
+  @XmlElement(name = "group-snapshot-enabled")
+  private boolean groupSnapshotEnabled = false;
+
+  /**
+   * time in seconds after which the group snapshot is reloaded
+   */
+  @XmlElement(name = "group-snapshot-refresh-interval")
+  private long groupSnapshotRefreshInterval = 900;
+
+  /**
+   * attribute which is used to apply changed groups to the snapshot between full reloads
+   */
+  @XmlElement(name = "group-snapshot-change-tracking")
+  private ChangeTracking groupSnapshotChangeTracking = ChangeTracking.NONE;
+
+  /**
+   * time in seconds between two searches for changed groups
+   */
+  @XmlElement(name = "group-snapshot-poll-interval")
+  private long groupSnapshotPollInterval = 30;
+
+  /**
+   * control which is used to listen for changes, in order to invalidate the cached groups
+   */
+  @XmlElement(name = "change-notification")
+  private ChangeNotification changeNotification = ChangeNotification.NONE;
+
   @XmlElement(name = "remove-illegal-characters")
   private boolean removeInvalidCharacters = false;
 
   @XmlElement(name = "exclude-groups-outside-unit")
   private boolean excludeGroupsOutsideUnit = false;
 
+  @XmlElement(name = "connection-pool-enabled")
+  private boolean connectionPoolEnabled = false;
+
+  @XmlElement(name = "connection-pool-min-size")
+  private int connectionPoolMinSize = 0;
+
+  @XmlElement(name = "connection-pool-max-size")
+  private int connectionPoolMaxSize = 10;
+
+  /**
+   * max time in milliseconds to wait for a pooled connection
+   */
+  @XmlElement(name = "connection-pool-borrow-timeout")
+  private long connectionPoolBorrowTimeout = 5000;
+
+  /**
+   * time in seconds after which idle pooled connections are closed
+   */
+  @XmlElement(name = "connection-pool-idle-timeout")
+  private long connectionPoolIdleTimeout = 300;
+
+  @XmlElement(name = "verify-credentials-by-rebind")
+  private boolean verifyCredentialsByRebind = false;
+
+  /**
+   * users bind with a dn, which is created from the user dn template, instead of searching them first
+   */
+  @XmlElement(name = "direct-bind-enabled")
+  private boolean directBindEnabled = false;
+
+  /**
+   * template for the dn of users with the username as {0}, e.g. uid={0},ou=People,dc=scm-manager,dc=org
+   */
+  @XmlElement(name = "user-dn-template")
+  private String userDnTemplate;
+
+  /**
+   * number of consecutive failed logins of a user, after which further logins are throttled, zero disables throttling
+   */
+  @XmlElement(name = "login-failure-threshold")
+  private int loginFailureThreshold = 5;
+
+  /**
+   * number of failed logins from a source, after which further logins are throttled, zero disables throttling.
+   * Disabled by default, because behind a reverse proxy or nat all logins share a single source.
+   */
+  @XmlElement(name = "source-failure-threshold")
+  private int sourceFailureThreshold = 0;
+
+  /**
+   * time in seconds for which logins are rejected after the threshold is reached, doubles with every further failure
+   */
+  @XmlElement(name = "login-backoff")
+  private long loginBackoff = 1;
+
+  /**
+   * upper limit in seconds for the login backoff
+   */
+  @XmlElement(name = "login-max-backoff")
+  private long loginMaxBackoff = 300;
+
+  /**
+   * connect timeout in milliseconds
+   */
+  @XmlElement(name = "connect-timeout")
+  private int connectTimeout = 5000;
+
+  /**
+   * number of entries per page for group searches, paging is disabled if the size is zero
+   */
+  @XmlElement(name = "search-page-size")
+  private int searchPageSize = 500;
+
+  /**
+   * time in seconds in which the circuit breaker of a server stays open, before trial calls are permitted
+   */
+  @XmlElement(name = "server-cool-down")
+  private long serverCoolDown = 30;
+
+  /**
+   * number of consecutive failures after which the circuit breaker of a server opens
+   */
+  @XmlElement(name = "circuit-breaker-failure-threshold")
+  private int circuitBreakerFailureThreshold = 3;
+
+  /**
+   * number of trial calls which are permitted while the circuit breaker of a server is half open
+   */
+  @XmlElement(name = "circuit-breaker-half-open-calls")
+  private int circuitBreakerHalfOpenCalls = 1;
+
+  /**
+   * query plan which was compiled from this configuration, see {@link LdapQueryPlan#of(LdapConfig)}
+   */
+  @XmlTransient
+  private transient volatile LdapQueryPlan queryPlan;
+
+  /**
+   * version under which the configuration was published by the {@link LdapConfigStore}, zero if it was not published
+   */
+  @XmlTransient
+  private transient long version;
+
   public String getAttributeNameFullname() {
     return attributeNameFullname;
   }
@@ -172,10 +330,42 @@ public class LdapConfig implements Validateable {
     return enableNestedADGroups;
   }
 
+  public GroupResolution getGroupResolution() {
+    return groupResolution;
+  }
+
   public boolean isEnableNestedGroups() {
     return enableNestedGroups;
   }
 
+  public int getNestedGroupBatchSize() {
+    return nestedGroupBatchSize;
+  }
+
+  public int getNestedGroupParallelism() {
+    return nestedGroupParallelism;
+  }
+
+  public boolean isGroupSnapshotEnabled() {
+    return groupSnapshotEnabled;
+  }
+
+  public long getGroupSnapshotRefreshInterval() {
+    return groupSnapshotRefreshInterval;
+  }
+
+  public ChangeTracking getGroupSnapshotChangeTracking() {
+    return groupSnapshotChangeTracking;
+  }
+
+  public long getGroupSnapshotPollInterval() {
+    return groupSnapshotPollInterval;
+  }
+
+  public ChangeNotification getChangeNotification() {
+    return changeNotification;
+  }
+
   public boolean isEnableStartTls() {
     return enableStartTls;
   }
@@ -192,6 +382,74 @@ public class LdapConfig implements Validateable {
     return enabled;
   }
 
+  public boolean isConnectionPoolEnabled() {
+    return connectionPoolEnabled;
+  }
+
+  public int getConnectionPoolMinSize() {
+    return connectionPoolMinSize;
+  }
+
+  public int getConnectionPoolMaxSize() {
+    return connectionPoolMaxSize;
+  }
+
+  public long getConnectionPoolBorrowTimeout() {
+    return connectionPoolBorrowTimeout;
+  }
+
+  public long getConnectionPoolIdleTimeout() {
+    return connectionPoolIdleTimeout;
+  }
+
+  public boolean isVerifyCredentialsByRebind() {
+    return verifyCredentialsByRebind;
+  }
+
+  public boolean isDirectBindEnabled() {
+    return directBindEnabled;
+  }
+
+  public String getUserDnTemplate() {
+    return userDnTemplate;
+  }
+
+  public int getLoginFailureThreshold() {
+    return loginFailureThreshold;
+  }
+
+  public int getSourceFailureThreshold() {
+    return sourceFailureThreshold;
+  }
+
+  public long getLoginBackoff() {
+    return loginBackoff;
+  }
+
+  public long getLoginMaxBackoff() {
+    return loginMaxBackoff;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public int getSearchPageSize() {
+    return searchPageSize;
+  }
+
+  public long getServerCoolDown() {
+    return serverCoolDown;
+  }
+
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold;
+  }
+
+  public int getCircuitBreakerHalfOpenCalls() {
+    return circuitBreakerHalfOpenCalls;
+  }
+
   @Override
   public boolean isValid() {
     return isValid(attributeNameId, attributeNameFullname, attributeNameMail,
@@ -230,10 +488,42 @@ public class LdapConfig implements Validateable {
     this.enableNestedADGroups = enableNestedADGroups;
   }
 
+  public void setGroupResolution(GroupResolution groupResolution) {
+    this.groupResolution = groupResolution;
+  }
+
   public void setEnableNestedGroups(boolean enableNestedGroups) {
     this.enableNestedGroups = enableNestedGroups;
   }
 
+  public void setNestedGroupBatchSize(int nestedGroupBatchSize) {
+    this.nestedGroupBatchSize = nestedGroupBatchSize;
+  }
+
+  public void setNestedGroupParallelism(int nestedGroupParallelism) {
+    this.nestedGroupParallelism = nestedGroupParallelism;
+  }
+
+  public void setGroupSnapshotEnabled(boolean groupSnapshotEnabled) {
+    this.groupSnapshotEnabled = groupSnapshotEnabled;
+  }
+
+  public void setGroupSnapshotRefreshInterval(long groupSnapshotRefreshInterval) {
+    this.groupSnapshotRefreshInterval = groupSnapshotRefreshInterval;
+  }
+
+  public void setGroupSnapshotChangeTracking(ChangeTracking groupSnapshotChangeTracking) {
+    this.groupSnapshotChangeTracking = groupSnapshotChangeTracking;
+  }
+
+  public void setGroupSnapshotPollInterval(long groupSnapshotPollInterval) {
+    this.groupSnapshotPollInterval = groupSnapshotPollInterval;
+  }
+
+  public void setChangeNotification(ChangeNotification changeNotification) {
+    this.changeNotification = changeNotification;
+  }
+
   public void setEnableStartTls(boolean enableStartTls) {
     this.enableStartTls = enableStartTls;
   }
@@ -286,6 +576,117 @@ public class LdapConfig implements Validateable {
     this.excludeGroupsOutsideUnit = excludeGroupsOutsideUnit;
   }
 
+  public void setConnectionPoolEnabled(boolean connectionPoolEnabled) {
+    this.connectionPoolEnabled = connectionPoolEnabled;
+  }
+
+  public void setConnectionPoolMinSize(int connectionPoolMinSize) {
+    this.connectionPoolMinSize = connectionPoolMinSize;
+  }
+
+  public void setConnectionPoolMaxSize(int connectionPoolMaxSize) {
+    this.connectionPoolMaxSize = connectionPoolMaxSize;
+  }
+
+  public void setConnectionPoolBorrowTimeout(long connectionPoolBorrowTimeout) {
+    this.connectionPoolBorrowTimeout = connectionPoolBorrowTimeout;
+  }
+
+  public void setConnectionPoolIdleTimeout(long connectionPoolIdleTimeout) {
+    this.connectionPoolIdleTimeout = connectionPoolIdleTimeout;
+  }
+
+  public void setVerifyCredentialsByRebind(boolean verifyCredentialsByRebind) {
+    this.verifyCredentialsByRebind = verifyCredentialsByRebind;
+  }
+
+  public void setDirectBindEnabled(boolean directBindEnabled) {
+    this.directBindEnabled = directBindEnabled;
+  }
+
+  public void setUserDnTemplate(String userDnTemplate) {
+    this.userDnTemplate = userDnTemplate;
+  }
+
+  public void setLoginFailureThreshold(int loginFailureThreshold) {
+    this.loginFailureThreshold = loginFailureThreshold;
+  }
+
+  public void setSourceFailureThreshold(int sourceFailureThreshold) {
+    this.sourceFailureThreshold = sourceFailureThreshold;
+  }
+
+  public void setLoginBackoff(long loginBackoff) {
+    this.loginBackoff = loginBackoff;
+  }
+
+  public void setLoginMaxBackoff(long loginMaxBackoff) {
+    this.loginMaxBackoff = loginMaxBackoff;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public void setSearchPageSize(int searchPageSize) {
+    this.searchPageSize = searchPageSize;
+  }
+
+  public void setServerCoolDown(long serverCoolDown) {
+    this.serverCoolDown = serverCoolDown;
+  }
+
+  public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+    this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+  }
+
+  public void setCircuitBreakerHalfOpenCalls(int circuitBreakerHalfOpenCalls) {
+    this.circuitBreakerHalfOpenCalls = circuitBreakerHalfOpenCalls;
+  }
+
+  LdapQueryPlan getQueryPlan() {
+    return queryPlan;
+  }
+
+  void setQueryPlan(LdapQueryPlan queryPlan) {
+    this.queryPlan = queryPlan;
+  }
+
+  long getVersion() {
+    return version;
+  }
+
+  void setVersion(long version) {
+    this.version = version;
+  }
+
+  /**
+   * Returns a copy of the configuration, including its version and compiled query plan. All fields are immutable
+   * values, so the copy shares no state which could be modified with the original.
+   */
+  LdapConfig copy() {
+    LdapConfig copy = new LdapConfig();
+    try {
+      for (Field field : FIELDS) {
+        field.set(copy, field.get(this));
+      }
+    } catch (IllegalAccessException ex) {
+      throw new IllegalStateException("failed to copy ldap configuration", ex);
+    }
+    return copy;
+  }
+
+  private static Field[] instanceFields() {
+    List<Field> fields = new ArrayList<>();
+    for (Field field : LdapConfig.class.getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        field.setAccessible(true);
+        fields.add(field);
+      }
+    }
+    return fields.toArray(new Field[0]);
+  }
+
   private boolean isValid(String... fields) {
     boolean valid = true;
 
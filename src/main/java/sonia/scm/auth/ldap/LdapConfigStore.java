@@ -17,33 +17,121 @@
 package sonia.scm.auth.ldap;
 
 import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.cache.CacheManager;
 import sonia.scm.store.ConfigurationStore;
 import sonia.scm.store.ConfigurationStoreFactory;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
 import jakarta.inject.Singleton;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Singleton
 public class LdapConfigStore implements Provider<LdapConfig> {
 
+  private static final Logger LOG = LoggerFactory.getLogger(LdapConfigStore.class);
+
+  /**
+   * caches which contain results of the directory and must be cleared, if the configuration changes
+   */
+  private static final String[] DEPENDENT_CACHES = {
+    LdapGroupResolver.CACHE_NAME,
+    LdapGroupResolver.UNKNOWN_PRINCIPALS_CACHE_NAME,
+    GroupParentCache.CACHE_NAME,
+    TokenGroupResolver.CACHE_NAME,
+    UserEntryCache.CACHE_NAME
+  };
+
   private final ConfigurationStore<LdapConfig> configurationStore;
+  private final CacheManager cacheManager;
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
 
   @Inject
-  public LdapConfigStore(ConfigurationStoreFactory configurationStoreFactory) {
-    this(configurationStoreFactory.withType(LdapConfig.class).withName("ldap").build());
+  public LdapConfigStore(ConfigurationStoreFactory configurationStoreFactory, CacheManager cacheManager) {
+    this(configurationStoreFactory.withType(LdapConfig.class).withName("ldap").build(), cacheManager);
   }
 
   @VisibleForTesting
   LdapConfigStore(ConfigurationStore<LdapConfig> configurationStore) {
+    this(configurationStore, null);
+  }
+
+  @VisibleForTesting
+  LdapConfigStore(ConfigurationStore<LdapConfig> configurationStore, CacheManager cacheManager) {
     this.configurationStore = configurationStore;
+    this.cacheManager = cacheManager;
   }
 
+  /**
+   * Returns a copy of the current configuration. The configuration is read from the store only once and then kept in
+   * memory until it is replaced by {@link #set(LdapConfig)}. Changes to the copy are not published, they have to be
+   * saved with {@link #set(LdapConfig)}.
+   */
   public LdapConfig get() {
-    return configurationStore.getOptional().orElse(new LdapConfig());
+    return snapshot().config.copy();
+  }
+
+  /**
+   * Returns the version of the current configuration, which is incremented with every {@link #set(LdapConfig)}.
+   */
+  public long getVersion() {
+    return snapshot().version;
+  }
+
+  private Snapshot snapshot() {
+    Snapshot current = snapshot.get();
+    if (current == null) {
+      // a concurrent set wins over the loaded configuration
+      snapshot.compareAndSet(null, new Snapshot(configurationStore.getOptional().orElse(new LdapConfig()), 1));
+      current = snapshot.get();
+    }
+    return current;
   }
 
   public void set(LdapConfig config) {
+    checkChangeNotification(config);
+    checkUserDnTemplate(config);
     configurationStore.set(config);
+    snapshot.updateAndGet(current -> new Snapshot(config, current != null ? current.version + 1 : 2));
+    if (cacheManager != null) {
+      for (String cacheName : DEPENDENT_CACHES) {
+        cacheManager.getCache(cacheName).clear();
+      }
+    }
+  }
+
+  private void checkChangeNotification(LdapConfig config) {
+    ChangeNotification notification = config.getChangeNotification();
+    String problem = notification != null ? notification.checkConfiguration(config) : null;
+    if (problem != null) {
+      LOG.error("ldap configuration is saved, but {}", problem);
+    }
+  }
+
+  private void checkUserDnTemplate(LdapConfig config) {
+    String problem = LdapQueryPlan.checkUserDnTemplate(config.getUserDnTemplate());
+    if (problem != null) {
+      LOG.error("ldap configuration is saved, but {}", problem);
+    }
+  }
+
+  /**
+   * The published configuration, which is never handed out, so that it can not be modified by the callers.
+   */
+  private static final class Snapshot {
+
+    private final LdapConfig config;
+    private final long version;
+
+    private Snapshot(LdapConfig config, long version) {
+      this.config = config.copy();
+      this.config.setVersion(version);
+      // compiled once, the plan is shared by all copies of the configuration
+      this.config.setQueryPlan(null);
+      LdapQueryPlan.of(this.config);
+      this.version = version;
+    }
   }
 }
@@ -23,18 +23,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sonia.scm.util.Util;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.ldap.StartTlsRequest;
 import javax.naming.ldap.StartTlsResponse;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 //~--- JDK imports ------------------------------------------------------------
 
@@ -57,15 +69,17 @@ class LdapConnection implements Closeable {
 
   private static final String PROPERTY_SSL_SOCKET_FACTORY = "java.naming.ldap.factory.socket";
 
+  private static final String PROPERTY_BINARY_ATTRIBUTES = "java.naming.ldap.attributes.binary";
+
   /**
-   * connect timeout: 5sec
+   * security identifiers of active directory are binary, but are not known as binary attributes by jndi
    */
-  private static final String TIMEOUT_CONNECT = "5000";
+  private static final String BINARY_ATTRIBUTES = TokenGroupResolver.ATTRIBUTE_OBJECT_SID + " " + TokenGroupResolver.ATTRIBUTE_TOKEN_GROUPS;
 
   /**
    * read timeout: 2min
    */
-  private static final String TIMEOUT_READ = "120000";
+  private static final long TIMEOUT_READ = 120000;
 
   /**
    * the logger for LDAPConnection
@@ -77,16 +91,48 @@ class LdapConnection implements Closeable {
   private StartTlsResponse tls;
   private final SSLContext sslContext;
 
+  private final LdapServer server;
+
+  private LdapConnectionPool pool;
+  private volatile boolean broken = false;
+  private boolean active = false;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private SSLSocketFactory previousSocketFactory;
+
+  @VisibleForTesting
+  LdapConnection(LdapContext context) {
+    this.context = context;
+    this.sslContext = null;
+    this.server = null;
+  }
+
   @VisibleForTesting
   LdapConnection(LdapConfig config, SSLContext sslContext, String userDN, String password) throws NamingException, IOException {
+    this(config, null, sslContext, userDN, password);
+  }
+
+  /**
+   * Opens a connection to the given server. If no server is specified, the host url of the configuration is used.
+   */
+  LdapConnection(LdapConfig config, LdapServer server, SSLContext sslContext, String userDN, String password) throws NamingException, IOException {
+    this(config, server, sslContext, userDN, password, TIMEOUT_READ);
+  }
+
+  /**
+   * Opens a connection with a custom read timeout in milliseconds. A timeout of zero waits infinitely, which is
+   * required for searches that wait for changes of the directory.
+   */
+  LdapConnection(LdapConfig config, LdapServer server, SSLContext sslContext, String userDN, String password, long readTimeout) throws NamingException, IOException {
     this.sslContext = sslContext;
-    ThreadLocalSocketFactory.setDelegate(sslContext.getSocketFactory());
+    this.server = server;
+    String url = server != null ? server.getUrl() : config.getHostUrl();
+    activate();
     // JNDI uses the context classloader to instantiate the socket factory
     ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 
     Thread.currentThread().setContextClassLoader(LdapConnection.class.getClassLoader());
     try {
-      context = new InitialLdapContext(createConnectionProperties(config, userDN, password), null);
+      context = new InitialLdapContext(createConnectionProperties(config, url, userDN, password, readTimeout), null);
 
       if (config.isEnableStartTls()) {
         startTLS(config, userDN, password);
@@ -127,16 +173,21 @@ class LdapConnection implements Closeable {
   }
 
   @SuppressWarnings("squid:S1149") // we have to use hashtable, because it is required by jndi
-  private Hashtable<String, Object> createConnectionProperties(LdapConfig config, String userDN, String password) {
+  private Hashtable<String, Object> createConnectionProperties(LdapConfig config, String url, String userDN, String password, long readTimeout) {
     Hashtable<String, Object> ldapProperties = new Hashtable<>(12);
 
     ldapProperties.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-    ldapProperties.put(Context.PROVIDER_URL, config.getHostUrl());
+    ldapProperties.put(Context.PROVIDER_URL, url);
 
     // apply timeout for read and connect
     // see https://groups.google.com/d/topic/scmmanager/QTimDQM2Wfw/discussion
-    ldapProperties.put(PROPERTY_TIMEOUT_CONNECT, TIMEOUT_CONNECT);
-    ldapProperties.put(PROPERTY_TIMEOUT_READ, TIMEOUT_READ);
+    ldapProperties.put(PROPERTY_TIMEOUT_CONNECT, String.valueOf(config.getConnectTimeout()));
+    if (readTimeout > 0) {
+      ldapProperties.put(PROPERTY_TIMEOUT_READ, String.valueOf(readTimeout));
+    } else {
+      // searches which wait for changes must return before the first result arrives, which could take forever
+      ldapProperties.put(Context.BATCHSIZE, "0");
+    }
 
     if (Util.isNotEmpty(userDN) && Util.isNotEmpty(password) && !config.isEnableStartTls()) {
       logger.debug("create context for dn {}", userDN);
@@ -154,8 +205,9 @@ class LdapConnection implements Closeable {
 
     ldapProperties.put(Context.REFERRAL, referral);
     ldapProperties.put("java.naming.ldap.version", "3");
+    ldapProperties.put(PROPERTY_BINARY_ATTRIBUTES, BINARY_ATTRIBUTES);
 
-    if (config.getHostUrl().startsWith("ldaps")) {
+    if (url.startsWith("ldaps")) {
       ldapProperties.put(Context.SECURITY_PROTOCOL, "ssl");
       ldapProperties.put(PROPERTY_SSL_SOCKET_FACTORY, ThreadLocalSocketFactory.class.getName());
     }
@@ -165,13 +217,276 @@ class LdapConnection implements Closeable {
 
   AutoCloseableNamingEnumeration<SearchResult> search(String name, String filter, SearchControls cons)
     throws NamingException {
-    return new AutoCloseableNamingEnumeration<>(context.search(name, filter, cons));
+    return search(ldapContext -> ldapContext.search(name, filter, cons));
+  }
+
+  /**
+   * Searches below the entry with the given dn. In contrast to {@link #search(String, String, SearchControls)} the dn
+   * is not parsed as composite name, which would split dns which contain a slash. This should be used for all dns
+   * which are returned by the directory.
+   */
+  AutoCloseableNamingEnumeration<SearchResult> search(LdapName name, String filter, SearchControls cons)
+    throws NamingException {
+    return search(ldapContext -> ldapContext.search(name, filter, cons));
+  }
+
+  private AutoCloseableNamingEnumeration<SearchResult> search(SearchOperation operation)
+    throws NamingException {
+    long start = System.nanoTime();
+    try {
+      AutoCloseableNamingEnumeration<SearchResult> result = new AutoCloseableNamingEnumeration<>(operation.search(context));
+      recordSuccess(start);
+      return result;
+    } catch (CommunicationException | ServiceUnavailableException ex) {
+      markBroken();
+      throw ex;
+    }
+  }
+
+  /**
+   * Searches with the paged results control (RFC 2696) and passes each result to the handler, so that the results of
+   * all pages are never held in memory at once. Paging is disabled, if the page size is not positive. Servers which do
+   * not support paging ignore the control and return all results at once.
+   * <p>
+   * The results of a page are buffered and passed to the handler after the page was received and the paging control
+   * was removed from the connection. The handler may therefore issue its own operations on this connection, without
+   * sending them with the cookie of this search or consuming the cookie of the next page.
+   */
+  void search(String name, String filter, SearchControls cons, int pageSize, SearchResultHandler handler)
+    throws NamingException {
+    if (pageSize <= 0) {
+      handleAll(search(name, filter, cons), handler);
+      return;
+    }
+    byte[] cookie = null;
+    int pages = 0;
+    try {
+      do {
+        context.setRequestControls(new Control[]{createPagedResultsControl(pageSize, cookie)});
+        List<SearchResult> page = new ArrayList<>(pageSize);
+        SizeLimitExceededException sizeLimitExceeded = null;
+        try (AutoCloseableNamingEnumeration<SearchResult> enm = search(name, filter, cons)) {
+          while (enm.hasMore()) {
+            page.add(enm.next());
+          }
+        } catch (SizeLimitExceededException ex) {
+          sizeLimitExceeded = ex;
+        }
+        // the cookie must be read before the handler issues operations of its own
+        Control[] responseControls = context.getResponseControls();
+        cookie = getCookie(responseControls);
+        context.setRequestControls(null);
+        pages++;
+        for (SearchResult result : page) {
+          handler.handle(result);
+        }
+        if (sizeLimitExceeded != null) {
+          if (!containsPagedResultsResponse(responseControls)) {
+            logger.warn("server ignored the paged results control, result of search {} was truncated after {} entries by the size limit of the server", filter, page.size());
+          }
+          throw sizeLimitExceeded;
+        }
+      } while (cookie != null && cookie.length > 0);
+    } finally {
+      // the connection may be pooled, so the control must not be used by further operations
+      context.setRequestControls(null);
+    }
+    logger.trace("received results of search {} in {} pages", filter, pages);
+  }
+
+  private void handleAll(AutoCloseableNamingEnumeration<SearchResult> results, SearchResultHandler handler) throws NamingException {
+    try (AutoCloseableNamingEnumeration<SearchResult> enm = results) {
+      while (enm.hasMore()) {
+        handler.handle(enm.next());
+      }
+    }
+  }
+
+  private boolean containsPagedResultsResponse(Control[] responseControls) {
+    if (responseControls != null) {
+      for (Control control : responseControls) {
+        if (control instanceof PagedResultsResponseControl) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private PagedResultsControl createPagedResultsControl(int pageSize, byte[] cookie) throws NamingException {
+    try {
+      return new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL);
+    } catch (IOException ex) {
+      NamingException namingException = new NamingException("failed to create paged results control");
+      namingException.setRootCause(ex);
+      throw namingException;
+    }
+  }
+
+  private byte[] getCookie(Control[] responseControls) {
+    if (responseControls != null) {
+      for (Control control : responseControls) {
+        if (control instanceof PagedResultsResponseControl) {
+          return ((PagedResultsResponseControl) control).getCookie();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Searches with the given request controls. The controls remain active for all further operations of the
+   * connection, so this should only be used for connections which are not pooled.
+   */
+  AutoCloseableNamingEnumeration<SearchResult> search(String name, String filter, SearchControls cons, Control... controls)
+    throws NamingException {
+    context.setRequestControls(controls);
+    return search(name, filter, cons);
+  }
+
+  private void recordSuccess(long start) {
+    if (server != null) {
+      server.recordSuccess(System.nanoTime() - start);
+    }
+  }
+
+  private void markBroken() {
+    broken = true;
+    if (server != null) {
+      server.recordFailure();
+    }
+  }
+
+  /**
+   * Authenticates the existing connection with the given credentials, without opening a new connection.
+   * Afterwards the environment of the context is reset to the restore credentials, so that the password of the user
+   * is not retained by the connection.
+   */
+  void rebind(String userDN, String password, String restoreDN, String restorePassword) throws NamingException {
+    logger.debug("rebind connection as {}", userDN);
+    try {
+      context.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+      context.addToEnvironment(Context.SECURITY_PRINCIPAL, userDN);
+      context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+      context.reconnect(null);
+    } catch (CommunicationException | ServiceUnavailableException ex) {
+      markBroken();
+      throw ex;
+    } finally {
+      restoreEnvironment(restoreDN, restorePassword);
+    }
+  }
+
+  private void restoreEnvironment(String userDN, String password) {
+    try {
+      if (Util.isNotEmpty(userDN) && Util.isNotEmpty(password)) {
+        context.addToEnvironment(Context.SECURITY_PRINCIPAL, userDN);
+        context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+      } else {
+        context.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+        context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+      }
+    } catch (NamingException ex) {
+      logger.warn("failed to restore environment of connection", ex);
+      broken = true;
+    }
+  }
+
+  /**
+   * Checks if the connection is still usable, by reading the root dse without any attributes.
+   */
+  boolean isValid() {
+    if (broken) {
+      return false;
+    }
+    try {
+      context.getAttributes("", new String[]{"1.1"});
+      return true;
+    } catch (NamingException ex) {
+      logger.debug("connection failed validation", ex);
+      broken = true;
+      return false;
+    }
+  }
+
+  /**
+   * Returns the url of the server, to which the connection was opened.
+   */
+  String getServerUrl() {
+    return server != null ? server.getUrl() : null;
+  }
+
+  boolean isBroken() {
+    return broken;
+  }
+
+  void attachTo(LdapConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Prepares a pooled connection for the current thread. JNDI may open further sockets while following referrals,
+   * so the socket factory has to be available for the thread which uses the connection. The socket factory of an
+   * other connection, which is still used by the same thread, is restored on {@link #close()}.
+   */
+  void activate() {
+    closed.set(false);
+    if (!active) {
+      previousSocketFactory = ThreadLocalSocketFactory.setDelegate(sslContext.getSocketFactory());
+      active = true;
+    }
   }
 
+  /**
+   * Restores the socket factory of the current thread, e.g. for connections which are opened to fill the pool.
+   */
+  void deactivate() {
+    if (active) {
+      ThreadLocalSocketFactory.restoreDelegate(previousSocketFactory);
+      previousSocketFactory = null;
+      active = false;
+    }
+  }
+
+  /**
+   * Returns the connection to its pool or closes it, if the connection is not pooled. Further calls are ignored, until
+   * the connection is borrowed again, so that the connection is never returned twice.
+   */
   @Override
   public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      logger.debug("connection was already closed");
+      return;
+    }
+    deactivate();
+    if (pool != null) {
+      pool.release(this);
+    } else {
+      destroy();
+    }
+  }
+
+  /**
+   * Closes the underlying context, regardless if the connection is pooled or not.
+   */
+  void destroy() {
     LdapUtil.close(tls);
     LdapUtil.close(context);
-    ThreadLocalSocketFactory.clearDelegate();
+  }
+
+  @FunctionalInterface
+  private interface SearchOperation {
+
+    NamingEnumeration<SearchResult> search(LdapContext context) throws NamingException;
+  }
+
+  /**
+   * Handles a single result of a search. Results of paged searches are passed after their page was received, so the
+   * handler may use the connection of the search for further operations.
+   */
+  @FunctionalInterface
+  interface SearchResultHandler {
+
+    void handle(SearchResult result) throws NamingException;
   }
 }
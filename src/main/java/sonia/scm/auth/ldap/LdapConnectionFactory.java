@@ -18,17 +18,49 @@ package sonia.scm.auth.ldap;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.util.Providers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.util.Util;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import javax.naming.CommunicationException;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
+@Singleton
 public class LdapConnectionFactory {
 
+  private static final Logger LOG = LoggerFactory.getLogger(LdapConnectionFactory.class);
+
   private final Provider<SSLContext> sslContextProvider;
+  private final LdapServerSelector serverSelector = new LdapServerSelector();
+  private final Map<PoolKey, LdapConnectionPool> pools = new ConcurrentHashMap<>();
+  /**
+   * connections which are only used to verify user credentials, they are never used for searches
+   */
+  private final Map<PoolKey, LdapConnectionPool> verificationPools = new ConcurrentHashMap<>();
+  /**
+   * opens the connections which fill the pools to their minimum size, so that no caller has to wait for them
+   */
+  private final ExecutorService poolFiller = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "LdapConnectionPoolFiller");
+    thread.setDaemon(true);
+    return thread;
+  });
 
   @Inject
   public LdapConnectionFactory(Provider<SSLContext> sslContextProvider) {
@@ -41,18 +73,222 @@ public class LdapConnectionFactory {
   }
 
   LdapConnection createBindConnection(LdapConfig config) {
-    try {
-      return new LdapConnection(config, sslContextProvider.get(), config.getConnectionDn(), config.getConnectionPassword());
-    } catch (IOException | NamingException ex) {
-      throw new BindConnectionFailedException("failed to create bind connection for " + config.getConnectionDn(), ex);
+    return createBindConnection(config, serverSelector.select(config));
+  }
+
+  /**
+   * Returns a bind connection to the server with the given url, if it is available. Other servers are only used, if
+   * the preferred server can not be reached.
+   */
+  LdapConnection createBindConnection(LdapConfig config, String preferredServerUrl) {
+    List<LdapServer> servers = new ArrayList<>(serverSelector.select(config));
+    for (int i = 1; i < servers.size(); i++) {
+      if (servers.get(i).getUrl().equals(preferredServerUrl)) {
+        servers.add(0, servers.remove(i));
+        break;
+      }
+    }
+    return createBindConnection(config, servers);
+  }
+
+  private LdapConnection createBindConnection(LdapConfig config, List<LdapServer> servers) {
+    return withServer(config, servers, server -> {
+      if (config.isConnectionPoolEnabled()) {
+        return getPool(pools, config, server).borrow();
+      }
+      return openBindConnection(config, server);
+    });
+  }
+
+  /**
+   * Returns a bind connection only if the pool can provide one without waiting. Without pooling, a new connection is
+   * always opened.
+   */
+  Optional<LdapConnection> tryCreateBindConnection(LdapConfig config) {
+    return withServer(config, server -> {
+      if (config.isConnectionPoolEnabled()) {
+        return getPool(pools, config, server).tryBorrow();
+      }
+      return Optional.of(openBindConnection(config, server));
+    });
+  }
+
+  /**
+   * Opens a bind connection without read timeout, which is never pooled. The connection is used to wait for change
+   * notifications of the directory.
+   */
+  LdapConnection createNotificationConnection(LdapConfig config) {
+    return withServer(config, server -> {
+      try {
+        return new LdapConnection(config, server, sslContextProvider.get(), config.getConnectionDn(), config.getConnectionPassword(), 0);
+      } catch (IOException | NamingException ex) {
+        throw new BindConnectionFailedException("failed to create notification connection for " + config.getConnectionDn(), ex);
+      }
+    });
+  }
+
+  /**
+   * Verifies the credentials of the user. If connection pooling and rebind verification are enabled, an already
+   * open connection of a dedicated pool is authenticated again as the user, instead of opening a new connection.
+   */
+  void verifyCredentials(LdapConfig config, String userDn, String password) {
+    if (config.isConnectionPoolEnabled() && config.isVerifyCredentialsByRebind() && Util.isNotEmpty(password)) {
+      withServer(config, server -> {
+        try (LdapConnection connection = getPool(verificationPools, config, server).borrow()) {
+          connection.rebind(userDn, password, config.getConnectionDn(), config.getConnectionPassword());
+          return null;
+        } catch (NamingException ex) {
+          throw new UserAuthenticationFailedException("failed to authenticate user " + userDn, ex);
+        }
+      });
+    } else {
+      try (LdapConnection ignored = createUserConnection(config, userDn, password)) {
+        LOG.trace("opened connection for user {}", userDn);
+      }
     }
   }
 
   LdapConnection createUserConnection(LdapConfig config, String userDn, String password) {
+    return withServer(config, server -> {
+      try {
+        return openConnection(config, server, userDn, password);
+      } catch (IOException | NamingException ex) {
+        throw new UserAuthenticationFailedException("failed to authenticate user " + userDn, ex);
+      }
+    });
+  }
+
+  /**
+   * Executes the operation with the healthiest server. If the server is not reachable, the failure is recorded by its
+   * circuit breaker and the operation is retried with the next server. All other failures are passed to the caller.
+   * If the circuit breakers of all servers are open, the operation fails fast without contacting any server.
+   */
+  private <T> T withServer(LdapConfig config, Function<LdapServer, T> operation) {
+    return withServer(config, serverSelector.select(config), operation);
+  }
+
+  private <T> T withServer(LdapConfig config, List<LdapServer> servers, Function<LdapServer, T> operation) {
+    LdapException lastFailure = null;
+    for (LdapServer server : servers) {
+      if (!server.tryAcquire()) {
+        continue;
+      }
+      try {
+        return operation.apply(server);
+      } catch (LdapException ex) {
+        if (!isServerFailure(ex)) {
+          server.recordResponse();
+          throw ex;
+        }
+        LOG.warn("ldap server {} is not reachable", server.getUrl(), ex);
+        server.recordFailure();
+        lastFailure = ex;
+      }
+    }
+    if (lastFailure == null) {
+      throw new CircuitBreakerOpenException("circuit breaker is open for all ldap servers of " + config.getHostUrl());
+    }
+    throw lastFailure;
+  }
+
+  private boolean isServerFailure(Throwable ex) {
+    Throwable cause = ex;
+    while (cause != null) {
+      if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException || cause instanceof IOException) {
+        return true;
+      }
+      cause = cause.getCause();
+    }
+    return false;
+  }
+
+  private LdapConnectionPool getPool(Map<PoolKey, LdapConnectionPool> poolMap, LdapConfig config, LdapServer server) {
+    evictAbandonedPools(pools);
+    evictAbandonedPools(verificationPools);
+    return poolMap.computeIfAbsent(new PoolKey(config, server), key -> {
+      LOG.debug("create connection pool for {} at {}", config.getConnectionDn(), server.getUrl());
+      // pools are only filled while the server is healthy, trial calls of the circuit breaker are left to callers
+      return new LdapConnectionPool(
+        () -> openBindConnection(config, server),
+        () -> server.getCircuitBreakerState() == LdapCircuitBreaker.State.CLOSED,
+        poolFiller,
+        config
+      );
+    });
+  }
+
+  private void evictAbandonedPools(Map<PoolKey, LdapConnectionPool> poolMap) {
+    poolMap.forEach((key, pool) -> {
+      if (pool.isAbandoned() && poolMap.remove(key, pool)) {
+        LOG.debug("close abandoned connection pool");
+        pool.close();
+      } else {
+        pool.evictIdle();
+      }
+    });
+  }
+
+  private LdapConnection openBindConnection(LdapConfig config, LdapServer server) {
     try {
-      return new LdapConnection(config, sslContextProvider.get(), userDn, password);
+      return openConnection(config, server, config.getConnectionDn(), config.getConnectionPassword());
     } catch (IOException | NamingException ex) {
-      throw new UserAuthenticationFailedException("failed to authenticate user " + userDn, ex);
+      throw new BindConnectionFailedException("failed to create bind connection for " + config.getConnectionDn(), ex);
+    }
+  }
+
+  private LdapConnection openConnection(LdapConfig config, LdapServer server, String userDn, String password) throws IOException, NamingException {
+    long start = System.nanoTime();
+    LdapConnection connection = new LdapConnection(config, server, sslContextProvider.get(), userDn, password);
+    server.recordSuccess(System.nanoTime() - start);
+    return connection;
+  }
+
+  /**
+   * Connections are shared between all configurations which would create an equal connection.
+   */
+  private static final class PoolKey {
+
+    private final String hostUrl;
+    private final String connectionDn;
+    private final String connectionPassword;
+    private final boolean enableStartTls;
+    private final ReferralStrategy referralStrategy;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+
+    private PoolKey(LdapConfig config, LdapServer server) {
+      this.hostUrl = server.getUrl();
+      this.connectionDn = config.getConnectionDn();
+      this.connectionPassword = config.getConnectionPassword();
+      this.enableStartTls = config.isEnableStartTls();
+      this.referralStrategy = config.getReferralStrategy();
+      this.minSize = config.getConnectionPoolMinSize();
+      this.maxSize = config.getConnectionPoolMaxSize();
+      this.borrowTimeout = config.getConnectionPoolBorrowTimeout();
+      this.idleTimeout = config.getConnectionPoolIdleTimeout();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof PoolKey)) return false;
+      PoolKey that = (PoolKey) o;
+      return enableStartTls == that.enableStartTls
+        && minSize == that.minSize
+        && maxSize == that.maxSize
+        && borrowTimeout == that.borrowTimeout
+        && idleTimeout == that.idleTimeout
+        && Objects.equals(hostUrl, that.hostUrl)
+        && Objects.equals(connectionDn, that.connectionDn)
+        && Objects.equals(connectionPassword, that.connectionPassword)
+        && referralStrategy == that.referralStrategy;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(hostUrl, connectionDn, enableStartTls, referralStrategy, minSize, maxSize);
     }
   }
 
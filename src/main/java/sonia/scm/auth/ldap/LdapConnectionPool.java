@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of authenticated connections for a single server and bind identity.
+ * Idle connections are handed out last in first out, connections which were idle for a while are validated before
+ * they are reused and connections which exceed the idle timeout are evicted, as long as the pool keeps its minimum
+ * size. Connections for the minimum size are opened in the background, so that released connections never wait for
+ * new connections.
+ */
+class LdapConnectionPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapConnectionPool.class);
+
+  /**
+   * idle connections are validated before they are borrowed again, if they were idle longer than 10sec
+   */
+  private static final long VALIDATE_AFTER_IDLE = TimeUnit.SECONDS.toMillis(10);
+
+  private final Supplier<LdapConnection> connectionCreator;
+  private final BooleanSupplier fillPermitted;
+  private final Executor fillExecutor;
+  private final LongSupplier clock;
+  private final int minSize;
+  private final int maxSize;
+  private final long borrowTimeout;
+  private final long idleTimeout;
+
+  private final Semaphore permits;
+  private final Deque<IdleConnection> idle = new ArrayDeque<>();
+
+  private final AtomicBoolean filling = new AtomicBoolean();
+
+  private boolean closed = false;
+  private volatile long lastUsed;
+
+  /**
+   * @param fillPermitted  returns {@code false} if no connections should be opened to fill the pool, e.g. because the
+   *                       server is not healthy
+   * @param fillExecutor   executes the opening of connections to fill the pool
+   */
+  LdapConnectionPool(Supplier<LdapConnection> connectionCreator, BooleanSupplier fillPermitted, Executor fillExecutor, LdapConfig config) {
+    this(connectionCreator, fillPermitted, fillExecutor, System::currentTimeMillis, config.getConnectionPoolMinSize(),
+      config.getConnectionPoolMaxSize(), config.getConnectionPoolBorrowTimeout(),
+      TimeUnit.SECONDS.toMillis(config.getConnectionPoolIdleTimeout()));
+  }
+
+  LdapConnectionPool(Supplier<LdapConnection> connectionCreator, BooleanSupplier fillPermitted, Executor fillExecutor, LongSupplier clock, int minSize, int maxSize, long borrowTimeout, long idleTimeout) {
+    this.connectionCreator = connectionCreator;
+    this.fillPermitted = fillPermitted;
+    this.fillExecutor = fillExecutor;
+    this.clock = clock;
+    this.minSize = Math.max(0, minSize);
+    this.borrowTimeout = Math.max(0, borrowTimeout);
+    this.idleTimeout = idleTimeout;
+    this.maxSize = Math.max(1, maxSize);
+    this.permits = new Semaphore(this.maxSize, true);
+    this.lastUsed = clock.getAsLong();
+  }
+
+  LdapConnection borrow() {
+    acquirePermit();
+    return borrowWithPermit();
+  }
+
+  /**
+   * Borrows a connection only if one is available without waiting for another borrower to release its connection.
+   */
+  Optional<LdapConnection> tryBorrow() {
+    if (!permits.tryAcquire()) {
+      return Optional.empty();
+    }
+    return Optional.of(borrowWithPermit());
+  }
+
+  private LdapConnection borrowWithPermit() {
+    lastUsed = clock.getAsLong();
+    try {
+      LdapConnection connection = pollUsableConnection();
+      if (connection == null) {
+        LOG.trace("no idle connection available, open new pooled connection");
+        connection = connectionCreator.get();
+        connection.attachTo(this);
+      }
+      connection.activate();
+      return connection;
+    } catch (RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+  }
+
+  private void acquirePermit() {
+    try {
+      if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+        throw new BindConnectionFailedException("timeout after " + borrowTimeout + "ms waiting for a pooled ldap connection");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new BindConnectionFailedException("interrupted while waiting for a pooled ldap connection", ex);
+    }
+  }
+
+  private LdapConnection pollUsableConnection() {
+    IdleConnection candidate = pollIdle();
+    while (candidate != null) {
+      long idleTime = clock.getAsLong() - candidate.since;
+      if (idleTime > idleTimeout) {
+        LOG.trace("discard expired pooled connection");
+        candidate.connection.destroy();
+      } else if (idleTime > VALIDATE_AFTER_IDLE && !candidate.connection.isValid()) {
+        LOG.debug("discard pooled connection, which failed validation");
+        candidate.connection.destroy();
+      } else {
+        return candidate.connection;
+      }
+      candidate = pollIdle();
+    }
+    return null;
+  }
+
+  void release(LdapConnection connection) {
+    try {
+      if (connection.isBroken() || !pushIdle(new IdleConnection(connection, clock.getAsLong()))) {
+        LOG.trace("destroy connection instead of returning it to the pool");
+        connection.destroy();
+      }
+    } finally {
+      permits.release();
+    }
+    evictIdle();
+    fillToMinSize();
+  }
+
+  /**
+   * Closes idle connections which have exceeded the idle timeout, without shrinking the pool below its minimum size.
+   */
+  void evictIdle() {
+    long now = clock.getAsLong();
+    List<IdleConnection> evicted = new ArrayList<>();
+    synchronized (idle) {
+      while (idle.size() > minSize && now - idle.peekLast().since > idleTimeout) {
+        evicted.add(idle.pollLast());
+      }
+    }
+    if (!evicted.isEmpty()) {
+      LOG.debug("evict {} idle ldap connections", evicted.size());
+      evicted.forEach(c -> c.connection.destroy());
+    }
+  }
+
+  /**
+   * Opens idle connections in the background until the pool holds its minimum size, so that the next borrowers do not
+   * have to wait for new connections. Borrowed connections count towards the minimum size. Filling stops at the first
+   * failure and as long as filling is not permitted.
+   */
+  void fillToMinSize() {
+    if (!needsConnection() || !fillPermitted.getAsBoolean() || !filling.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      fillExecutor.execute(() -> {
+        try {
+          fill();
+        } finally {
+          filling.set(false);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOG.debug("could not schedule filling of the pool", ex);
+      filling.set(false);
+    }
+  }
+
+  private void fill() {
+    while (needsConnection() && fillPermitted.getAsBoolean()) {
+      LdapConnection connection;
+      try {
+        connection = connectionCreator.get();
+      } catch (RuntimeException ex) {
+        LOG.debug("could not open connection to fill the pool", ex);
+        return;
+      }
+      connection.attachTo(this);
+      // the connection was not opened for the current thread
+      connection.deactivate();
+      if (!pushIdle(new IdleConnection(connection, clock.getAsLong()))) {
+        connection.destroy();
+        return;
+      }
+    }
+  }
+
+  private boolean needsConnection() {
+    synchronized (idle) {
+      int borrowed = maxSize - permits.availablePermits();
+      return !closed && idle.size() + borrowed < Math.min(minSize, maxSize);
+    }
+  }
+
+  /**
+   * Returns {@code true} if the pool was not used for longer than the idle timeout.
+   */
+  boolean isAbandoned() {
+    return clock.getAsLong() - lastUsed > idleTimeout;
+  }
+
+  void close() {
+    List<IdleConnection> connections;
+    synchronized (idle) {
+      closed = true;
+      connections = new ArrayList<>(idle);
+      idle.clear();
+    }
+    connections.forEach(c -> c.connection.destroy());
+  }
+
+  int getIdleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  private IdleConnection pollIdle() {
+    synchronized (idle) {
+      return idle.pollFirst();
+    }
+  }
+
+  private boolean pushIdle(IdleConnection connection) {
+    synchronized (idle) {
+      return !closed && idle.offerFirst(connection);
+    }
+  }
+
+  private static class IdleConnection {
+
+    private final LdapConnection connection;
+    private final long since;
+
+    private IdleConnection(LdapConnection connection, long since) {
+      this.connection = connection;
+      this.since = since;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.auth.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A distinguished name, which was parsed according to RFC 4514. Besides the name of the entry, the dn holds a
+ * normalized form, in which attribute types and values are lower case, escaping is canonical and multi-valued rdns
+ * are sorted. Parsed dns are interned in a bounded table, because the same group dns are used for every user.
+ * Interned dns must not be compared by identity, because evicted dns are parsed again.
+ * Strings which are no valid dn are split at the first equal sign and comma.
+ */
+final class LdapDn {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapDn.class);
+
+  /**
+   * upper limit for the number of interned dns, the least recently used dns are evicted if the limit is exceeded
+   */
+  private static final int MAX_ENTRIES = 10000;
+
+  private static final Cache<String, LdapDn> INTERNED = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+
+  private final String name;
+  private final String normalized;
+  /**
+   * start of each rdn in the normalized form, the first rdn starts at zero
+   */
+  private final int[] rdnOffsets;
+
+  private LdapDn(String name, String normalized, int[] rdnOffsets) {
+    this.name = name;
+    this.normalized = normalized;
+    this.rdnOffsets = rdnOffsets;
+  }
+
+  /**
+   * Returns the parsed dn from the intern table or parses and interns it.
+   */
+  static LdapDn of(String dn) {
+    LdapDn parsed = INTERNED.getIfPresent(dn);
+    if (parsed == null) {
+      // concurrent callers may parse the same dn, the last one wins
+      parsed = parse(dn);
+      INTERNED.put(dn, parsed);
+    }
+    return parsed;
+  }
+
+  static String normalize(String dn) {
+    return of(dn).getNormalized();
+  }
+
+  static LdapDn parse(String dn) {
+    LdapName ldapName;
+    try {
+      ldapName = new LdapName(dn);
+    } catch (InvalidNameException | IllegalArgumentException ex) {
+      LOG.trace("{} is no valid dn", dn, ex);
+      return parseLenient(dn);
+    }
+    List<Rdn> rdns = ldapName.getRdns();
+    if (rdns.isEmpty()) {
+      return new LdapDn(dn, "", new int[]{0});
+    }
+    // the rdns of the ldap name are ordered from right to left
+    StringBuilder normalized = new StringBuilder(dn.length());
+    int[] offsets = new int[rdns.size()];
+    for (int i = rdns.size() - 1; i >= 0; i--) {
+      if (i < rdns.size() - 1) {
+        normalized.append(',');
+      }
+      offsets[rdns.size() - 1 - i] = normalized.length();
+      normalized.append(rdns.get(i).toString().toLowerCase(Locale.ENGLISH));
+    }
+    Object value = rdns.get(rdns.size() - 1).getValue();
+    String name = value instanceof String ? (String) value : Rdn.escapeValue(value);
+    return new LdapDn(name, normalized.toString(), offsets);
+  }
+
+  private static LdapDn parseLenient(String dn) {
+    String name = dn;
+    int start = dn.indexOf('=');
+    if (start > 0) {
+      int end = dn.indexOf(',');
+      name = end > 0 ? dn.substring(start + 1, end) : dn.substring(start + 1);
+    }
+    String normalized = dn.toLowerCase(Locale.ENGLISH);
+    int parent = normalized.indexOf(',');
+    return new LdapDn(name, normalized, parent > 0 ? new int[]{0, parent + 1} : new int[]{0});
+  }
+
+  /**
+   * Returns the value of the first rdn, e.g. the common name of a group. For multi-valued rdns the value of the first
+   * attribute type in sort order is returned.
+   */
+  String getName() {
+    return name;
+  }
+
+  String getNormalized() {
+    return normalized;
+  }
+
+  /**
+   * Returns {@code true} if the entry is located below the entry with the given normalized dn.
+   */
+  boolean isDescendantOf(String normalizedAncestor) {
+    // only the suffixes at rdn boundaries are compared, so escaped commas of values do not match
+    for (int i = 1; i < rdnOffsets.length; i++) {
+      int length = normalized.length() - rdnOffsets[i];
+      if (length <= normalizedAncestor.length()) {
+        return length == normalizedAncestor.length() && normalized.startsWith(normalizedAncestor, rdnOffsets[i]);
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    return normalized.equals(((LdapDn) o).normalized);
+  }
+
+  @Override
+  public int hashCode() {
+    return normalized.hashCode();
+  }
+
+  @VisibleForTesting
+  static long getInternedCount() {
+    return INTERNED.size();
+  }
+}
@@ -16,69 +16,156 @@
 
 package sonia.scm.auth.ldap;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.inject.util.Providers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sonia.scm.cache.Cache;
+import sonia.scm.cache.CacheManager;
 import sonia.scm.group.GroupResolver;
 import sonia.scm.plugin.Extension;
-import sonia.scm.util.Util;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
-import javax.naming.NamingEnumeration;
+import jakarta.inject.Singleton;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Locale;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.toSet;
-import static sonia.scm.auth.ldap.LdapUtil.close;
 import static sonia.scm.auth.ldap.LdapUtil.getAttribute;
 
+@Singleton
 @Extension
 public class LdapGroupResolver implements GroupResolver {
 
+  /**
+   * cache for the resolved groups of a principal, size and expiration are configured in gcache.xml
+   */
+  static final String CACHE_NAME = "sonia.scm.ldap.groups";
+
+  /**
+   * cache for principals, which could not be found in the directory, e.g. local users
+   */
+  static final String UNKNOWN_PRINCIPALS_CACHE_NAME = "sonia.scm.ldap.unknownPrincipals";
+
   private static final Logger LOG = LoggerFactory.getLogger(LdapGroupResolver.class);
 
   private static final String ATTRIBUTE_GROUP_NAME = "cn";
-  private static final String NESTEDGROUP_MATCHINGRULE = ":1.2.840.113556.1.4.1941:=";
+
+  /**
+   * upper limit for concurrent nested group searches, regardless of the configured parallelism
+   */
+  private static final int MAX_PARALLELISM = 16;
 
   private final Provider<LdapConfig> store;
   private final LdapConnectionFactory ldapConnectionFactory;
+  private final Cache<String, Set<String>> cache;
+  private final Cache<String, Boolean> unknownPrincipals;
+  private final GroupParentCache parentCache;
+  private final GroupSnapshotIndex snapshotIndex;
+  private final UserEntryCache userEntryCache;
+  private final LdapChangeListener changeListener;
+  private final TokenGroupResolver tokenGroupResolver;
+  private final GroupResolutionStrategy attributeStrategy = new AttributeGroupResolutionStrategy();
+  private final ExecutorService executor = createExecutor();
+  private final SingleFlight<String, Set<String>> resolutions = new SingleFlight<>();
 
   @Inject
-  public LdapGroupResolver(LdapConfigStore store, LdapConnectionFactory ldapConnectionFactory) {
-    this((Provider<LdapConfig>) store, ldapConnectionFactory);
+  public LdapGroupResolver(LdapConfigStore store, LdapConnectionFactory ldapConnectionFactory, CacheManager cacheManager) {
+    this(store, ldapConnectionFactory, cacheManager.getCache(CACHE_NAME), cacheManager.getCache(UNKNOWN_PRINCIPALS_CACHE_NAME), new GroupParentCache(cacheManager), cacheManager.getCache(TokenGroupResolver.CACHE_NAME), new UserEntryCache(cacheManager), true);
+  }
+
+  @VisibleForTesting
+  LdapGroupResolver(LdapConfigStore store, LdapConnectionFactory ldapConnectionFactory) {
+    this(store, ldapConnectionFactory, null, null, null, null, null, true);
   }
 
-  private LdapGroupResolver(Provider<LdapConfig> store, LdapConnectionFactory ldapConnectionFactory) {
+  private LdapGroupResolver(Provider<LdapConfig> store, LdapConnectionFactory ldapConnectionFactory, Cache<String, Set<String>> cache, Cache<String, Boolean> unknownPrincipals, GroupParentCache parentCache, Cache<String, String> sidCache, UserEntryCache userEntryCache, boolean snapshotSupported) {
     this.store = store;
+    this.tokenGroupResolver = new TokenGroupResolver(sidCache);
     this.ldapConnectionFactory = ldapConnectionFactory;
+    this.cache = cache;
+    this.unknownPrincipals = unknownPrincipals;
+    this.parentCache = parentCache;
+    this.userEntryCache = userEntryCache;
+    this.snapshotIndex = snapshotSupported ? new GroupSnapshotIndex(ldapConnectionFactory, this::invalidateCaches) : null;
+    // without caches there is nothing to invalidate
+    this.changeListener = cache != null ? new LdapChangeListener(ldapConnectionFactory, this::onEntryChanged, this::invalidateCaches) : null;
   }
 
+  /**
+   * Creates a resolver for the given configuration, which does not use the caches and the group snapshot.
+   */
   public static LdapGroupResolver from(LdapConnectionFactory ldapConnectionFactory, LdapConfig config) {
-    return new LdapGroupResolver(Providers.of(config), ldapConnectionFactory);
+    return new LdapGroupResolver(Providers.of(config), ldapConnectionFactory, null, null, null, null, null, false);
+  }
+
+  private static ExecutorService createExecutor() {
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      MAX_PARALLELISM, MAX_PARALLELISM, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+      runnable -> {
+        Thread thread = new Thread(runnable, "LdapNestedGroupSearch-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    );
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   @Override
   public Set<String> resolve(String principal) {
     LdapConfig config = store.get();
+    if (changeListener != null) {
+      changeListener.update(config);
+    }
     if (config.isEnabled()) {
+      if (unknownPrincipals != null && unknownPrincipals.contains(principal)) {
+        LOG.trace("principal {} is known to be missing in the directory", principal);
+        return Collections.emptySet();
+      }
+      if (cache != null) {
+        Set<String> cached = cache.get(principal);
+        if (cached != null) {
+          LOG.trace("return cached groups for principal {}", principal);
+          return cached;
+        }
+      }
       try {
-        return sanitizeGroupNames(resolveGroups(config, principal), config);
+        // concurrent requests for the same principal share a single resolution
+        return resolutions.execute(principal, () -> {
+          Set<String> groups = Collections.unmodifiableSet(sanitizeGroupNames(resolveGroups(config, principal), config));
+          if (cache != null) {
+            cache.put(principal, groups);
+          }
+          return groups;
+        });
+      } catch (CircuitBreakerOpenException ex) {
+        LOG.warn("failed to resolve groups for principal {}: {}", principal, ex.getMessage());
       } catch (LdapException ex) {
         LOG.warn("failed to resolve groups for principal: {}", principal, ex);
       }
@@ -98,227 +185,492 @@ public class LdapGroupResolver implements GroupResolver {
 
   private Set<String> resolveGroups(LdapConfig config, String principal) {
     try (LdapConnection bindConnection = ldapConnectionFactory.createBindConnection(config)) {
-      UserSearcher searcher = new UserSearcher(config, bindConnection);
-      Optional<SearchResult> optionalSearchResult = searcher.search(principal, config.getAttributeNameGroup(), config.getAttributeNameMail());
+      LdapQueryPlan plan = LdapQueryPlan.of(config);
+      UserSearcher searcher = new UserSearcher(plan, bindConnection);
+      GroupResolution resolution = groupResolution(config);
+      // the group attribute may contain thousands of values, so it is only read if it is used
+      boolean readGroupAttribute = resolution == GroupResolution.ATTRIBUTE || resolution == GroupResolution.BOTH;
+      Optional<SearchResult> optionalSearchResult = searcher.search(principal, plan.getGroupResolutionAttributes(readGroupAttribute));
       if (optionalSearchResult.isPresent()) {
         SearchResult searchResult = optionalSearchResult.get();
 
         Attributes attributes = searchResult.getAttributes();
         String userDn = searchResult.getNameInNamespace();
         String mailAttribute = getAttribute(attributes, config.getAttributeNameMail());
-        Set<String> groups = new HashSet<>();
-        groups.addAll(fetchGroups(bindConnection, userDn, principal, mailAttribute));
-        groups.addAll(getGroups(attributes));
-        if(config.isEnableNestedGroups()){
-          groups = computeRecursiveGroups(bindConnection, groups);
+        GroupResolutionStrategy.User user = new GroupResolutionStrategy.User(userDn, principal, mailAttribute, attributes);
+
+        Optional<GroupSnapshot> snapshot = getSnapshot(config);
+        GroupResolutionStrategy strategy = createStrategy(resolution, snapshot);
+        LOG.trace("resolve groups of {} with {}", principal, resolution);
+        Set<String> groups = strategy.resolve(bindConnection, config, user);
+        if (!strategy.isTransitive()) {
+          if (snapshot.isPresent()) {
+            groups = snapshot.get().withParents(groups);
+          } else if (config.isEnableNestedGroups()) {
+            groups = computeRecursiveGroups(bindConnection, config, groups);
+          }
         }
-        Predicate<String> unitFilter = unitFilter(config);
+        Predicate<String> unitFilter = unitFilter(config, plan);
         return groups.stream()
           .filter(unitFilter)
           .map(LdapUtil::getName)
           .collect(Collectors.toSet());
       }
     }
+    if (unknownPrincipals != null) {
+      // e.g. local users, which would otherwise be searched on every request
+      LOG.debug("principal {} not found in directory", principal);
+      unknownPrincipals.put(principal, Boolean.TRUE);
+    }
     return Collections.emptySet();
   }
 
-  private Predicate<String> unitFilter(LdapConfig config) {
+  private GroupResolution groupResolution(LdapConfig config) {
+    GroupResolution resolution = config.getGroupResolution();
+    return resolution != null ? resolution : GroupResolution.BOTH;
+  }
+
+  private GroupResolutionStrategy createStrategy(GroupResolution resolution, Optional<GroupSnapshot> snapshot) {
+    GroupResolutionStrategy search = (connection, config, user) -> searchGroups(connection, config, user, snapshot);
+    switch (resolution) {
+      case ATTRIBUTE:
+        return attributeStrategy;
+      case SEARCH:
+        return search;
+      case TOKEN_GROUPS:
+        return tokenGroupResolver;
+      default:
+        return GroupResolutionStrategy.both(search, attributeStrategy);
+    }
+  }
+
+  /**
+   * Finds the groups with the group search filter or in the snapshot of all groups, if it is available.
+   */
+  private Set<String> searchGroups(LdapConnection connection, LdapConfig config, GroupResolutionStrategy.User user, Optional<GroupSnapshot> snapshot) {
+    if (snapshot.isPresent()) {
+      LOG.trace("search groups of {} in snapshot", user.getPrincipal());
+      return snapshot.get().getGroups(user.getDn(), user.getPrincipal(), user.getMail());
+    }
+    return fetchGroups(connection, config, user.getDn(), user.getPrincipal(), user.getMail());
+  }
+
+  /**
+   * Returns the snapshot of all groups, if snapshots are enabled and a snapshot is already loaded.
+   */
+  private Optional<GroupSnapshot> getSnapshot(LdapConfig config) {
+    if (snapshotIndex != null && config.isGroupSnapshotEnabled()) {
+      return snapshotIndex.get(config);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Groups have changed in the directory, so the cached results are outdated.
+   */
+  private void invalidateCaches() {
+    if (cache != null) {
+      cache.clear();
+    }
+    if (parentCache != null) {
+      parentCache.clear();
+    }
+  }
+
+  /**
+   * Removes the cached results, which are affected by a changed entry of the directory. For a changed group these are
+   * the memberships of all principals which are cached with the group and the cached parents of its members. For a
+   * changed user these are the memberships and the cached entry of the user.
+   */
+  @VisibleForTesting
+  void onEntryChanged(LdapConfig config, SearchResult entry) {
+    String dn = entry.getNameInNamespace();
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+    if (isBelow(plan.getNormalizedGroupBaseDn(), dn)) {
+      LOG.debug("invalidate cached memberships of changed group {}", dn);
+      invalidateGroup(config, dn, entry.getAttributes());
+    }
+    if (isBelow(plan.getNormalizedUserBaseDn(), dn)) {
+      String principal = getAttribute(entry.getAttributes(), config.getAttributeNameId());
+      if (userEntryCache != null) {
+        LOG.debug("remove cached entry of changed user {}", dn);
+        userEntryCache.removeChanged(dn, principal);
+      }
+      if (principal != null && cache != null) {
+        LOG.debug("invalidate cached memberships of changed user {}", dn);
+        cache.removeAll(key -> key.equalsIgnoreCase(principal));
+        if (unknownPrincipals != null) {
+          // the user could have been created
+          unknownPrincipals.removeAll(key -> key.equalsIgnoreCase(principal));
+        }
+      }
+    }
+  }
+
+  private void invalidateGroup(LdapConfig config, String groupDN, Attributes attributes) {
+    if (cache != null) {
+      Set<String> names = sanitizeGroupNames(Collections.singleton(LdapUtil.getName(groupDN)), config);
+      cache.removeAll(principal -> {
+        Set<String> groups = cache.get(principal);
+        return groups != null && !Collections.disjoint(groups, names);
+      });
+    }
+    if (parentCache != null) {
+      // removed children are still cached with the group as parent, added children are members of the group now
+      parentCache.removeParent(groupDN);
+      if (config.isEnableNestedGroups()) {
+        MembershipAttribute.parse(config.getSearchFilterNestedGroup())
+          .filter(attribute -> attribute.getArgument() == 0)
+          .ifPresent(attribute -> removeChildren(attributes.get(attribute.getName())));
+      }
+    }
+  }
+
+  private void removeChildren(Attribute children) {
+    if (children != null) {
+      try (AutoCloseableNamingEnumeration<?> values = new AutoCloseableNamingEnumeration<>(children.getAll())) {
+        while (values.hasMore()) {
+          parentCache.remove(String.valueOf(values.next()));
+        }
+      } catch (NamingException ex) {
+        LOG.warn("could not read children of changed group, clear all cached parents", ex);
+        parentCache.clear();
+      }
+    }
+  }
+
+  private boolean isBelow(String normalizedUnitDN, String dn) {
+    return LdapDn.of(dn).isDescendantOf(normalizedUnitDN);
+  }
+
+  @VisibleForTesting
+  GroupSnapshotIndex getSnapshotIndex() {
+    return snapshotIndex;
+  }
+
+  private Predicate<String> unitFilter(LdapConfig config, LdapQueryPlan plan) {
     if (config.isExcludeGroupsOutsideUnit() && !Strings.isNullOrEmpty(config.getUnitGroup())) {
-      String groupsUnit = LdapUtil.createDN(config, config.getUnitGroup()).toLowerCase(Locale.ENGLISH);
-      return dn -> {
-        String parent = LdapUtil.getParentDN(dn).toLowerCase(Locale.ENGLISH);
-        return parent.endsWith(groupsUnit);
-      };
+      String groupsUnit = plan.getNormalizedGroupBaseDn();
+      return dn -> LdapDn.of(dn).isDescendantOf(groupsUnit);
     }
     return dn -> true;
   }
 
-  private Set<String> computeRecursiveGroups(LdapConnection connection, Set<String> groups) {
-    //queue for yet to recursively searched groups
-    Queue<String> toSearch = new LinkedList<>(groups);
+  private Set<String> computeRecursiveGroups(LdapConnection connection, LdapConfig config, Set<String> groups) {
     //the result set
     Set<String> found = new HashSet<>(groups);
+    //groups of the current level, which are yet to be searched
+    List<String> frontier = new ArrayList<>(groups);
 
     LOG.trace("fetching recursive defined groups");
 
-    //loop until fixpoint is reached
-    while(!toSearch.isEmpty()) {
-      String groupDN = toSearch.poll();
+    EdgeStatistics statistics = new EdgeStatistics();
 
-      Optional<String> nestedFilter = createNestedGroupSearchFilter(groupDN);
-      Set<String> currentGroups = new HashSet<>();
-      if(nestedFilter.isPresent()) {
-        currentGroups = fetchGroupByFilter(connection, nestedFilter.get());
-      }
-      for (String group : currentGroups) {
-        if (!found.contains(group)) {
-          toSearch.add(group);
-          found.add(group);
+    //loop level by level until fixpoint is reached
+    while (!frontier.isEmpty()) {
+      Map<String, Set<String>> parents = fetchParentGroups(connection, config, frontier, statistics);
+      List<String> nextFrontier = new ArrayList<>();
+      for (Set<String> currentGroups : parents.values()) {
+        for (String group : currentGroups) {
+          if (found.add(group)) {
+            nextFrontier.add(group);
+          }
         }
       }
+      frontier = nextFrontier;
+    }
+
+    LOG.debug("resolved nested groups with {} cached and {} fetched edges in {} searches",
+      statistics.cached, statistics.fetched, statistics.searches);
+    if (parentCache != null) {
+      LOG.trace("nested group edges served from cache: {}, fetched from directory: {}",
+        parentCache.getHitCount(), parentCache.getMissCount());
     }
     return found;
   }
 
-  private Set<String> getGroups(Attributes attributes) {
-    Set<String> groups = new HashSet<>();
-
-    LdapConfig config = store.get();
-    String groupAttribute = config.getAttributeNameGroup();
+  /**
+   * Returns the parents of each group of the frontier. Parents are taken from the shared cache, if possible.
+   * The remaining groups are searched one by one or, if batching is enabled, with one search per chunk of groups.
+   */
+  private Map<String, Set<String>> fetchParentGroups(LdapConnection connection, LdapConfig config, List<String> frontier, EdgeStatistics statistics) {
+    Map<String, Set<String>> parents = new HashMap<>();
+    List<String> missing = new ArrayList<>();
+    for (String groupDN : frontier) {
+      Set<String> cached = parentCache != null ? parentCache.get(groupDN) : null;
+      if (cached != null) {
+        statistics.cached++;
+        parents.put(groupDN, cached);
+      } else {
+        missing.add(groupDN);
+      }
+    }
+    statistics.fetched += missing.size();
 
-    if (Util.isNotEmpty(groupAttribute)) {
-      LOG.trace("try to get groups from group attribute {}", groupAttribute);
-      NamingEnumeration<?> userGroupsEnm = null;
+    int parallelism = getParallelism(config);
+    if (parallelism > 1 && missing.size() > 1) {
+      parents.putAll(searchParentGroupsConcurrently(connection, config, missing, parallelism, statistics));
+    } else {
+      parents.putAll(searchParentGroups(connection, config, missing, statistics));
+    }
+    return parents;
+  }
 
-      try {
-        Attribute groupsAttribute = attributes.get(groupAttribute);
-        if (groupsAttribute != null) {
-          userGroupsEnm = groupsAttribute.getAll();
+  /**
+   * Returns the number of concurrent searches for the nested groups. With connection pooling the calling thread
+   * already holds one connection of the pool, so at most the remaining connections are used.
+   */
+  private int getParallelism(LdapConfig config) {
+    int parallelism = Math.min(config.getNestedGroupParallelism(), MAX_PARALLELISM);
+    if (config.isConnectionPoolEnabled()) {
+      parallelism = Math.min(parallelism, config.getConnectionPoolMaxSize());
+    }
+    return parallelism;
+  }
 
-          while (userGroupsEnm.hasMore()) {
-            String group = (String) userGroupsEnm.next();
+  /**
+   * Splits the groups into partitions, which are searched concurrently with separate connections. The first partition
+   * is searched by the calling thread with its own connection. Concurrent searches never wait for a pooled connection,
+   * partitions which could not get one or which failed are searched afterwards by the calling thread, so that the
+   * result is the same as the one of a sequential search. If the calling thread is interrupted, the outstanding
+   * searches are cancelled and the resolution fails.
+   */
+  private Map<String, Set<String>> searchParentGroupsConcurrently(LdapConnection connection, LdapConfig config, List<String> groups, int parallelism, EdgeStatistics statistics) {
+    int partitionSize = Math.max((groups.size() + parallelism - 1) / parallelism, config.getNestedGroupBatchSize());
+    List<List<String>> partitions = Lists.partition(groups, Math.max(1, partitionSize));
+
+    List<Future<Map<String, Set<String>>>> futures = new ArrayList<>();
+    List<EdgeStatistics> partitionStatistics = new ArrayList<>();
+    for (List<String> partition : partitions.subList(1, partitions.size())) {
+      EdgeStatistics partitionStatistic = new EdgeStatistics();
+      partitionStatistics.add(partitionStatistic);
+      futures.add(executor.submit(() -> searchParentGroupsWithOwnConnection(config, partition, partitionStatistic)));
+    }
 
-            LOG.debug("append group {} to user result", group);
-            groups.add(group);
-          }
+    try {
+      Map<String, Set<String>> parents = new HashMap<>(searchParentGroups(connection, config, partitions.get(0), statistics));
+      for (int i = 0; i < futures.size(); i++) {
+        List<String> partition = partitions.get(i + 1);
+        Map<String, Set<String>> partitionParents = awaitPartition(futures.get(i));
+        if (partitionParents != null) {
+          parents.putAll(partitionParents);
+          statistics.searches += partitionStatistics.get(i).searches;
         } else {
-          LOG.debug("user has no group attributes assigned");
+          parents.putAll(searchParentGroups(connection, config, partition, statistics));
         }
-      } catch (NamingException ex) {
-        LOG.warn("could not read group attribute", ex);
-      } finally {
-        close(userGroupsEnm);
+      }
+      return parents;
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Searches the partition with a connection of its own, returns {@code null} if no connection is available without
+   * waiting.
+   */
+  private Map<String, Set<String>> searchParentGroupsWithOwnConnection(LdapConfig config, List<String> groups, EdgeStatistics statistics) {
+    Optional<LdapConnection> borrowed = ldapConnectionFactory.tryCreateBindConnection(config);
+    if (!borrowed.isPresent()) {
+      LOG.trace("no free connection for concurrent nested group search, partition is searched by the caller");
+      return null;
+    }
+    try (LdapConnection partitionConnection = borrowed.get()) {
+      return searchParentGroups(partitionConnection, config, groups, statistics);
+    }
+  }
+
+  private Map<String, Set<String>> awaitPartition(Future<Map<String, Set<String>>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new UserSearchFailedException("interrupted while waiting for nested group search", ex);
+    } catch (ExecutionException ex) {
+      LOG.debug("concurrent nested group search failed, search sequential", ex.getCause());
+      return null;
+    }
+  }
+
+  private Map<String, Set<String>> searchParentGroups(LdapConnection connection, LdapConfig config, List<String> groups, EdgeStatistics statistics) {
+    Map<String, Set<String>> parents = new HashMap<>();
+    int batchSize = config.getNestedGroupBatchSize();
+    Optional<MembershipAttribute> membershipAttribute = MembershipAttribute.parse(config.getSearchFilterNestedGroup());
+    if (batchSize > 1 && !membershipAttribute.isPresent()) {
+      LOG.debug("could not find membership attribute in nested group filter, batching is not possible");
+    }
+    if (batchSize > 1 && groups.size() > 1 && membershipAttribute.isPresent()) {
+      for (List<String> chunk : Lists.partition(groups, batchSize)) {
+        statistics.searches++;
+        parents.putAll(fetchParentGroups(connection, config, chunk, membershipAttribute.get()));
       }
     } else {
-      LOG.debug("group attribute is empty");
+      for (String groupDN : groups) {
+        statistics.searches++;
+        parents.put(groupDN, fetchParentGroups(connection, config, groupDN));
+      }
+    }
+    return parents;
+  }
+
+  private Set<String> fetchParentGroups(LdapConnection connection, LdapConfig config, String groupDN) {
+    Optional<String> nestedFilter = createNestedGroupSearchFilter(config, groupDN);
+    if (!nestedFilter.isPresent()) {
+      return Collections.emptySet();
+    }
+    try {
+      Set<String> parents = searchGroupDns(connection, config, nestedFilter.get());
+      if (parentCache != null) {
+        parentCache.put(groupDN, parents);
+      }
+      return parents;
+    } catch (NamingException ex) {
+      // failed searches are not cached
+      LOG.debug("could not find groups", ex);
+      return Collections.emptySet();
     }
-    return groups;
   }
 
-  private Set<String> fetchGroups(LdapConnection connection, String userDN, String uid, String mail) {
+  /**
+   * Searches the parents of all groups of the chunk with a single or-combined filter. The membership attribute is
+   * requested with the results, to find out which result is a parent of which group of the chunk.
+   */
+  private Map<String, Set<String>> fetchParentGroups(LdapConnection connection, LdapConfig config, List<String> chunk, MembershipAttribute membershipAttribute) {
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+    Map<String, List<String>> groupsByMember = new HashMap<>();
+    // the filters of the groups are appended to a single buffer
+    StringBuilder filter = new StringBuilder("(|");
+    for (String groupDN : chunk) {
+      String groupCN = LdapUtil.getName(groupDN);
+      if (!plan.appendNestedGroupFilter(filter, groupDN, groupCN)) {
+        LOG.debug("search-filter for groups not defined");
+        return Collections.emptyMap();
+      }
+      groupsByMember.computeIfAbsent(membershipAttribute.memberValue(groupDN, groupCN), key -> new ArrayList<>()).add(groupDN);
+    }
+    filter.append(')');
+
+    Map<String, Set<String>> parents = new HashMap<>();
+    chunk.forEach(groupDN -> parents.put(groupDN, new HashSet<>()));
+    List<RangedAttributeReader.PendingRange> pendingRanges = new ArrayList<>();
+    try {
+      searchGroup(connection, config, filter.toString(), searchResult -> {
+        String parentDN = searchResult.getNameInNamespace();
+        RangedAttributeReader.PendingRange pendingRange = RangedAttributeReader.forEachValueOfFirstRange(parentDN, searchResult.getAttributes(), membershipAttribute.getName(), member -> {
+          List<String> children = groupsByMember.get(membershipAttribute.normalize(member));
+          if (children != null) {
+            children.forEach(child -> parents.get(child).add(parentDN));
+          }
+        });
+        if (pendingRange != null) {
+          pendingRanges.add(pendingRange);
+        }
+      }, ATTRIBUTE_GROUP_NAME, membershipAttribute.getName());
+      // remaining ranges of large groups are read after the paged search has finished
+      for (RangedAttributeReader.PendingRange pendingRange : pendingRanges) {
+        pendingRange.read(connection);
+      }
+    } catch (NamingException ex) {
+      // failed searches are not cached
+      LOG.warn("could not find parent groups of {} groups, nested groups are incomplete", chunk.size(), ex);
+      return Collections.emptyMap();
+    }
+
+    if (parentCache != null) {
+      parents.forEach(parentCache::put);
+    }
+    return parents;
+  }
+
+  private Set<String> fetchGroups(LdapConnection connection, LdapConfig config, String userDN, String uid, String mail) {
     Set<String> groups = new HashSet<>();
 
-    Optional<String> optionalFilter = createGroupSearchFilter(userDN, uid, mail);
+    Optional<String> optionalFilter = createGroupSearchFilter(config, userDN, uid, mail);
     if (optionalFilter.isPresent()) {
       LOG.trace("try to fetch groups for user {}", uid);
-      groups = fetchGroupByFilter(connection, optionalFilter.get());
+      groups = fetchGroupByFilter(connection, config, optionalFilter.get());
     } else {
       LOG.debug("group filter is empty");
     }
     return groups;
   }
 
-  private Set<String> fetchGroupByFilter(LdapConnection connection, String filter){
-    Set<SearchResult> results = searchGroup(connection, filter);
+  private Set<String> fetchGroupByFilter(LdapConnection connection, LdapConfig config, String filter){
+    try {
+      return searchGroupDns(connection, config, filter);
+    } catch (NamingException ex) {
+      LOG.debug("could not find groups", ex);
+      return Collections.emptySet();
+    }
+  }
+
+  private Set<String> searchGroupDns(LdapConnection connection, LdapConfig config, String filter) throws NamingException {
     Set<String> groups = new HashSet<>();
-    for(SearchResult searchResult: results){
+    searchGroup(connection, config, filter, searchResult -> {
       String dn = searchResult.getNameInNamespace();
-      LOG.trace("append group {} to user result", dn);
+      LOG.trace("append group {} to result", dn);
       groups.add(dn);
-    }
+    }, ATTRIBUTE_GROUP_NAME);
     return groups;
   }
 
-  private Set<SearchResult> searchGroup(LdapConnection connection, String filter){
-    Set<SearchResult> results = new HashSet<>();
-
-    // read group of unique names
+  /**
+   * Searches groups below the group unit page by page and passes each result to the handler. If the server limits
+   * the size of the result, the search stops with a warning and the results which were received so far are kept.
+   */
+  private void searchGroup(LdapConnection connection, LdapConfig config, String filter, LdapConnection.SearchResultHandler handler, String... returningAttributes) throws NamingException {
     SearchControls searchControls = new SearchControls();
 
     searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
 
     // make group name attribute configurable?
-    searchControls.setReturningAttributes(new String[]{ATTRIBUTE_GROUP_NAME});
+    searchControls.setReturningAttributes(returningAttributes);
 
-    LdapConfig config = store.get();
-    String searchDN = LdapUtil.createDN(config, config.getUnitGroup());
+    String searchDN = LdapQueryPlan.of(config).getGroupBaseDn();
     LOG.debug("search groups at {} with filter {}", searchDN, filter);
 
-    try (AutoCloseableNamingEnumeration<SearchResult> searchResultEnm = connection.search(searchDN, filter, searchControls)) {
-      while (searchResultEnm.hasMore()) {
-        SearchResult searchResult = searchResultEnm.next();
-        results.add(searchResult);
-        LOG.trace("append group {} to result", searchResult.getNameInNamespace());
-      }
-    } catch (NamingException ex) {
-      LOG.debug("could not find groups", ex);
+    try {
+      connection.search(searchDN, filter, searchControls, config.getSearchPageSize(), handler);
+    } catch (SizeLimitExceededException ex) {
+      LOG.warn("result of group search {} was truncated by the size limit of the server, configure a page size below the limit", filter);
     }
-    return results;
   }
 
-  @SuppressWarnings("java:S1192")
-  private Optional<String> createGroupSearchFilter(String userDN, String uid, String mail) {
-    LdapConfig config = store.get();
-    String filterPattern = config.getSearchFilterGroup();
-
-    if (Util.isNotEmpty(filterPattern)) {
-
-      if (config.isEnableNestedADGroups()) {
-        filterPattern = prepareFilterPatternForADNestedGroups(filterPattern,
-          escapeLDAPSearchFilter(userDN));
-      }
-      String filter = MessageFormat.format(filterPattern, escapeLDAPSearchFilter(userDN), uid, Strings.nullToEmpty(mail));
-      LOG.debug("search-filter for group search: {}", filter);
+  /**
+   * Returns the shared nested group cache or {@code null}, if the cache is not used.
+   */
+  @VisibleForTesting
+  GroupParentCache getParentCache() {
+    return parentCache;
+  }
 
-      return Optional.of(filter);
+  @SuppressWarnings("java:S1192")
+  private Optional<String> createGroupSearchFilter(LdapConfig config, String userDN, String uid, String mail) {
+    Optional<String> filter = LdapQueryPlan.of(config).createGroupFilter(userDN, uid, Strings.nullToEmpty(mail));
+    if (filter.isPresent()) {
+      LOG.debug("search-filter for group search: {}", filter.get());
     } else {
       LOG.debug("search-filter for groups not defined");
     }
-    return Optional.empty();
-  }
-
-  private String prepareFilterPatternForADNestedGroups(String filterPattern, String userDN) {
-    return filterPattern.replaceAll(Pattern.quote("={0}"),
-      NESTEDGROUP_MATCHINGRULE.concat(userDN));
+    return filter;
   }
 
-  private Optional<String> createNestedGroupSearchFilter(String groupDN){
-    LdapConfig config = store.get();
-    String filterPattern = config.getSearchFilterNestedGroup();
+  private Optional<String> createNestedGroupSearchFilter(LdapConfig config, String groupDN){
     String groupCN = LdapUtil.getName(groupDN);
-
-    if (Util.isNotEmpty(filterPattern)) {
-      String filter = MessageFormat.format(filterPattern, escapeLDAPSearchFilter(groupDN),escapeLDAPSearchFilter(groupCN));
-      LOG.debug("search-filter for group search: {}", filter);
-      return Optional.of(filter);
+    Optional<String> filter = LdapQueryPlan.of(config).createNestedGroupFilter(groupDN, groupCN);
+    if (filter.isPresent()) {
+      LOG.debug("search-filter for group search: {}", filter.get());
     } else {
       LOG.debug("search-filter for groups not defined");
     }
-    return Optional.empty();
+    return filter;
   }
 
-  /**
-   * Sanitize LDAP search filter to prevent LDAP injection.
-   * Source: https://www.owasp.org/index.php/Preventing_LDAP_Injection_in_Java
-   * \\\\ is there because java.MessageFormat.format() is suppressing \\ to \
-   *
-   * @param filter filter for ldap search
-   * @return result
-   */
-  public String escapeLDAPSearchFilter(String filter) {
-    StringBuilder sb = new StringBuilder();
-    for (int i = 0; i < filter.length(); i++) {
-      char curChar = filter.charAt(i);
-      switch (curChar) {
-        case '\\':
-          sb.append("\\\\5c");
-          break;
-        case '*':
-          sb.append("\\\\2a");
-          break;
-        case '(':
-          sb.append("\\\\28");
-          break;
-        case ')':
-          sb.append("\\\\29");
-          break;
-        case '\u0000':
-          sb.append("\\\\00");
-          break;
-        default:
-          sb.append(curChar);
-      }
-    }
-    return sb.toString();
+  private static final class EdgeStatistics {
+    private int cached;
+    private int fetched;
+    private int searches;
   }
 }
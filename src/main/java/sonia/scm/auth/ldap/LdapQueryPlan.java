@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.util.Util;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of the user and group searches which depend only on the configuration: base dns, the scope, the
+ * returned attributes and the filter patterns, which are split into literals and arguments. The plan is compiled once
+ * for a configuration and kept with it, so that a search only has to append the escaped values to the filter.
+ * The returned attribute arrays are shared and must not be modified.
+ */
+final class LdapQueryPlan {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapQueryPlan.class);
+
+  private static final String NESTEDGROUP_MATCHINGRULE = ":1.2.840.113556.1.4.1941:=";
+
+  private static final String USERNAME_PLACEHOLDER = "{0}";
+
+  // version of the published configuration and the configuration values from which the plan was compiled
+  private final long version;
+  private final String baseDn;
+  private final String unitPeople;
+  private final String unitGroup;
+  private final String searchScope;
+  private final String searchFilter;
+  private final String searchFilterGroup;
+  private final String searchFilterNestedGroup;
+  private final boolean enableNestedADGroups;
+  private final String attributeNameId;
+  private final String attributeNameFullname;
+  private final String attributeNameMail;
+  private final String attributeNameGroup;
+  private final String userDnTemplate;
+
+  private final String userBaseDn;
+  private final String normalizedUserBaseDn;
+  private final String groupBaseDn;
+  private final String normalizedGroupBaseDn;
+  private final int userSearchScope;
+  private final FilterTemplate userFilter;
+  private final FilterTemplate groupFilter;
+  private final FilterTemplate nestedGroupFilter;
+  private final String[] userDnParts;
+  private final String[] userAttributes;
+  private final String[] groupResolutionAttributes;
+  private final String[] groupResolutionAttributesWithGroup;
+
+  private LdapQueryPlan(LdapConfig config) {
+    this.version = config.getVersion();
+    this.baseDn = config.getBaseDn();
+    this.unitPeople = config.getUnitPeople();
+    this.unitGroup = config.getUnitGroup();
+    this.searchScope = config.getSearchScope();
+    this.searchFilter = config.getSearchFilter();
+    this.searchFilterGroup = config.getSearchFilterGroup();
+    this.searchFilterNestedGroup = config.getSearchFilterNestedGroup();
+    this.enableNestedADGroups = config.isEnableNestedADGroups();
+    this.attributeNameId = config.getAttributeNameId();
+    this.attributeNameFullname = config.getAttributeNameFullname();
+    this.attributeNameMail = config.getAttributeNameMail();
+    this.attributeNameGroup = config.getAttributeNameGroup();
+    this.userDnTemplate = config.getUserDnTemplate();
+
+    this.userBaseDn = createDN(baseDn, unitPeople);
+    this.normalizedUserBaseDn = normalize(userBaseDn);
+    this.groupBaseDn = createDN(baseDn, unitGroup);
+    this.normalizedGroupBaseDn = normalize(groupBaseDn);
+    this.userSearchScope = LdapUtil.getSearchScope(searchScope);
+    this.userFilter = FilterTemplate.compile(searchFilter);
+    String groupPattern = searchFilterGroup;
+    if (enableNestedADGroups && groupPattern != null) {
+      // the member assertion becomes a transitive assertion of active directory
+      groupPattern = groupPattern.replace("={0}", NESTEDGROUP_MATCHINGRULE + "{0}");
+    }
+    this.groupFilter = FilterTemplate.compile(groupPattern);
+    this.nestedGroupFilter = FilterTemplate.compile(searchFilterNestedGroup);
+    this.userDnParts = Util.isNotEmpty(userDnTemplate) ? userDnTemplate.split(Pattern.quote(USERNAME_PLACEHOLDER), -1) : null;
+    this.userAttributes = attributes(attributeNameId, attributeNameFullname, attributeNameMail);
+    this.groupResolutionAttributes = attributes(attributeNameMail);
+    this.groupResolutionAttributesWithGroup = attributes(attributeNameGroup, attributeNameMail);
+  }
+
+  /**
+   * Returns the plan for the configuration. Configurations published by the {@link LdapConfigStore} are identified by
+   * their version, which is replaced with every change. The plan of other configurations is compiled only if the
+   * configuration has no plan yet or if it was modified after the plan was compiled.
+   */
+  static LdapQueryPlan of(LdapConfig config) {
+    LdapQueryPlan plan = config.getQueryPlan();
+    if (plan != null && plan.version > 0 && plan.version == config.getVersion()) {
+      return plan;
+    }
+    if (plan == null || !plan.isCompiledFrom(config)) {
+      LOG.trace("compile query plan for ldap configuration");
+      plan = new LdapQueryPlan(config);
+      config.setQueryPlan(plan);
+    }
+    return plan;
+  }
+
+  private boolean isCompiledFrom(LdapConfig config) {
+    return enableNestedADGroups == config.isEnableNestedADGroups()
+      && same(baseDn, config.getBaseDn())
+      && same(unitPeople, config.getUnitPeople())
+      && same(unitGroup, config.getUnitGroup())
+      && same(searchScope, config.getSearchScope())
+      && same(searchFilter, config.getSearchFilter())
+      && same(searchFilterGroup, config.getSearchFilterGroup())
+      && same(searchFilterNestedGroup, config.getSearchFilterNestedGroup())
+      && same(attributeNameId, config.getAttributeNameId())
+      && same(attributeNameFullname, config.getAttributeNameFullname())
+      && same(attributeNameMail, config.getAttributeNameMail())
+      && same(attributeNameGroup, config.getAttributeNameGroup())
+      && same(userDnTemplate, config.getUserDnTemplate());
+  }
+
+  private static boolean same(String compiled, String current) {
+    return compiled == current || (compiled != null && compiled.equals(current));
+  }
+
+  String getUserBaseDn() {
+    return requireBaseDn(userBaseDn);
+  }
+
+  String getNormalizedUserBaseDn() {
+    return requireBaseDn(normalizedUserBaseDn);
+  }
+
+  String getGroupBaseDn() {
+    return requireBaseDn(groupBaseDn);
+  }
+
+  String getNormalizedGroupBaseDn() {
+    return requireBaseDn(normalizedGroupBaseDn);
+  }
+
+  int getUserSearchScope() {
+    return userSearchScope;
+  }
+
+  /**
+   * Returns the attributes of the user entry: id, display name and mail.
+   */
+  String[] getUserAttributes() {
+    return userAttributes;
+  }
+
+  /**
+   * Returns the attributes of the user entry, which are required to resolve the groups of the user.
+   */
+  String[] getGroupResolutionAttributes(boolean includeGroupAttribute) {
+    return includeGroupAttribute ? groupResolutionAttributesWithGroup : groupResolutionAttributes;
+  }
+
+  String createUserFilter(String username) {
+    if (userFilter == null) {
+      throw new ConfigurationException("search filter not defined");
+    }
+    return userFilter.format(username);
+  }
+
+  /**
+   * Creates the dn of the user from the user dn template, in which each {@code {0}} is replaced with the escaped
+   * username. All other characters of the template are used as they are.
+   */
+  String createUserDn(String username) {
+    if (userDnParts == null) {
+      throw new ConfigurationException("no user dn template was specified");
+    }
+    String value = Rdn.escapeValue(username);
+    StringBuilder dn = new StringBuilder(userDnTemplate.length() + value.length());
+    dn.append(userDnParts[0]);
+    for (int i = 1; i < userDnParts.length; i++) {
+      dn.append(value).append(userDnParts[i]);
+    }
+    return dn.toString();
+  }
+
+  /**
+   * Returns the problem of the user dn template or {@code null}, if the template is valid or not specified.
+   */
+  static String checkUserDnTemplate(String template) {
+    if (Util.isEmpty(template)) {
+      return null;
+    }
+    if (!template.contains(USERNAME_PLACEHOLDER)) {
+      return "the user dn template " + template + " does not contain the username placeholder " + USERNAME_PLACEHOLDER;
+    }
+    try {
+      new LdapName(template.replace(USERNAME_PLACEHOLDER, "username"));
+      return null;
+    } catch (InvalidNameException ex) {
+      return "the user dn template " + template + " is not a valid dn";
+    }
+  }
+
+  Optional<String> createGroupFilter(String userDN, String uid, String mail) {
+    if (groupFilter == null) {
+      return Optional.empty();
+    }
+    return Optional.of(groupFilter.format(userDN, uid, mail));
+  }
+
+  Optional<String> createNestedGroupFilter(String groupDN, String groupCN) {
+    if (nestedGroupFilter == null) {
+      return Optional.empty();
+    }
+    return Optional.of(nestedGroupFilter.format(groupDN, groupCN));
+  }
+
+  /**
+   * Appends the nested group filter for the group in parentheses to the filter, e.g. to combine the filters of
+   * multiple groups. Returns {@code false}, if no nested group filter is configured.
+   */
+  boolean appendNestedGroupFilter(StringBuilder filter, String groupDN, String groupCN) {
+    if (nestedGroupFilter == null) {
+      return false;
+    }
+    if (nestedGroupFilter.isParenthesized()) {
+      nestedGroupFilter.appendTo(filter, groupDN, groupCN);
+    } else {
+      nestedGroupFilter.appendTo(filter.append('('), groupDN, groupCN).append(')');
+    }
+    return true;
+  }
+
+  private static String createDN(String baseDn, String prefix) {
+    if (Util.isEmpty(baseDn)) {
+      return null;
+    }
+    return Util.isNotEmpty(prefix) ? prefix.concat(",").concat(baseDn) : baseDn;
+  }
+
+  private static String normalize(String dn) {
+    return dn != null ? LdapDn.normalize(dn) : null;
+  }
+
+  private static String requireBaseDn(String dn) {
+    if (dn == null) {
+      throw new ConfigurationException("base dn was not configured");
+    }
+    return dn;
+  }
+
+  private static String[] attributes(String... names) {
+    List<String> attributes = new ArrayList<>(names.length);
+    for (String name : names) {
+      if (Util.isNotEmpty(name)) {
+        attributes.add(name);
+      }
+    }
+    return attributes.toArray(new String[0]);
+  }
+
+  /**
+   * A filter pattern in the syntax of {@link MessageFormat}, which is split into literals and argument indexes.
+   * The values are escaped while they are appended to the filter.
+   * Patterns with format types, e.g. <code>{0,number}</code>, are formatted with {@link MessageFormat}.
+   */
+  static final class FilterTemplate {
+
+    private final String pattern;
+    private final String[] literals;
+    private final int[] arguments;
+    private final int literalLength;
+
+    private FilterTemplate(String pattern, String[] literals, int[] arguments) {
+      this.pattern = pattern;
+      this.literals = literals;
+      this.arguments = arguments;
+      int length = 0;
+      if (literals != null) {
+        for (String literal : literals) {
+          length += literal.length();
+        }
+      }
+      this.literalLength = length;
+    }
+
+    /**
+     * Returns the compiled template or {@code null}, if the pattern is empty.
+     */
+    static FilterTemplate compile(String pattern) {
+      if (Util.isEmpty(pattern)) {
+        return null;
+      }
+      List<String> literals = new ArrayList<>();
+      List<Integer> arguments = new ArrayList<>();
+      StringBuilder literal = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < pattern.length(); i++) {
+        char c = pattern.charAt(i);
+        if (c == '\'') {
+          if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+            literal.append('\'');
+            i++;
+          } else {
+            quoted = !quoted;
+          }
+        } else if (c == '{' && !quoted) {
+          int end = pattern.indexOf('}', i);
+          int index = end > i + 1 ? parseIndex(pattern, i + 1, end) : -1;
+          if (index < 0) {
+            return new FilterTemplate(pattern, null, null);
+          }
+          literals.add(literal.toString());
+          literal.setLength(0);
+          arguments.add(index);
+          i = end;
+        } else {
+          literal.append(c);
+        }
+      }
+      literals.add(literal.toString());
+      return new FilterTemplate(
+        pattern, literals.toArray(new String[0]), arguments.stream().mapToInt(Integer::intValue).toArray()
+      );
+    }
+
+    private static int parseIndex(String pattern, int start, int end) {
+      int index = 0;
+      for (int i = start; i < end; i++) {
+        char c = pattern.charAt(i);
+        if (c < '0' || c > '9' || index > 999) {
+          return -1;
+        }
+        index = index * 10 + (c - '0');
+      }
+      return index;
+    }
+
+    String format(String... values) {
+      int length = literalLength;
+      for (String value : values) {
+        if (value != null) {
+          length += value.length();
+        }
+      }
+      return appendTo(new StringBuilder(length + 8), values).toString();
+    }
+
+    StringBuilder appendTo(StringBuilder filter, String... values) {
+      if (literals == null) {
+        Object[] escaped = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+          escaped[i] = values[i] != null ? LdapUtil.escapeSearchFilter(values[i]) : null;
+        }
+        return filter.append(MessageFormat.format(pattern, escaped));
+      }
+      filter.append(literals[0]);
+      for (int i = 0; i < arguments.length; i++) {
+        int index = arguments[i];
+        if (index < values.length) {
+          LdapUtil.appendEscapedSearchFilter(filter, values[index]);
+        } else {
+          // same as message format, unknown arguments are kept
+          filter.append('{').append(index).append('}');
+        }
+        filter.append(literals[i + 1]);
+      }
+      return filter;
+    }
+
+    boolean isParenthesized() {
+      return literals != null ? literals[0].startsWith("(") : pattern.startsWith("(");
+    }
+  }
+}
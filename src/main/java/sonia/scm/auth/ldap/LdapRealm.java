@@ -33,7 +33,10 @@ import sonia.scm.plugin.Extension;
 import sonia.scm.security.SyncingRealmHelper;
 import sonia.scm.user.User;
 
+import java.security.MessageDigest;
+
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Singleton
 @Extension
@@ -50,6 +53,9 @@ public class LdapRealm extends AuthenticatingRealm {
   private final LdapConfigStore configStore;
   private final LdapAuthenticatorFactory ldapAuthenticatorFactory;
   private final InvalidCredentialsCache invalidCredentialsCache;
+  private final Cache<String, ?> groupCache;
+  private final Cache<String, ?> unknownPrincipalCache;
+  private final SingleFlight<Credentials, User> authentications = new SingleFlight<>();
 
   @Inject
   public LdapRealm(LdapConfigStore configStore,
@@ -64,6 +70,9 @@ public class LdapRealm extends AuthenticatingRealm {
 
     setAuthenticationTokenClass(UsernamePasswordToken.class);
 
+    this.groupCache = cacheManager.getCache(LdapGroupResolver.CACHE_NAME);
+    this.unknownPrincipalCache = cacheManager.getCache(LdapGroupResolver.UNKNOWN_PRINCIPALS_CACHE_NAME);
+
     Cache<Object, AuthenticationInfo> cache = cacheManager.getCache(CACHE_NAME);
     setAuthenticationCache(cache);
     setAuthenticationCachingEnabled(true);
@@ -84,16 +93,34 @@ public class LdapRealm extends AuthenticatingRealm {
     char[] password = upt.getPassword();
 
     invalidCredentialsCache.verifyNotInvalid(upt);
+    // rejected before any connection is opened, so that guessing passwords does not put load on the directory
+    invalidCredentialsCache.verifyNotThrottled(upt, config);
 
     LdapAuthenticator authenticator = ldapAuthenticatorFactory.create(config);
     User user;
     try {
-      user = authenticator.authenticate(username, new String(password))
-        .orElseThrow(() -> new UnknownAccountException("could not find account with name " + username));
+      // concurrent logins with the same credentials share a single authentication against the directory
+      Credentials credentials = new Credentials(username, new String(password));
+      user = authentications.execute(credentials, () -> authenticator.authenticate(username, credentials.password)
+        .orElseThrow(() -> new UnknownAccountException("could not find account with name " + username))
+      ).clone();
+    } catch (CircuitBreakerOpenException e) {
+      // the directory is not available, so nothing is known about the credentials
+      throw e;
     } catch (AuthenticationException e) {
       invalidCredentialsCache.cacheAsInvalid(upt);
+      if (e instanceof UserAuthenticationFailedException) {
+        // only binds which were rejected by the directory are counted, unknown accounts could be local users and
+        // failures of the directory itself must not throttle the logins of all users
+        invalidCredentialsCache.recordFailure(upt, config);
+      }
       throw e;
     }
+    invalidCredentialsCache.resetFailures(upt);
+
+    // the user has just logged in, so the groups are resolved again from the directory
+    groupCache.remove(user.getName());
+    unknownPrincipalCache.remove(user.getName());
 
     syncingRealmHelper.store(user);
     /*
@@ -108,4 +135,33 @@ public class LdapRealm extends AuthenticatingRealm {
 
     return syncingRealmHelper.createAuthenticationInfo(TYPE, user);
   }
+
+  private static final class Credentials {
+
+    private final String username;
+    private final String password;
+
+    private Credentials(String username, String password) {
+      this.username = username;
+      this.password = password;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+
+      if (!(o instanceof Credentials)) return false;
+
+      Credentials that = (Credentials) o;
+
+      return username.equals(that.username)
+        && MessageDigest.isEqual(password.getBytes(UTF_8), that.password.getBytes(UTF_8));
+    }
+
+    @Override
+    public int hashCode() {
+      // the password is not part of the hash code, it is only compared in constant time
+      return username.hashCode();
+    }
+  }
 }
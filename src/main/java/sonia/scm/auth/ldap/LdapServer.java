@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A single configured ldap server and its health. The health consists of an exponentially weighted moving average of
+ * the response times, the number of recent failures and a circuit breaker. Servers with an open circuit breaker are
+ * skipped. Each failure adds the connect timeout to the score, because that is what a failed operation costs, and the
+ * failures are halved after every cool down without further failure.
+ */
+class LdapServer {
+
+  /**
+   * weight of the latest response time for the moving average
+   */
+  private static final double EWMA_WEIGHT = 0.3;
+
+  /**
+   * penalty of a failure in milliseconds, if no connect timeout is configured
+   */
+  private static final long DEFAULT_FAILURE_PENALTY = 5000;
+
+  private final String url;
+  private final LongSupplier clock;
+  private final LdapCircuitBreaker circuitBreaker;
+
+  private double averageLatency = 0;
+  private int failures = 0;
+  private long lastFailure;
+  private long failurePenalty = DEFAULT_FAILURE_PENALTY;
+  private long failureDecay = TimeUnit.SECONDS.toMillis(30);
+
+  LdapServer(String url) {
+    this(url, System::currentTimeMillis);
+  }
+
+  LdapServer(String url, LongSupplier clock) {
+    this.url = url;
+    this.clock = clock;
+    this.circuitBreaker = new LdapCircuitBreaker(clock);
+  }
+
+  synchronized void configure(LdapConfig config) {
+    failurePenalty = config.getConnectTimeout() > 0 ? config.getConnectTimeout() : DEFAULT_FAILURE_PENALTY;
+    failureDecay = Math.max(1, TimeUnit.SECONDS.toMillis(config.getServerCoolDown()));
+    circuitBreaker.configure(
+      config.getCircuitBreakerFailureThreshold(),
+      TimeUnit.SECONDS.toMillis(config.getServerCoolDown()),
+      config.getCircuitBreakerHalfOpenCalls()
+    );
+  }
+
+  String getUrl() {
+    return url;
+  }
+
+  boolean isLdaps() {
+    return url.startsWith("ldaps");
+  }
+
+  synchronized void recordSuccess(long latencyNanos) {
+    double latency = (double) TimeUnit.NANOSECONDS.toMicros(latencyNanos) / 1000;
+    if (averageLatency == 0) {
+      averageLatency = latency;
+    } else {
+      averageLatency = EWMA_WEIGHT * latency + (1 - EWMA_WEIGHT) * averageLatency;
+    }
+    failures = 0;
+    circuitBreaker.onSuccess();
+  }
+
+  /**
+   * Records that the server has answered, without measuring the response time. For example a rejected bind.
+   */
+  void recordResponse() {
+    circuitBreaker.onSuccess();
+  }
+
+  synchronized void recordFailure() {
+    failures = getFailures() + 1;
+    lastFailure = clock.getAsLong();
+    circuitBreaker.onFailure();
+  }
+
+  boolean isAvailable() {
+    return circuitBreaker.isCallPermitted();
+  }
+
+  boolean tryAcquire() {
+    return circuitBreaker.tryAcquirePermission();
+  }
+
+  LdapCircuitBreaker.State getCircuitBreakerState() {
+    return circuitBreaker.getState();
+  }
+
+  /**
+   * Returns the score of the server in milliseconds, lower is better. Servers which were never contacted have a score of
+   * zero, so that they are probed before the measured ones. A server which failed scores at least the failure penalty,
+   * even if it has never answered, so that it is sorted behind the healthy servers.
+   */
+  synchronized double getScore() {
+    return averageLatency + (double) getFailures() * failurePenalty;
+  }
+
+  synchronized double getAverageLatency() {
+    return averageLatency;
+  }
+
+  /**
+   * Returns the number of recent failures, which is halved for every cool down since the last failure.
+   */
+  synchronized int getFailures() {
+    long periods = (clock.getAsLong() - lastFailure) / failureDecay;
+    return periods >= Integer.SIZE ? 0 : failures >> periods;
+  }
+}
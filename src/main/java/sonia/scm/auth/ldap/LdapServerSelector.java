@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Orders the configured servers by their health. The host url of the configuration may contain multiple urls
+ * separated by whitespace. Servers with an open circuit breaker are skipped, the remaining servers are ordered by their
+ * score. Servers with an equal score keep the configured order.
+ */
+class LdapServerSelector {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LdapServerSelector.class);
+
+  private static final Pattern URL_SEPARATOR = Pattern.compile("\\s+");
+
+  private final Map<String, LdapServer> servers = new ConcurrentHashMap<>();
+  private final LongSupplier clock;
+
+  LdapServerSelector() {
+    this(System::currentTimeMillis);
+  }
+
+  LdapServerSelector(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the servers in the order in which they should be contacted.
+   * The list is empty, if the circuit breakers of all servers are open.
+   */
+  List<LdapServer> select(LdapConfig config) {
+    List<ScoredServer> available = new ArrayList<>();
+    for (LdapServer server : getServers(config)) {
+      if (server.isAvailable()) {
+        available.add(new ScoredServer(server, server.getScore()));
+      }
+    }
+
+    if (available.isEmpty()) {
+      LOG.debug("circuit breakers of all ldap servers are open");
+    }
+
+    // sort is stable, servers with equal score keep the configured order
+    available.sort(Comparator.comparingDouble(s -> s.score));
+    return available.stream().map(s -> s.server).collect(Collectors.toList());
+  }
+
+  List<LdapServer> getServers(LdapConfig config) {
+    List<LdapServer> configured = new ArrayList<>();
+    for (String url : parseUrls(config.getHostUrl())) {
+      LdapServer server = servers.computeIfAbsent(url, u -> new LdapServer(u, clock));
+      server.configure(config);
+      configured.add(server);
+    }
+    return configured;
+  }
+
+  static List<String> parseUrls(String hostUrl) {
+    List<String> urls = new ArrayList<>();
+    if (hostUrl != null) {
+      for (String url : URL_SEPARATOR.split(hostUrl.trim())) {
+        if (!url.isEmpty()) {
+          urls.add(url);
+        }
+      }
+    }
+    if (urls.isEmpty()) {
+      throw new ConfigurationException("no host url configured");
+    }
+    return urls;
+  }
+
+  private static final class ScoredServer {
+
+    private final LdapServer server;
+    private final double score;
+
+    private ScoredServer(LdapServer server, double score) {
+      this.server = server;
+      this.score = score;
+    }
+  }
+}
@@ -53,51 +53,68 @@ class LdapUtil {
   }
 
   /**
-   * Sanitize LDAP search filter to prevent LDAP injection.
-   * Source: https://www.owasp.org/index.php/Preventing_LDAP_Injection_in_Java
-   * \\\\ is there because java.MessageFormat.format() is suppressing \\ to \
-   *
-   * @param filter
-   * @return
+   * Escapes the special characters of an assertion value of a search filter (RFC 4515), to prevent ldap injection.
+   * The value is returned unchanged, if it contains no special characters.
    */
-  static String escapeSearchFilter(String filter) {
-    StringBuilder sb = new StringBuilder();
-
-    for (int i = 0; i < filter.length(); i++) {
-      char curChar = filter.charAt(i);
-
-      switch (curChar) {
-        case '\\':
-          sb.append("\\5c");
-
-          break;
-
-        case '*':
-          sb.append("\\2a");
-
-          break;
-
-        case '(':
-          sb.append("\\28");
-
-          break;
-
-        case ')':
-          sb.append("\\29");
-
-          break;
+  static String escapeSearchFilter(String value) {
+    int first = indexOfSpecialCharacter(value);
+    if (first < 0) {
+      return value;
+    }
+    return appendEscaped(new StringBuilder(value.length() + 8), value, first).toString();
+  }
 
-        case '\u0000':
-          sb.append("\\00");
+  /**
+   * Appends the escaped assertion value to the filter, without creating an intermediate string.
+   *
+   * @see #escapeSearchFilter(String)
+   */
+  static StringBuilder appendEscapedSearchFilter(StringBuilder filter, String value) {
+    int first = value != null ? indexOfSpecialCharacter(value) : -1;
+    if (first < 0) {
+      return filter.append(value);
+    }
+    return appendEscaped(filter, value, first);
+  }
 
-          break;
+  private static int indexOfSpecialCharacter(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (escapeSequence(value.charAt(i)) != null) {
+        return i;
+      }
+    }
+    return -1;
+  }
 
-        default:
-          sb.append(curChar);
+  private static StringBuilder appendEscaped(StringBuilder filter, String value, int first) {
+    filter.append(value, 0, first);
+    for (int i = first; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String escaped = escapeSequence(c);
+      if (escaped != null) {
+        filter.append(escaped);
+      } else {
+        filter.append(c);
       }
     }
+    return filter;
+  }
 
-    return sb.toString();
+  private static String escapeSequence(char c) {
+    switch (c) {
+      case '\\':
+        return "\\5c";
+      case '*':
+        return "\\2a";
+      case '(':
+        return "\\28";
+      case ')':
+        return "\\29";
+      case '\u0000':
+        return "\\00";
+      default:
+        return null;
+    }
   }
 
   /**
@@ -175,39 +192,14 @@ class LdapUtil {
   }
 
   /**
-   * Method description
+   * Returns the value of the first rdn of the dn, e.g. the common name of a group.
    *
-   * @param dn
-   * @return
+   * @see LdapDn#getName()
    */
   public static String getName(String dn) {
-    String name = dn;
-    int start = dn.indexOf('=');
-
-    if (start > 0) {
-      start++;
-
-      int end = dn.indexOf(',');
-
-      if (end > 0) {
-        name = dn.substring(start, end);
-      } else {
-        name = dn.substring(start);
-      }
-    }
-
-    return name;
-  }
-
-  public static String getParentDN(String dn) {
-    int index = dn.indexOf(',');
-    if (index > 0) {
-      return dn.substring(index + 1);
-    }
-    return dn;
+    return LdapDn.of(dn).getName();
   }
 
-
   /**
    * Method description
    *
@@ -254,15 +246,39 @@ class LdapUtil {
     return scopeString;
   }
 
-  static String createDN(LdapConfig config, String prefix) {
-    if (Util.isNotEmpty(config.getBaseDn())) {
-      if (Util.isNotEmpty(prefix)) {
-        return prefix.concat(",").concat(config.getBaseDn());
-      } else {
-        return config.getBaseDn();
-      }
-    } else {
-      throw new ConfigurationException("base dn was not configured");
+  /**
+   * Converts a binary security identifier of active directory to its string representation, e.g.
+   * S-1-5-21-1004336348-1177238915-682003330-512.
+   */
+  static String sidToString(byte[] sid) {
+    StringBuilder builder = new StringBuilder("S-").append(sid[0] & 0xFF);
+    // identifier authority is a 48 bit big endian number
+    long authority = 0;
+    for (int i = 2; i < 8; i++) {
+      authority = (authority << 8) | (sid[i] & 0xFF);
+    }
+    builder.append('-').append(authority);
+    // sub authorities are 32 bit little endian numbers
+    int count = sid[1] & 0xFF;
+    for (int i = 0; i < count; i++) {
+      int offset = 8 + i * 4;
+      long subAuthority = (sid[offset] & 0xFFL)
+        | (sid[offset + 1] & 0xFFL) << 8
+        | (sid[offset + 2] & 0xFFL) << 16
+        | (sid[offset + 3] & 0xFFL) << 24;
+      builder.append('-').append(subAuthority);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Escapes each byte of a binary value, so that it can be used as assertion value of a search filter.
+   */
+  static String escapeBinary(byte[] value) {
+    StringBuilder builder = new StringBuilder(value.length * 3);
+    for (byte b : value) {
+      builder.append('\\').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
     }
+    return builder.toString();
   }
 }
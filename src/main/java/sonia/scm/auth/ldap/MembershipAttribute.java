@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import com.google.common.base.Strings;
+
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The attribute of a group filter, which contains the members of a group, e.g. {@code uniqueMember} for the filter
+ * {@code (&(objectClass=groupOfUniqueNames)(uniqueMember={0}))}. The argument is the index of the filter argument,
+ * which is compared with the attribute, e.g. the dn ({@code {0}}) or the name ({@code {1}}) of the member.
+ */
+final class MembershipAttribute {
+
+  private static final Pattern MEMBER_ASSERTION = Pattern.compile("\\(([\\w.;-]+)=\\{([012])}\\)");
+
+  private final String name;
+  private final int argument;
+  private final String assertion;
+
+  private MembershipAttribute(String name, int argument, String assertion) {
+    this.name = name;
+    this.argument = argument;
+    this.assertion = assertion;
+  }
+
+  /**
+   * Finds the membership attribute of the filter pattern. The attribute can not be found, if the filter contains no
+   * or more than one membership assertion, because the mapping of results would be ambiguous.
+   */
+  static Optional<MembershipAttribute> parse(String filterPattern) {
+    if (Strings.isNullOrEmpty(filterPattern)) {
+      return Optional.empty();
+    }
+    Matcher matcher = MEMBER_ASSERTION.matcher(filterPattern);
+    if (matcher.find()) {
+      MembershipAttribute attribute = new MembershipAttribute(
+        matcher.group(1), Integer.parseInt(matcher.group(2)), matcher.group()
+      );
+      if (!matcher.find()) {
+        return Optional.of(attribute);
+      }
+    }
+    return Optional.empty();
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getArgument() {
+    return argument;
+  }
+
+  /**
+   * Returns the normalized value of the attribute for a member with the given filter arguments.
+   */
+  String memberValue(String... arguments) {
+    if (argument >= arguments.length || arguments[argument] == null) {
+      return null;
+    }
+    return normalize(arguments[argument]);
+  }
+
+  /**
+   * Normalizes a value of the attribute, so that it can be compared with {@link #memberValue(String...)}. Dns are
+   * compared by their normalized form, other values, like names or mail addresses, case insensitive.
+   */
+  String normalize(String value) {
+    if (argument == 0) {
+      return LdapDn.normalize(value);
+    }
+    return value.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Returns the filter with the membership assertion replaced by a presence filter, which matches all groups with
+   * members.
+   */
+  String presenceFilter(String filterPattern) {
+    return MessageFormat.format(filterPattern.replace(assertion, "(" + name + "=*)"), new Object[0]);
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Reads the values of multi-valued attributes, which may be returned in ranges. ActiveDirectory returns at most 1500
+ * values of an attribute per request, the attribute is then named with the returned range, e.g.
+ * {@code member;range=0-1499}. The remaining values are fetched range by range until the range ends with {@code *}.
+ * The values are passed to the consumer as they are read, so that only a single range is held in memory.
+ */
+final class RangedAttributeReader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RangedAttributeReader.class);
+
+  private static final String RANGE_OPTION = ";range=";
+  private static final String RANGE_END = "*";
+
+  private RangedAttributeReader() {
+  }
+
+  /**
+   * Passes all values of the attribute with the given name to the consumer. If the attributes contain only the first
+   * range of the values, the remaining ranges are read from the entry with the given dn.
+   */
+  static void forEachValue(LdapConnection connection, String dn, Attributes attributes, String name, Consumer<String> consumer)
+    throws NamingException {
+    PendingRange pending = forEachValueOfFirstRange(dn, attributes, name, consumer);
+    if (pending != null) {
+      pending.read(connection);
+    }
+  }
+
+  /**
+   * Passes the values of the attribute with the given name, which are contained in the attributes, to the consumer.
+   * If there are further ranges, they are returned as pending range, otherwise {@code null} is returned. Results of
+   * paged searches should read their pending ranges after the search, so that the paged search is not interrupted.
+   */
+  static PendingRange forEachValueOfFirstRange(String dn, Attributes attributes, String name, Consumer<String> consumer)
+    throws NamingException {
+    Attribute attribute = find(attributes, name);
+    if (attribute == null) {
+      return null;
+    }
+    consume(attribute, consumer);
+    long next = nextRangeStart(attribute.getID());
+    return next >= 0 ? new PendingRange(dn, name, next, consumer) : null;
+  }
+
+  /**
+   * Returns the attribute with the given name or the first range of it, if the attribute is returned in ranges.
+   */
+  static Attribute find(Attributes attributes, String name) throws NamingException {
+    Attribute attribute = attributes.get(name);
+    if (attribute != null) {
+      return attribute;
+    }
+    String prefix = (name + RANGE_OPTION).toLowerCase(Locale.ENGLISH);
+    try (AutoCloseableNamingEnumeration<String> ids = new AutoCloseableNamingEnumeration<>(attributes.getIDs())) {
+      while (ids.hasMore()) {
+        String id = ids.next();
+        if (id.toLowerCase(Locale.ENGLISH).startsWith(prefix)) {
+          return attributes.get(id);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the start of the next range or -1, if the attribute contains the last range or is not ranged at all.
+   */
+  static long nextRangeStart(String id) {
+    int index = id.toLowerCase(Locale.ENGLISH).indexOf(RANGE_OPTION);
+    if (index < 0) {
+      return -1;
+    }
+    String range = id.substring(index + RANGE_OPTION.length());
+    int separator = range.indexOf('-');
+    if (separator < 0) {
+      LOG.warn("attribute {} has an invalid range", id);
+      return -1;
+    }
+    String end = range.substring(separator + 1);
+    if (RANGE_END.equals(end)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(end) + 1;
+    } catch (NumberFormatException ex) {
+      LOG.warn("attribute {} has an invalid range", id);
+      return -1;
+    }
+  }
+
+  private static Attribute readRange(LdapConnection connection, String dn, String name, long start) throws NamingException {
+    SearchControls searchControls = new SearchControls();
+    searchControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+    searchControls.setReturningAttributes(new String[]{name + RANGE_OPTION + start + "-" + RANGE_END});
+
+    try (AutoCloseableNamingEnumeration<SearchResult> searchResultEnm = connection.search(new LdapName(dn), "(objectClass=*)", searchControls)) {
+      if (searchResultEnm.hasMore()) {
+        Attribute attribute = find(searchResultEnm.next().getAttributes(), name);
+        if (attribute != null && nextRangeStart(attribute.getID()) != start) {
+          return attribute;
+        }
+      }
+    }
+    LOG.debug("could not read values of attribute {} from {} starting at {}", name, dn, start);
+    return null;
+  }
+
+  private static void consume(Attribute attribute, Consumer<String> consumer) throws NamingException {
+    try (AutoCloseableNamingEnumeration<?> values = new AutoCloseableNamingEnumeration<>(attribute.getAll())) {
+      while (values.hasMore()) {
+        consumer.accept(String.valueOf(values.next()));
+      }
+    }
+  }
+
+  /**
+   * The remaining ranges of an attribute, which were not returned with the entry.
+   */
+  static final class PendingRange {
+
+    private final String dn;
+    private final String name;
+    private final long start;
+    private final Consumer<String> consumer;
+
+    private PendingRange(String dn, String name, long start, Consumer<String> consumer) {
+      this.dn = dn;
+      this.name = name;
+      this.start = start;
+      this.consumer = consumer;
+    }
+
+    /**
+     * Reads the remaining ranges range by range and passes their values to the consumer.
+     */
+    void read(LdapConnection connection) throws NamingException {
+      long next = start;
+      while (next >= 0) {
+        LOG.trace("read values of attribute {} from {} starting at {}", name, dn, next);
+        Attribute attribute = readRange(connection, dn, name, next);
+        if (attribute == null) {
+          return;
+        }
+        consume(attribute, consumer);
+        next = nextRangeStart(attribute.getID());
+      }
+    }
+  }
+}
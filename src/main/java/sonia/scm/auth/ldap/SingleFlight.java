@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent operations with the same key. The first caller executes the operation, all callers which
+ * arrive while the operation is running wait for it and share its result or its failure. Nothing is cached, the next
+ * caller after the operation has finished executes the operation again.
+ * Callers which have waited longer than the timeout execute the operation on their own.
+ */
+class SingleFlight<K, V> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SingleFlight.class);
+
+  /**
+   * callers wait at most 30sec for a running operation
+   */
+  private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+  private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+  private final long timeout;
+
+  SingleFlight() {
+    this(DEFAULT_TIMEOUT);
+  }
+
+  SingleFlight(long timeout) {
+    this.timeout = timeout;
+  }
+
+  V execute(K key, Supplier<V> operation) {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+    if (running != null) {
+      LOG.trace("wait for running operation instead of executing it again");
+      return await(running, operation);
+    }
+    try {
+      V value = operation.get();
+      flight.complete(value);
+      return value;
+    } catch (RuntimeException | Error ex) {
+      flight.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      flights.remove(key, flight);
+    }
+  }
+
+  private V await(CompletableFuture<V> running, Supplier<V> operation) {
+    try {
+      return running.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new LdapException("running operation failed", cause);
+    } catch (TimeoutException ex) {
+      LOG.debug("running operation did not finish within {}ms, execute operation again", timeout);
+      return operation.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new BindConnectionFailedException("interrupted while waiting for a running ldap operation", ex);
+    }
+  }
+
+  int getRunningCount() {
+    return flights.size();
+  }
+}
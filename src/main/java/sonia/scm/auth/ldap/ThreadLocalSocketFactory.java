@@ -26,8 +26,14 @@ public class ThreadLocalSocketFactory extends SSLSocketFactory {
 
   private static final ThreadLocal<SSLSocketFactory> delegateStore = new ThreadLocal<>();
 
-  static void setDelegate(SSLSocketFactory socketFactory) {
+  /**
+   * Sets the socket factory for the current thread and returns the previous one, which should be restored with
+   * {@link #restoreDelegate(SSLSocketFactory)}.
+   */
+  static SSLSocketFactory setDelegate(SSLSocketFactory socketFactory) {
+    SSLSocketFactory previous = delegateStore.get();
     delegateStore.set(socketFactory);
+    return previous;
   }
 
   @SuppressWarnings("unused")
@@ -40,8 +46,12 @@ public class ThreadLocalSocketFactory extends SSLSocketFactory {
     return delegate.createSocket();
   }
 
-  static void clearDelegate() {
-    delegateStore.remove();
+  static void restoreDelegate(SSLSocketFactory previous) {
+    if (previous != null) {
+      delegateStore.set(previous);
+    } else {
+      delegateStore.remove();
+    }
   }
 
   private final SSLSocketFactory delegate;
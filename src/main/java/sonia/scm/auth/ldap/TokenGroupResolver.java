@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.cache.Cache;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the transitive groups of an active directory user with a single read of the constructed tokenGroups
+ * attribute, instead of searching each level of nested groups or using the slow in chain matching rule.
+ * The security identifiers of the token groups are mapped to group dns with a cache, identifiers which are not cached
+ * are searched in batches.
+ */
+class TokenGroupResolver implements GroupResolutionStrategy {
+
+  /**
+   * cache which maps security identifiers to group dns, size and expiration are configured in gcache.xml
+   */
+  static final String CACHE_NAME = "sonia.scm.ldap.sids";
+
+  static final String ATTRIBUTE_TOKEN_GROUPS = "tokenGroups";
+  static final String ATTRIBUTE_OBJECT_SID = "objectSid";
+
+  private static final Logger LOG = LoggerFactory.getLogger(TokenGroupResolver.class);
+
+  private static final String ATTRIBUTE_GROUP_NAME = "cn";
+
+  /**
+   * maximum number of security identifiers which are searched with a single filter
+   */
+  private static final int BATCH_SIZE = 100;
+
+  /**
+   * cached value for identifiers, which do not belong to a group below the group unit
+   */
+  private static final String NO_GROUP = "";
+
+  private final Cache<String, String> cache;
+
+  /**
+   * @param cache cache for the group dns of security identifiers or {@code null}, if nothing should be cached
+   */
+  TokenGroupResolver(Cache<String, String> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the dns of all groups below the group unit, which are transitive groups of the user.
+   */
+  @Override
+  public Set<String> resolve(LdapConnection connection, LdapConfig config, User user) {
+    String userDN = user.getDn();
+    try {
+      Set<String> groups = new HashSet<>();
+      List<byte[]> missing = new ArrayList<>();
+      for (byte[] sid : readTokenGroups(connection, userDN)) {
+        String groupDN = cache != null ? cache.get(LdapUtil.sidToString(sid)) : null;
+        if (groupDN == null) {
+          missing.add(sid);
+        } else if (!groupDN.equals(NO_GROUP)) {
+          groups.add(groupDN);
+        }
+      }
+      LOG.debug("resolved {} token groups of {} from cache, {} have to be searched", groups.size(), userDN, missing.size());
+      for (List<byte[]> batch : Lists.partition(missing, BATCH_SIZE)) {
+        groups.addAll(searchGroups(connection, config, batch));
+      }
+      return groups;
+    } catch (NamingException ex) {
+      throw new LdapException("failed to resolve token groups of " + userDN, ex);
+    }
+  }
+
+  @Override
+  public boolean isTransitive() {
+    return true;
+  }
+
+  /**
+   * The constructed attribute is only returned for searches with object scope.
+   */
+  private List<byte[]> readTokenGroups(LdapConnection connection, String userDN) throws NamingException {
+    SearchControls searchControls = new SearchControls();
+    searchControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+    searchControls.setReturningAttributes(new String[]{ATTRIBUTE_TOKEN_GROUPS});
+
+    List<byte[]> sids = new ArrayList<>();
+    try (AutoCloseableNamingEnumeration<SearchResult> searchResultEnm = connection.search(new LdapName(userDN), "(objectClass=*)", searchControls)) {
+      if (searchResultEnm.hasMore()) {
+        Attribute tokenGroups = searchResultEnm.next().getAttributes().get(ATTRIBUTE_TOKEN_GROUPS);
+        if (tokenGroups != null) {
+          collectSids(tokenGroups, sids);
+        } else {
+          LOG.debug("user {} has no token groups", userDN);
+        }
+      }
+    }
+    return sids;
+  }
+
+  private Set<String> searchGroups(LdapConnection connection, LdapConfig config, List<byte[]> sids) throws NamingException {
+    StringBuilder filter = new StringBuilder("(|");
+    for (byte[] sid : sids) {
+      filter.append('(').append(ATTRIBUTE_OBJECT_SID).append('=').append(LdapUtil.escapeBinary(sid)).append(')');
+    }
+    filter.append(')');
+
+    SearchControls searchControls = new SearchControls();
+    searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    searchControls.setReturningAttributes(new String[]{ATTRIBUTE_GROUP_NAME, ATTRIBUTE_OBJECT_SID});
+
+    String searchDN = LdapQueryPlan.of(config).getGroupBaseDn();
+    LOG.debug("search {} token groups at {}", sids.size(), searchDN);
+
+    Map<String, String> found = new HashMap<>();
+    try (AutoCloseableNamingEnumeration<SearchResult> searchResultEnm = connection.search(searchDN, filter.toString(), searchControls)) {
+      while (searchResultEnm.hasMore()) {
+        SearchResult searchResult = searchResultEnm.next();
+        Attribute objectSid = searchResult.getAttributes().get(ATTRIBUTE_OBJECT_SID);
+        if (objectSid != null && objectSid.get() instanceof byte[]) {
+          found.put(LdapUtil.sidToString((byte[]) objectSid.get()), searchResult.getNameInNamespace());
+        }
+      }
+    }
+
+    for (byte[] sid : sids) {
+      String key = LdapUtil.sidToString(sid);
+      String groupDN = found.get(key);
+      if (cache != null) {
+        // identifiers of builtin groups or groups outside of the unit are cached too, to avoid further searches
+        cache.put(key, groupDN != null ? groupDN : NO_GROUP);
+      }
+    }
+    return new HashSet<>(found.values());
+  }
+
+  private void collectSids(Attribute attribute, List<byte[]> sids) throws NamingException {
+    try (AutoCloseableNamingEnumeration<?> values = new AutoCloseableNamingEnumeration<>(attribute.getAll())) {
+      while (values.hasMore()) {
+        Object value = values.next();
+        if (value instanceof byte[]) {
+          sids.add((byte[]) value);
+        } else {
+          LOG.warn("token group is not returned as binary value, skip {}", value);
+        }
+      }
+    }
+  }
+}
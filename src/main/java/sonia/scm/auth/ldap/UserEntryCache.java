@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import sonia.scm.cache.Cache;
+import sonia.scm.cache.CacheManager;
+
+import javax.naming.directory.Attributes;
+import java.io.Serializable;
+
+/**
+ * Cache for the dn and the attributes of users, which have been logged in. With a cached entry the user search can be
+ * skipped and the login only needs the bind of the user. Size and expiration are configured in gcache.xml.
+ */
+class UserEntryCache {
+
+  static final String CACHE_NAME = "sonia.scm.ldap.userEntries";
+
+  private final Cache<String, UserEntry> cache;
+
+  UserEntryCache(CacheManager cacheManager) {
+    this.cache = cacheManager.getCache(CACHE_NAME);
+  }
+
+  /**
+   * Returns the cached entry of the user or {@code null}, if the user is not cached.
+   */
+  UserEntry get(String username) {
+    return cache.get(username);
+  }
+
+  void put(String username, UserEntry entry) {
+    cache.put(username, entry);
+  }
+
+  void remove(String username) {
+    cache.remove(username);
+  }
+
+  /**
+   * Removes the entries of a user, which was changed in the directory. Entries are matched by their dn and by the
+   * username, because the change of a deleted user may not contain its attributes.
+   */
+  void removeChanged(String dn, String username) {
+    String normalizedDn = LdapDn.normalize(dn);
+    cache.removeAll(key -> {
+      if (username != null && key.equalsIgnoreCase(username)) {
+        return true;
+      }
+      UserEntry entry = cache.get(key);
+      return entry != null && LdapDn.normalize(entry.getDn()).equals(normalizedDn);
+    });
+  }
+
+  /**
+   * The dn and the attributes of a user, which are required to create the user after a successful bind.
+   */
+  static final class UserEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String dn;
+    private final String id;
+    private final String displayName;
+    private final String mail;
+
+    UserEntry(String dn, String id, String displayName, String mail) {
+      this.dn = dn;
+      this.id = id;
+      this.displayName = displayName;
+      this.mail = mail;
+    }
+
+    static UserEntry from(LdapConfig config, String dn, Attributes attributes) {
+      return new UserEntry(
+        dn,
+        LdapUtil.getAttribute(attributes, config.getAttributeNameId()),
+        LdapUtil.getAttribute(attributes, config.getAttributeNameFullname()),
+        LdapUtil.getAttribute(attributes, config.getAttributeNameMail())
+      );
+    }
+
+    String getDn() {
+      return dn;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String getDisplayName() {
+      return displayName;
+    }
+
+    String getMail() {
+      return mail;
+    }
+  }
+}
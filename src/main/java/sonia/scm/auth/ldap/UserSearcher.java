@@ -18,77 +18,73 @@ package sonia.scm.auth.ldap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sonia.scm.util.Util;
 
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.List;
+import javax.naming.ldap.LdapName;
 import java.util.Optional;
 
 class UserSearcher {
 
   private static final Logger logger = LoggerFactory.getLogger(UserSearcher.class);
 
-  private final LdapConfig config;
+  private final LdapQueryPlan plan;
   private final LdapConnection connection;
 
   UserSearcher(LdapConfig config, LdapConnection connection) {
-    this.config = config;
+    this(LdapQueryPlan.of(config), connection);
+  }
+
+  UserSearcher(LdapQueryPlan plan, LdapConnection connection) {
+    this.plan = plan;
     this.connection = connection;
   }
 
-  Optional<SearchResult> search(String username, String... attributes) {
-    SearchControls searchControls = new SearchControls();
-    int scope = LdapUtil.getSearchScope(config.getSearchScope());
+  /**
+   * Searches the user below the people unit and returns the given attributes, which must not contain empty names.
+   */
+  Optional<SearchResult> search(String username, String[] attributes) {
+    int scope = plan.getUserSearchScope();
 
     logger.debug("using scope {} for user search", LdapUtil.getSearchScope(scope));
 
+    return search(plan.getUserBaseDn(), scope, username, attributes);
+  }
+
+  /**
+   * Reads the entry with the given dn, if it matches the user search filter for the username.
+   */
+  Optional<SearchResult> read(String userDN, String username, String[] attributes) {
+    return search(userDN, SearchControls.OBJECT_SCOPE, username, attributes);
+  }
+
+  private Optional<SearchResult> search(String baseDn, int scope, String username, String[] attributes) {
+    SearchControls searchControls = new SearchControls();
     searchControls.setSearchScope(scope);
     searchControls.setCountLimit(1);
-    searchControls.setReturningAttributes(getReturnAttributes(attributes));
+    searchControls.setReturningAttributes(attributes);
 
-    String filter = createUserSearchFilter(username);
-    String baseDn = LdapUtil.createDN(config, config.getUnitPeople());
+    String filter = plan.createUserFilter(username);
+    logger.debug("search-filter for user search: {}", filter);
 
-    try (AutoCloseableNamingEnumeration<SearchResult> searchResultEnm = connection.search(baseDn, filter, searchControls)) {
+    try (AutoCloseableNamingEnumeration<SearchResult> searchResultEnm = connection.search(new LdapName(baseDn), filter, searchControls)) {
       if (searchResultEnm.hasMore()) {
         return Optional.of(searchResultEnm.next());
       } else {
         logger.debug("no user with username {} found", username);
         return Optional.empty();
       }
+    } catch (NameNotFoundException ex) {
+      if (scope == SearchControls.OBJECT_SCOPE) {
+        logger.debug("entry {} of user {} does not exist", baseDn, username);
+        return Optional.empty();
+      }
+      throw new UserSearchFailedException("exception occurred during user search", ex);
     } catch (NamingException ex) {
       throw new UserSearchFailedException("exception occurred during user search", ex);
     }
   }
 
-  private String[] getReturnAttributes(String[] attributes) {
-    List<String> list = new ArrayList<>();
-    for (String attribute : attributes) {
-      appendAttribute(list, attribute);
-    }
-    return list.toArray(new String[0]);
-  }
-
-  private void appendAttribute(List<String> list, String attribute) {
-    if (Util.isNotEmpty(attribute)) {
-      list.add(attribute);
-    }
-  }
-
-  private String createUserSearchFilter(String username) {
-    if (Util.isNotEmpty(config.getSearchFilter())) {
-      String filter = MessageFormat.format(
-        config.getSearchFilter(), LdapUtil.escapeSearchFilter(username)
-      );
-      logger.debug("search-filter for user search: {}", filter);
-      return filter;
-    } else {
-      throw new ConfigurationException("search filter not defined");
-    }
-  }
-
 }
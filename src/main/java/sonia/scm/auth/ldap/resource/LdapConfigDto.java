@@ -53,9 +53,34 @@ public class LdapConfigDto extends HalRepresentation {
   private boolean enabled;
   private boolean enableStartTls;
   private boolean enableNestedADGroups;
+  private String groupResolution;
   private boolean enableNestedGroups;
+  private int nestedGroupBatchSize;
+  private int nestedGroupParallelism;
+  private boolean groupSnapshotEnabled;
+  private long groupSnapshotRefreshInterval;
+  private String groupSnapshotChangeTracking;
+  private long groupSnapshotPollInterval;
+  private String changeNotification;
   private boolean removeInvalidCharacters;
   private boolean excludeGroupsOutsideUnit;
+  private boolean connectionPoolEnabled;
+  private int connectionPoolMinSize;
+  private int connectionPoolMaxSize;
+  private long connectionPoolBorrowTimeout;
+  private long connectionPoolIdleTimeout;
+  private boolean verifyCredentialsByRebind;
+  private boolean directBindEnabled;
+  private String userDnTemplate;
+  private int loginFailureThreshold;
+  private int sourceFailureThreshold;
+  private long loginBackoff;
+  private long loginMaxBackoff;
+  private int connectTimeout;
+  private int searchPageSize;
+  private long serverCoolDown;
+  private int circuitBreakerFailureThreshold;
+  private int circuitBreakerHalfOpenCalls;
 
   public LdapConfigDto(Links links) {
     super(links);
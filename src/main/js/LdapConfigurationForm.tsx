@@ -38,10 +38,35 @@ type LdapConfiguration = {
   unitGroup: string;
   referralStrategy: string;
   enableNestedGroups: boolean;
+  nestedGroupBatchSize: number;
+  nestedGroupParallelism: number;
+  groupSnapshotEnabled: boolean;
+  groupSnapshotRefreshInterval: number;
+  groupSnapshotChangeTracking: string;
+  groupSnapshotPollInterval: number;
+  changeNotification: string;
   enableNestedADGroups: boolean;
+  groupResolution: string;
   enableStartTls: boolean;
   excludeGroupsOutsideUnit: boolean;
   removeInvalidCharacters: boolean;
+  connectionPoolEnabled: boolean;
+  connectionPoolMinSize: number;
+  connectionPoolMaxSize: number;
+  connectionPoolBorrowTimeout: number;
+  connectionPoolIdleTimeout: number;
+  verifyCredentialsByRebind: boolean;
+  directBindEnabled: boolean;
+  userDnTemplate: string;
+  loginFailureThreshold: number;
+  sourceFailureThreshold: number;
+  loginBackoff: number;
+  loginMaxBackoff: number;
+  connectTimeout: number;
+  searchPageSize: number;
+  serverCoolDown: number;
+  circuitBreakerFailureThreshold: number;
+  circuitBreakerHalfOpenCalls: number;
   enabled: boolean;
 };
 
@@ -146,15 +171,51 @@ class LdapConfigurationForm extends React.Component<Props, State> {
         {this.createInputField("searchFilterGroup")}
         {this.createDropDown("searchScope", ["object", "one", "sub"])}
         {this.createDropDown("referralStrategy", ["FOLLOW", "IGNORE", "THROW"])}
+        {this.createDropDown("groupResolution", ["BOTH", "ATTRIBUTE", "SEARCH", "TOKEN_GROUPS"])}
+        {this.createInputField("connectTimeout", "number", "is-half")}
+        {this.createInputField("searchPageSize", "number", "is-half")}
+        {this.createInputField("serverCoolDown", "number", "is-half")}
+        {this.createInputField("circuitBreakerFailureThreshold", "number", "is-half")}
+        {this.createInputField("circuitBreakerHalfOpenCalls", "number", "is-half")}
         <div className="column is-full">
           {this.createCheckbox("enableNestedGroups")}
         </div>
         {this.createInputField("searchFilterNestedGroup", "text", "is-full", !this.state.enableNestedGroups)}
+        {this.createInputField("nestedGroupBatchSize", "number", "is-half", !this.state.enableNestedGroups)}
+        {this.createInputField("nestedGroupParallelism", "number", "is-half", !this.state.enableNestedGroups)}
+        <div className="column is-full">
+          {this.createCheckbox("groupSnapshotEnabled")}
+        </div>
+        {this.createInputField("groupSnapshotRefreshInterval", "number", "is-half", !this.state.groupSnapshotEnabled)}
+        {this.createDropDown("groupSnapshotChangeTracking", ["NONE", "MODIFY_TIMESTAMP", "USN_CHANGED"])}
+        {this.createInputField(
+          "groupSnapshotPollInterval",
+          "number",
+          "is-half",
+          !this.state.groupSnapshotEnabled || this.state.groupSnapshotChangeTracking === "NONE"
+        )}
+        {this.createDropDown("changeNotification", ["NONE", "PERSISTENT_SEARCH", "AD_NOTIFICATION"])}
         <div className="column is-full">
           {this.createCheckbox("enableNestedADGroups")}
           {this.createCheckbox("enableStartTls")}
           {this.createCheckbox("removeInvalidCharacters")}
           {this.createCheckbox("excludeGroupsOutsideUnit")}
+          {this.createCheckbox("connectionPoolEnabled")}
+        </div>
+        {this.createInputField("connectionPoolMinSize", "number", "is-half", !this.state.connectionPoolEnabled)}
+        {this.createInputField("connectionPoolMaxSize", "number", "is-half", !this.state.connectionPoolEnabled)}
+        {this.createInputField("connectionPoolBorrowTimeout", "number", "is-half", !this.state.connectionPoolEnabled)}
+        {this.createInputField("connectionPoolIdleTimeout", "number", "is-half", !this.state.connectionPoolEnabled)}
+        <div className="column is-full">
+          {this.createCheckbox("verifyCredentialsByRebind")}
+          {this.createCheckbox("directBindEnabled")}
+        </div>
+        {this.createInputField("userDnTemplate", "text", "is-full", !this.state.directBindEnabled)}
+        {this.createInputField("loginFailureThreshold", "number", "is-half")}
+        {this.createInputField("sourceFailureThreshold", "number", "is-half")}
+        {this.createInputField("loginBackoff", "number", "is-half")}
+        {this.createInputField("loginMaxBackoff", "number", "is-half")}
+        <div className="column is-full">
           {this.createCheckbox("enabled")}
         </div>
         <div className="column is-full">
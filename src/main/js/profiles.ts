@@ -29,6 +29,7 @@ export const PROFILES = {
     enableNestedADGroups: true,
     enableNestedGroups: false,
     excludeGroupsOutsideUnit: false,
+    groupResolution: "TOKEN_GROUPS",
     referralStrategy: "FOLLOW"
   },
   Apache: {
@@ -45,6 +46,7 @@ export const PROFILES = {
     enableNestedADGroups: false,
     enableNestedGroups: false,
     excludeGroupsOutsideUnit: false,
+    groupResolution: "SEARCH",
     referralStrategy: "FOLLOW"
   },
   OpenDJ: {
@@ -61,6 +63,7 @@ export const PROFILES = {
     enableNestedADGroups: false,
     enableNestedGroups: false,
     excludeGroupsOutsideUnit: false,
+    groupResolution: "SEARCH",
     referralStrategy: "FOLLOW",
   },
   OpenLDAP: {
@@ -77,6 +80,7 @@ export const PROFILES = {
     enableNestedADGroups: false,
     enableNestedGroups: false,
     excludeGroupsOutsideUnit: false,
+    groupResolution: "SEARCH",
     referralStrategy: "FOLLOW"
   },
   posix: {
@@ -93,6 +97,7 @@ export const PROFILES = {
     enableNestedADGroups: false,
     enableNestedGroups: false,
     excludeGroupsOutsideUnit: false,
+    groupResolution: "SEARCH",
     referralStrategy: "FOLLOW"
   },
   sun: {
@@ -109,6 +114,7 @@ export const PROFILES = {
     enableNestedADGroups: false,
     enableNestedGroups: false,
     excludeGroupsOutsideUnit: false,
+    groupResolution: "SEARCH",
     referralStrategy: "FOLLOW"
   },
   Custom: {}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GroupSnapshotIndexTest extends LdapTestBase {
+
+  private static final String SHIPS = "cn=Ships,ou=Groups,dc=scm-manager,dc=org";
+
+  private final LdapConnectionFactory connectionFactory = mock(LdapConnectionFactory.class);
+  private final AtomicInteger changes = new AtomicInteger();
+  private final List<String> filters = new ArrayList<>();
+
+  private LdapConfig config;
+  private GroupSnapshotIndex index;
+
+  @BeforeEach
+  void setUpIndex() {
+    config = createConfig();
+    config.setGroupSnapshotEnabled(true);
+    config.setGroupSnapshotChangeTracking(ChangeTracking.USN_CHANGED);
+    index = new GroupSnapshotIndex(connectionFactory, () -> 0L, Runnable::run, changes::incrementAndGet);
+  }
+
+  @Test
+  void shouldSearchChangesAtServerOfSnapshot() throws NamingException {
+    LdapConnection dc1 = connection("ldap://dc1", "4711");
+    when(connectionFactory.createBindConnection(config)).thenReturn(dc1);
+    when(connectionFactory.createBindConnection(config, "ldap://dc1")).thenReturn(dc1);
+    index.refresh(config);
+
+    index.applyChanges(config);
+
+    assertThat(filters).hasSize(2);
+    assertThat(filters.get(1)).contains("(uSNChanged>=4712)");
+  }
+
+  @Test
+  void shouldReloadSnapshotIfServerOfUsnHasChanged() throws NamingException {
+    LdapConnection dc1 = connection("ldap://dc1", "4711");
+    LdapConnection dc2 = connection("ldap://dc2", "42");
+    when(connectionFactory.createBindConnection(config)).thenReturn(dc1);
+    when(connectionFactory.createBindConnection(config, "ldap://dc1")).thenReturn(dc2);
+    index.refresh(config);
+
+    assertThat(index.applyChanges(config)).isEqualTo(1);
+
+    assertThat(filters).hasSize(2);
+    assertThat(filters.get(1)).doesNotContain("uSNChanged>=");
+    GroupSnapshot snapshot = index.get(config).orElseThrow();
+    assertThat(snapshot.getSource()).isEqualTo("ldap://dc2");
+    assertThat(snapshot.getWatermark()).isEqualTo("42");
+    assertThat(changes).hasValue(1);
+  }
+
+  @Test
+  void shouldRemoveMembersOfGroupWithoutMembers() throws NamingException {
+    LdapConnection connection = mock(LdapConnection.class);
+    when(connection.getServerUrl()).thenReturn("ldap://dc1");
+    doAnswer(invocation -> {
+      filters.add(invocation.getArgument(1));
+      LdapConnection.SearchResultHandler handler = invocation.getArgument(4);
+      if (filters.size() == 1) {
+        handler.handle(group(SHIPS, "4711", "uid=trillian,ou=People,dc=scm-manager,dc=org"));
+      } else {
+        // the last member was removed, other entries without members are not added to the snapshot
+        handler.handle(group(SHIPS, "4712"));
+        handler.handle(group("cn=Boats,ou=Groups,dc=scm-manager,dc=org", "4713"));
+      }
+      return null;
+    }).when(connection).search(anyString(), anyString(), any(SearchControls.class), anyInt(), any());
+    when(connectionFactory.createBindConnection(config)).thenReturn(connection);
+    when(connectionFactory.createBindConnection(config, "ldap://dc1")).thenReturn(connection);
+    index.refresh(config);
+
+    assertThat(index.applyChanges(config)).isOne();
+
+    assertThat(filters.get(1)).isEqualTo("(uSNChanged>=4712)");
+    GroupSnapshot snapshot = index.get(config).orElseThrow();
+    assertThat(snapshot.getGroups("uid=trillian,ou=People,dc=scm-manager,dc=org", "trillian", null)).isEmpty();
+    assertThat(snapshot.getGroupCount()).isOne();
+    assertThat(snapshot.getWatermark()).isEqualTo("4713");
+  }
+
+  private SearchResult group(String dn, String usn, String... members) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    if (members.length > 0) {
+      BasicAttribute memberAttribute = new BasicAttribute("uniqueMember");
+      for (String member : members) {
+        memberAttribute.add(member);
+      }
+      attributes.put(memberAttribute);
+    }
+    attributes.put(new BasicAttribute("uSNChanged", usn));
+    SearchResult result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+  private LdapConnection connection(String url, String usn) throws NamingException {
+    LdapConnection connection = mock(LdapConnection.class);
+    when(connection.getServerUrl()).thenReturn(url);
+    doAnswer(invocation -> {
+      filters.add(invocation.getArgument(1));
+      BasicAttributes attributes = new BasicAttributes(true);
+      attributes.put(new BasicAttribute("uniqueMember", "uid=trillian,ou=People,dc=scm-manager,dc=org"));
+      attributes.put(new BasicAttribute("uSNChanged", usn));
+      SearchResult result = new SearchResult("cn=Ships,ou=Groups", null, attributes);
+      result.setNameInNamespace(SHIPS);
+      invocation.<LdapConnection.SearchResultHandler>getArgument(4).handle(result);
+      return null;
+    }).when(connection).search(anyString(), anyString(), any(SearchControls.class), anyInt(), any());
+    return connection;
+  }
+}
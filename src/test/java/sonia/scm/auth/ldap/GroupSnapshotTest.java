@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GroupSnapshotTest {
+
+  private static final String USER = "uid=trillian,ou=People,dc=hitchhiker,dc=com";
+  private static final String HEART_OF_GOLD = "cn=HeartOfGold,ou=Groups,dc=hitchhiker,dc=com";
+  private static final String SHIPS = "cn=Ships,ou=Groups,dc=hitchhiker,dc=com";
+  private static final String VEHICLES = "cn=Vehicles,ou=Groups,dc=hitchhiker,dc=com";
+
+  private final MembershipAttribute uniqueMember = MembershipAttribute.parse("(uniqueMember={0})").orElseThrow();
+
+  @Test
+  void shouldFindDirectGroupsOfUser() {
+    GroupSnapshot snapshot = builder(null)
+      .addGroup(HEART_OF_GOLD)
+      .addMember(HEART_OF_GOLD, USER)
+      .build();
+
+    assertThat(snapshot.getGroups(USER.toUpperCase(), "trillian", null)).containsOnly(HEART_OF_GOLD);
+  }
+
+  @Test
+  void shouldFindDirectGroupsOfUserWithDifferentlyFormattedDn() {
+    GroupSnapshot snapshot = builder(null)
+      .addGroup(HEART_OF_GOLD)
+      .addMember(HEART_OF_GOLD, "UID=trillian, ou=People, dc=hitchhiker, dc=com")
+      .build();
+
+    assertThat(snapshot.getGroups(USER, "trillian", null)).containsOnly(HEART_OF_GOLD);
+  }
+
+  @Test
+  void shouldFindGroupsByName() {
+    MembershipAttribute memberUid = MembershipAttribute.parse("(&(objectClass=posixGroup)(memberUid={1}))").orElseThrow();
+    GroupSnapshot snapshot = new GroupSnapshot.Builder("key", 0, memberUid, null)
+      .addGroup(HEART_OF_GOLD)
+      .addMember(HEART_OF_GOLD, "trillian")
+      .build();
+
+    assertThat(snapshot.getGroups(USER, "trillian", null)).containsOnly(HEART_OF_GOLD);
+  }
+
+  @Test
+  void shouldAddTransitiveParents() {
+    GroupSnapshot snapshot = builder(uniqueMember)
+      .addGroup(HEART_OF_GOLD)
+      .addGroup(SHIPS)
+      .addGroup(VEHICLES)
+      .addChild(SHIPS, HEART_OF_GOLD)
+      .addChild(VEHICLES, SHIPS)
+      .build();
+
+    assertThat(snapshot.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD, SHIPS, VEHICLES);
+  }
+
+  @Test
+  void shouldAddTransitiveParentsWithDifferentlyFormattedDns() {
+    GroupSnapshot snapshot = builder(uniqueMember)
+      .addGroup(HEART_OF_GOLD)
+      .addGroup(SHIPS)
+      .addGroup(VEHICLES)
+      .addChild(SHIPS, "cn=HeartOfGold, ou=Groups, dc=hitchhiker, dc=com")
+      .addChild(VEHICLES, "CN=Ships,OU=Groups,DC=hitchhiker,DC=com")
+      .build();
+
+    assertThat(snapshot.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD, SHIPS, VEHICLES);
+  }
+
+  @Test
+  void shouldHandleCycles() {
+    GroupSnapshot snapshot = builder(uniqueMember)
+      .addGroup(SHIPS)
+      .addGroup(VEHICLES)
+      .addChild(SHIPS, VEHICLES)
+      .addChild(VEHICLES, SHIPS)
+      .build();
+
+    assertThat(snapshot.withParents(List.of(SHIPS))).containsOnly(SHIPS, VEHICLES);
+  }
+
+  @Test
+  void shouldNotAddParentsWithoutNesting() {
+    GroupSnapshot snapshot = builder(null)
+      .addGroup(HEART_OF_GOLD)
+      .addGroup(SHIPS)
+      .addChild(SHIPS, HEART_OF_GOLD)
+      .build();
+
+    assertThat(snapshot.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD);
+  }
+
+  @Test
+  void shouldApplyChangedMembers() {
+    GroupSnapshot snapshot = builder(null)
+      .addGroup(HEART_OF_GOLD)
+      .addGroup(SHIPS)
+      .addMember(HEART_OF_GOLD, USER)
+      .watermark("20201020100000Z")
+      .build();
+
+    GroupSnapshot updated = snapshot.update(
+      List.of(new GroupSnapshot.Group(HEART_OF_GOLD), new GroupSnapshot.Group(SHIPS).addMember(USER)),
+      "20201020110000Z",
+      42
+    );
+
+    assertThat(updated.getGroups(USER, "trillian", null)).containsOnly(SHIPS);
+    assertThat(updated.getWatermark()).isEqualTo("20201020110000Z");
+    assertThat(updated.getUpdatedAt()).isEqualTo(42);
+    assertThat(updated.getCreatedAt()).isZero();
+    assertThat(snapshot.getGroups(USER, "trillian", null)).containsOnly(HEART_OF_GOLD);
+  }
+
+  @Test
+  void shouldRecomputeParentsOfChangedNesting() {
+    GroupSnapshot snapshot = builder(uniqueMember)
+      .addGroup(HEART_OF_GOLD)
+      .addGroup(SHIPS)
+      .addGroup(VEHICLES)
+      .addChild(SHIPS, HEART_OF_GOLD)
+      .build();
+
+    GroupSnapshot updated = snapshot.update(List.of(new GroupSnapshot.Group(VEHICLES).addChild(SHIPS)), null, 42);
+
+    assertThat(updated.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD, SHIPS, VEHICLES);
+    assertThat(snapshot.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD, SHIPS);
+  }
+
+  @Test
+  void shouldRemoveParentsOfRemovedNesting() {
+    GroupSnapshot snapshot = builder(uniqueMember)
+      .addGroup(HEART_OF_GOLD)
+      .addGroup(SHIPS)
+      .addGroup(VEHICLES)
+      .addChild(SHIPS, HEART_OF_GOLD)
+      .addChild(VEHICLES, SHIPS)
+      .build();
+
+    GroupSnapshot updated = snapshot.update(List.of(new GroupSnapshot.Group(SHIPS)), null, 42);
+
+    assertThat(updated.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD);
+    assertThat(updated.withParents(List.of(SHIPS))).containsOnly(SHIPS, VEHICLES);
+  }
+
+  @Test
+  void shouldAddNewGroups() {
+    GroupSnapshot snapshot = builder(uniqueMember)
+      .addGroup(HEART_OF_GOLD)
+      .build();
+
+    GroupSnapshot updated = snapshot.update(
+      List.of(new GroupSnapshot.Group(SHIPS).addMember(USER).addChild(HEART_OF_GOLD)), null, 42
+    );
+
+    assertThat(updated.getGroupCount()).isEqualTo(2);
+    assertThat(updated.getGroups(USER, "trillian", null)).containsOnly(SHIPS);
+    assertThat(updated.withParents(List.of(HEART_OF_GOLD))).containsOnly(HEART_OF_GOLD, SHIPS);
+  }
+
+  @Test
+  void shouldCreateFilterForChangedEntries() {
+    assertThat(ChangeTracking.MODIFY_TIMESTAMP.createFilter("20201020100000Z"))
+      .isEqualTo("(modifyTimestamp>=20201020100000Z)");
+    assertThat(ChangeTracking.USN_CHANGED.createFilter("4711")).isEqualTo("(uSNChanged>=4712)");
+  }
+
+  @Test
+  void shouldCompareWatermarks() {
+    assertThat(ChangeTracking.USN_CHANGED.max("999", "1000")).isEqualTo("1000");
+    assertThat(ChangeTracking.USN_CHANGED.max(null, "42")).isEqualTo("42");
+    assertThat(ChangeTracking.MODIFY_TIMESTAMP.max("20201020110000Z", "20201020100000Z")).isEqualTo("20201020110000Z");
+    assertThat(ChangeTracking.MODIFY_TIMESTAMP.max("20201020110000Z", null)).isEqualTo("20201020110000Z");
+  }
+
+  private GroupSnapshot.Builder builder(MembershipAttribute nestedAttribute) {
+    return new GroupSnapshot.Builder("key", 0, uniqueMember, nestedAttribute);
+  }
+}
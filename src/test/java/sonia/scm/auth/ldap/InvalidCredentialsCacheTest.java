@@ -17,6 +17,7 @@
 package sonia.scm.auth.ldap;
 
 import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.ExcessiveAttemptsException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.junit.Assert;
 import org.junit.jupiter.api.BeforeEach;
@@ -28,9 +29,16 @@ import sonia.scm.cache.Cache;
 import sonia.scm.cache.CacheManager;
 
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.when;
@@ -42,7 +50,8 @@ class InvalidCredentialsCacheTest {
   private CacheManager cacheManager;
   @Mock
   private Cache<Object, Object> cache;
-  private final Map<Object, Object> cacheBackend = new HashMap<>();
+  private final Map<Object, Object> cacheBackend = new ConcurrentHashMap<>();
+  private final AtomicLong clock = new AtomicLong(1000);
   private InvalidCredentialsCache invalidCredentialsCache;
 
 
@@ -54,7 +63,7 @@ class InvalidCredentialsCacheTest {
       .thenAnswer(invocation -> cacheBackend.containsKey(invocation.getArgument(0)));
     lenient().when(cache.put(any(), any()))
       .thenAnswer(invocation -> cacheBackend.put(invocation.getArgument(0), invocation.getArgument(1)));
-    invalidCredentialsCache = new InvalidCredentialsCache(cacheManager);
+    invalidCredentialsCache = new InvalidCredentialsCache(cacheManager, clock::get);
   }
 
   @Test
@@ -73,4 +82,190 @@ class InvalidCredentialsCacheTest {
     UsernamePasswordToken otherToken = new UsernamePasswordToken("trillian", "unknown");
     invalidCredentialsCache.verifyNotInvalid(otherToken);
   }
+
+  @Test
+  void shouldComputeKeysConcurrently() throws Exception {
+    int threads = 8;
+    int tokensPerThread = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        String username = "user-" + t;
+        results.add(executor.submit(() -> {
+          for (int i = 0; i < tokensPerThread; i++) {
+            UsernamePasswordToken token = new UsernamePasswordToken(username, "password-" + i);
+            invalidCredentialsCache.cacheAsInvalid(token);
+            Assert.assertThrows(AuthenticationException.class, () -> invalidCredentialsCache.verifyNotInvalid(token));
+            invalidCredentialsCache.verifyNotInvalid(new UsernamePasswordToken(username, "valid-" + i));
+          }
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(cacheBackend).hasSize(threads * tokensPerThread);
+  }
+
+  @Test
+  void shouldHandleLongPasswords() {
+    UsernamePasswordToken token = new UsernamePasswordToken("trillian", "\u00e4".repeat(500));
+    invalidCredentialsCache.cacheAsInvalid(token);
+
+    Assert.assertThrows(AuthenticationException.class, () -> invalidCredentialsCache.verifyNotInvalid(token));
+    invalidCredentialsCache.verifyNotInvalid(new UsernamePasswordToken("trillian", "\u00e4".repeat(499)));
+  }
+
+  @Test
+  void shouldNotIgnoreCharactersAfterLoneSurrogate() {
+    UsernamePasswordToken token = new UsernamePasswordToken("trillian", "heart\uD800of gold");
+    invalidCredentialsCache.cacheAsInvalid(token);
+
+    Assert.assertThrows(AuthenticationException.class, () -> invalidCredentialsCache.verifyNotInvalid(token));
+    invalidCredentialsCache.verifyNotInvalid(new UsernamePasswordToken("trillian", "heart\uD800of silver"));
+  }
+
+  @Test
+  void shouldThrottleUserAfterThreshold() {
+    LdapConfig config = createThrottleConfig();
+    recordFailures("trillian", "10.0.0.1", 3, config);
+
+    UsernamePasswordToken token = new UsernamePasswordToken("Trillian", "next guess", "10.0.0.2");
+    Assert.assertThrows(ExcessiveAttemptsException.class, () -> invalidCredentialsCache.verifyNotThrottled(token, config));
+    assertThat(invalidCredentialsCache.getUserFailureCount("trillian")).isEqualTo(3);
+    assertThat(invalidCredentialsCache.getRejectionCount()).isOne();
+  }
+
+  @Test
+  void shouldSummarizeCounters() {
+    LdapConfig config = createThrottleConfig();
+    recordFailures("trillian", "10.0.0.1", 3, config);
+    recordFailures("dent", "10.0.0.2", 1, config);
+    UsernamePasswordToken token = new UsernamePasswordToken("trillian", "next guess", "10.0.0.1");
+    Assert.assertThrows(ExcessiveAttemptsException.class, () -> invalidCredentialsCache.verifyNotThrottled(token, config));
+
+    assertThat(invalidCredentialsCache.getStatistics())
+      .isEqualTo("failures are counted for 2 users and 2 sources, 1 logins were rejected without contacting the directory");
+  }
+
+  @Test
+  void shouldNotThrottleBelowThreshold() {
+    LdapConfig config = createThrottleConfig();
+    recordFailures("trillian", "10.0.0.1", 2, config);
+
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("trillian", "next guess", "10.0.0.1"), config);
+  }
+
+  @Test
+  void shouldDoubleBackoffWithEveryFailure() {
+    LdapConfig config = createThrottleConfig();
+    UsernamePasswordToken token = new UsernamePasswordToken("trillian", "next guess");
+    recordFailures("trillian", null, 4, config);
+
+    clock.addAndGet(1500);
+    Assert.assertThrows(ExcessiveAttemptsException.class, () -> invalidCredentialsCache.verifyNotThrottled(token, config));
+
+    clock.addAndGet(500);
+    invalidCredentialsCache.verifyNotThrottled(token, config);
+  }
+
+  @Test
+  void shouldThrottleSourceAfterThreshold() {
+    LdapConfig config = createThrottleConfig();
+    for (int i = 0; i < 10; i++) {
+      recordFailures("user-" + i, "10.0.0.1", 1, config);
+    }
+
+    UsernamePasswordToken token = new UsernamePasswordToken("zaphod", "guess", "10.0.0.1");
+    Assert.assertThrows(ExcessiveAttemptsException.class, () -> invalidCredentialsCache.verifyNotThrottled(token, config));
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("zaphod", "guess", "10.0.0.2"), config);
+    assertThat(invalidCredentialsCache.getSourceFailureCount("10.0.0.1")).isEqualTo(10);
+  }
+
+  @Test
+  void shouldNotThrottleSharedProxyByDefault() {
+    LdapConfig config = createThrottleConfig();
+    config.setSourceFailureThreshold(new LdapConfig().getSourceFailureThreshold());
+    for (int i = 0; i < 100; i++) {
+      recordFailures("user-" + i, "proxy", 1, config);
+    }
+
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("zaphod", "heartofgold", "proxy"), config);
+    assertThat(invalidCredentialsCache.getSourceFailureCount("proxy")).isZero();
+  }
+
+  @Test
+  void shouldDecreaseSourceFailuresWithSuccessfulLogins() {
+    LdapConfig config = createThrottleConfig();
+    for (int i = 0; i < 30; i++) {
+      // occasional typos of users behind a shared proxy, between successful logins of other users
+      recordFailures("user-" + i, "proxy", 1, config);
+      invalidCredentialsCache.resetFailures(new UsernamePasswordToken("other-" + i, "secret", "proxy"));
+    }
+
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("zaphod", "heartofgold", "proxy"), config);
+    assertThat(invalidCredentialsCache.getSourceFailureCount("proxy")).isZero();
+  }
+
+  @Test
+  void shouldNotExtendSourceWindowBelowThreshold() {
+    LdapConfig config = createThrottleConfig();
+    for (int i = 0; i < 12; i++) {
+      // a failure every 10 seconds, the window of 60 seconds starts with the first one
+      recordFailures("user-" + i, "proxy", 1, config);
+      clock.addAndGet(10000);
+    }
+
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("zaphod", "heartofgold", "proxy"), config);
+    assertThat(invalidCredentialsCache.getSourceFailureCount("proxy")).isLessThan(10);
+  }
+
+  @Test
+  void shouldResetUserFailuresAfterSuccessfulLogin() {
+    LdapConfig config = createThrottleConfig();
+    recordFailures("trillian", "10.0.0.1", 3, config);
+
+    invalidCredentialsCache.resetFailures(new UsernamePasswordToken("trillian", "trilli123"));
+
+    assertThat(invalidCredentialsCache.getUserFailureCount("trillian")).isZero();
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("trillian", "trilli123"), config);
+  }
+
+  @Test
+  void shouldNotThrottleIfDisabled() {
+    LdapConfig config = createThrottleConfig();
+    config.setLoginFailureThreshold(0);
+    recordFailures("trillian", null, 10, config);
+
+    invalidCredentialsCache.verifyNotThrottled(new UsernamePasswordToken("trillian", "next guess"), config);
+  }
+
+  @Test
+  void shouldForgetFailuresAfterMaxBackoff() {
+    LdapConfig config = createThrottleConfig();
+    recordFailures("trillian", null, 2, config);
+    clock.addAndGet(60001);
+    recordFailures("trillian", null, 1, config);
+
+    assertThat(invalidCredentialsCache.getUserFailureCount("trillian")).isOne();
+  }
+
+  private LdapConfig createThrottleConfig() {
+    LdapConfig config = new LdapConfig();
+    config.setLoginFailureThreshold(3);
+    config.setSourceFailureThreshold(10);
+    config.setLoginBackoff(1);
+    config.setLoginMaxBackoff(60);
+    return config;
+  }
+
+  private void recordFailures(String username, String host, int count, LdapConfig config) {
+    for (int i = 0; i < count; i++) {
+      invalidCredentialsCache.recordFailure(new UsernamePasswordToken(username, "guess-" + i, host), config);
+    }
+  }
 }
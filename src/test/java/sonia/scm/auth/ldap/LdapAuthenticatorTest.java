@@ -16,15 +16,24 @@
 
 package sonia.scm.auth.ldap;
 
+import com.unboundid.ldap.sdk.LDAPException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import sonia.scm.auth.ldap.UserEntryCache.UserEntry;
+import sonia.scm.cache.Cache;
+import sonia.scm.cache.CacheManager;
 import sonia.scm.user.User;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 class LdapAuthenticatorTest extends LdapServerTestBaseJunit5 {
 
@@ -76,6 +85,33 @@ class LdapAuthenticatorTest extends LdapServerTestBaseJunit5 {
     assertThrows(UserAuthenticationFailedException.class, () -> authenticator.authenticate("trillian", "i_don't_know"));
   }
 
+  @Test
+  void shouldNotAuthenticateWrongPasswordAfterSuccessfulLogin() {
+    ldif(1);
+
+    assertThat(authenticator.authenticate("trillian", "trilli123")).isPresent();
+    assertThrows(UserAuthenticationFailedException.class, () -> authenticator.authenticate("trillian", "i_don't_know"));
+    assertThat(authenticator.authenticate("trillian", "trilli123")).isPresent();
+  }
+
+  @Test
+  void shouldAuthenticateOtherUserWithReusedConnection() {
+    ldif(10);
+
+    assertThat(authenticator.authenticate("trillian", "trilli123")).isPresent();
+    assertThat(authenticator.authenticate("zaphod", "zaphod123")).isPresent();
+    assertThrows(UserAuthenticationFailedException.class, () -> authenticator.authenticate("zaphod", "trilli123"));
+  }
+
+  @Test
+  void shouldAuthenticateWithNewConnectionIfRebindIsDisabled() {
+    ldif(1);
+    config.setVerifyCredentialsByRebind(false);
+
+    assertThat(authenticator.authenticate("trillian", "trilli123")).isPresent();
+    assertThrows(UserAuthenticationFailedException.class, () -> authenticator.authenticate("trillian", "i_don't_know"));
+  }
+
   @Test
   void shouldThrowConfigurationExceptionIfNoBaseDNWasDefined() {
     config.setBaseDn(null);
@@ -121,6 +157,140 @@ class LdapAuthenticatorTest extends LdapServerTestBaseJunit5 {
     assertThat(optionalUser.get().getDisplayName()).isEqualTo("zaphod");
   }
 
+  @Test
+  void shouldSkipUserSearchWithCachedUserEntry() {
+    ldif(1);
+    LdapAuthenticator cachingAuthenticator = createCachingAuthenticator(new HashMap<>());
+
+    assertThat(cachingAuthenticator.authenticate("trillian", "trilli123")).isPresent();
+    // the user search would fail now
+    config.setUnitPeople("cn=totally wrong");
+
+    Optional<User> optionalUser = cachingAuthenticator.authenticate("trillian", "trilli123");
+    assertThat(optionalUser).isPresent();
+    assertTrillian(optionalUser.get());
+  }
+
+  @Test
+  void shouldNotAuthenticateWrongPasswordWithCachedUserEntry() {
+    ldif(1);
+    Map<String, UserEntry> cacheBackend = new HashMap<>();
+    LdapAuthenticator cachingAuthenticator = createCachingAuthenticator(cacheBackend);
+
+    assertThat(cachingAuthenticator.authenticate("trillian", "trilli123")).isPresent();
+    assertThrows(UserAuthenticationFailedException.class, () -> cachingAuthenticator.authenticate("trillian", "i_don't_know"));
+    assertThat(cacheBackend).doesNotContainKey("trillian");
+  }
+
+  @Test
+  void shouldSearchUserAgainIfCachedDnIsStale() {
+    ldif(1);
+    Map<String, UserEntry> cacheBackend = new HashMap<>();
+    cacheBackend.put("trillian", new UserEntry("uid=trillian,ou=Moved,dc=scm-manager,dc=org", "trillian", "Trillian", null));
+    LdapAuthenticator cachingAuthenticator = createCachingAuthenticator(cacheBackend);
+
+    Optional<User> optionalUser = cachingAuthenticator.authenticate("trillian", "trilli123");
+    assertThat(optionalUser).isPresent();
+    assertTrillian(optionalUser.get());
+    assertThat(cacheBackend.get("trillian").getDn()).isEqualTo("uid=trillian,ou=People,dc=scm-manager,dc=org");
+  }
+
+  @Test
+  void shouldEvaluateSearchFilterForCachedUserEntry() {
+    ldif(1);
+    Map<String, UserEntry> cacheBackend = new HashMap<>();
+    LdapAuthenticator cachingAuthenticator = createCachingAuthenticator(cacheBackend);
+
+    assertThat(cachingAuthenticator.authenticate("trillian", "trilli123")).isPresent();
+    // e.g. the user was removed from the group, which is required by the search filter
+    config.setSearchFilter("(&(uid={0})(objectClass=organizationalUnit))");
+
+    assertThat(cachingAuthenticator.authenticate("trillian", "trilli123")).isEmpty();
+    assertThat(cacheBackend).doesNotContainKey("trillian");
+  }
+
+  @Test
+  void shouldReadCachedUserEntryWithSlashInDn() throws LDAPException {
+    ldif(1);
+    ldapServer.add(
+      "dn: cn=Arthur Dent/Earth,ou=People,dc=scm-manager,dc=org",
+      "objectClass: inetOrgPerson",
+      "objectClass: organizationalPerson",
+      "objectClass: person",
+      "objectClass: top",
+      "cn: Arthur Dent/Earth",
+      "sn: Dent",
+      "uid: dent",
+      "userPassword: dent123"
+    );
+    Map<String, UserEntry> cacheBackend = new HashMap<>();
+    LdapAuthenticator cachingAuthenticator = createCachingAuthenticator(cacheBackend);
+
+    assertThat(cachingAuthenticator.authenticate("dent", "dent123")).isPresent();
+    assertThat(cachingAuthenticator.authenticate("dent", "dent123")).isPresent();
+    assertThrows(UserAuthenticationFailedException.class, () -> cachingAuthenticator.authenticate("dent", "dent456"));
+  }
+
+  @Test
+  void shouldAuthenticateWithDirectBind() {
+    ldif(1);
+    enableDirectBind();
+    // the connection dn is not used for direct binds
+    config.setConnectionPassword("totally wrong");
+
+    Optional<User> optionalUser = authenticator.authenticate("trillian", "trilli123");
+    assertThat(optionalUser).isPresent();
+    assertTrillian(optionalUser.get());
+  }
+
+  @Test
+  void shouldThrowUserAuthenticationFailedExceptionForWrongPasswordWithDirectBind() {
+    ldif(1);
+    enableDirectBind();
+
+    assertThrows(UserAuthenticationFailedException.class, () -> authenticator.authenticate("trillian", "i_don't_know"));
+  }
+
+  @Test
+  void shouldNotBindAnonymouslyWithDirectBind() {
+    ldif(1);
+    enableDirectBind();
+
+    assertThrows(UserAuthenticationFailedException.class, () -> authenticator.authenticate("trillian", ""));
+  }
+
+  @Test
+  void shouldReturnEmptyOptionalIfEntryDoesNotMatchSearchFilterWithDirectBind() {
+    ldif(1);
+    enableDirectBind();
+    config.setSearchFilter("(&(uid={0})(objectClass=organizationalUnit))");
+
+    assertThat(authenticator.authenticate("trillian", "trilli123")).isEmpty();
+  }
+
+  @Test
+  void shouldThrowConfigurationExceptionIfNoUserDnTemplateWasDefined() {
+    config.setDirectBindEnabled(true);
+
+    assertThrows(ConfigurationException.class, () -> authenticator.authenticate("trillian", "trilli123"));
+  }
+
+  private void enableDirectBind() {
+    config.setDirectBindEnabled(true);
+    config.setUserDnTemplate("uid={0},ou=People,dc=scm-manager,dc=org");
+  }
+
+  @SuppressWarnings("unchecked")
+  private LdapAuthenticator createCachingAuthenticator(Map<String, UserEntry> cacheBackend) {
+    CacheManager cacheManager = mock(CacheManager.class);
+    Cache<String, UserEntry> cache = mock(Cache.class);
+    when(cacheManager.<String, UserEntry>getCache(UserEntryCache.CACHE_NAME)).thenReturn(cache);
+    when(cache.get(any())).thenAnswer(invocation -> cacheBackend.get(invocation.<String>getArgument(0)));
+    when(cache.put(any(), any())).thenAnswer(invocation -> cacheBackend.put(invocation.getArgument(0), invocation.getArgument(1)));
+    when(cache.remove(any())).thenAnswer(invocation -> cacheBackend.remove(invocation.<String>getArgument(0)));
+    return new LdapAuthenticator(new LdapConnectionFactory(), config, new UserEntryCache(cacheManager));
+  }
+
   private void assertTrillian(User user) {
     assertThat(user.getName()).isEqualTo("trillian");
     assertThat(user.getDisplayName()).isEqualTo("Tricia McMillan");
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LdapChangeListenerTest extends LdapServerTestBaseJunit5 {
+
+  private final AtomicInteger changes = new AtomicInteger();
+  private final AtomicInteger subscriptions = new AtomicInteger();
+
+  private LdapConfig config;
+  private LdapChangeListener listener;
+
+  @BeforeEach
+  void setUpListener() throws NoSuchAlgorithmException {
+    config = createConfig();
+    listener = new LdapChangeListener(
+      new LdapConnectionFactory(), (c, entry) -> changes.incrementAndGet(), subscriptions::incrementAndGet, 10
+    );
+  }
+
+  @AfterEach
+  void stopListener() {
+    listener.stop();
+  }
+
+  @Test
+  void shouldNotStartWithoutChangeNotification() {
+    listener.update(config);
+
+    assertThat(listener.isRunning()).isFalse();
+  }
+
+  @Test
+  @Timeout(value = 5)
+  void shouldSubscribeAgainIfControlIsRejected() throws InterruptedException {
+    ldif(13);
+    config.setChangeNotification(ChangeNotification.PERSISTENT_SEARCH);
+
+    listener.update(config);
+    while (listener.getFailures() < 2) {
+      Thread.sleep(10);
+    }
+
+    // the in memory server does not support persistent searches and rejects the critical control
+    assertThat(subscriptions).hasValue(0);
+    assertThat(changes).hasValue(0);
+  }
+
+  @Test
+  void shouldStopIfChangeNotificationIsDisabled() {
+    config.setChangeNotification(ChangeNotification.AD_NOTIFICATION);
+    listener.update(config);
+    assertThat(listener.isRunning()).isTrue();
+
+    config.setChangeNotification(ChangeNotification.NONE);
+    listener.update(config);
+
+    assertThat(listener.isRunning()).isFalse();
+  }
+
+  @Test
+  void shouldNotStartActiveDirectoryNotificationBelowDomainRoot() {
+    config.setChangeNotification(ChangeNotification.AD_NOTIFICATION);
+    config.setBaseDn("ou=People,dc=scm-manager,dc=org");
+
+    listener.update(config);
+
+    assertThat(listener.isRunning()).isFalse();
+  }
+
+  @Test
+  void shouldRequireDomainRootOnlyForActiveDirectoryNotification() {
+    config.setBaseDn("ou=People,dc=scm-manager,dc=org");
+
+    assertThat(ChangeNotification.AD_NOTIFICATION.checkConfiguration(config)).contains("ou=People,dc=scm-manager,dc=org");
+    assertThat(ChangeNotification.PERSISTENT_SEARCH.checkConfiguration(config)).isNull();
+
+    config.setBaseDn("DC=scm-manager,DC=org");
+    assertThat(ChangeNotification.AD_NOTIFICATION.checkConfiguration(config)).isNull();
+  }
+}
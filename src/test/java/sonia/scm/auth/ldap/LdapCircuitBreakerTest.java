@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static sonia.scm.auth.ldap.LdapCircuitBreaker.State.CLOSED;
+import static sonia.scm.auth.ldap.LdapCircuitBreaker.State.HALF_OPEN;
+import static sonia.scm.auth.ldap.LdapCircuitBreaker.State.OPEN;
+
+class LdapCircuitBreakerTest {
+
+  private static final long OPEN_DURATION = 30000;
+
+  private final AtomicLong clock = new AtomicLong(1000);
+  private final LdapCircuitBreaker breaker = new LdapCircuitBreaker(clock::get);
+
+  @BeforeEach
+  void configure() {
+    breaker.configure(3, OPEN_DURATION, 1);
+  }
+
+  @Test
+  void shouldStayClosedBelowThreshold() {
+    breaker.onFailure();
+    breaker.onFailure();
+
+    assertThat(breaker.getState()).isEqualTo(CLOSED);
+    assertThat(breaker.tryAcquirePermission()).isTrue();
+  }
+
+  @Test
+  void shouldOpenAfterConsecutiveFailures() {
+    openBreaker();
+
+    assertThat(breaker.getState()).isEqualTo(OPEN);
+    assertThat(breaker.isCallPermitted()).isFalse();
+    assertThat(breaker.tryAcquirePermission()).isFalse();
+  }
+
+  @Test
+  void shouldResetFailuresOnSuccess() {
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onFailure();
+
+    assertThat(breaker.getState()).isEqualTo(CLOSED);
+  }
+
+  @Test
+  void shouldPermitLimitedTrialCallsAfterOpenDuration() {
+    openBreaker();
+    clock.addAndGet(OPEN_DURATION);
+
+    assertThat(breaker.isCallPermitted()).isTrue();
+    assertThat(breaker.tryAcquirePermission()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(HALF_OPEN);
+    assertThat(breaker.tryAcquirePermission()).isFalse();
+  }
+
+  @Test
+  void shouldCloseAfterSuccessfulTrialCall() {
+    openBreaker();
+    clock.addAndGet(OPEN_DURATION);
+    breaker.tryAcquirePermission();
+
+    breaker.onSuccess();
+
+    assertThat(breaker.getState()).isEqualTo(CLOSED);
+    assertThat(breaker.tryAcquirePermission()).isTrue();
+  }
+
+  @Test
+  void shouldOpenAgainAfterFailedTrialCall() {
+    openBreaker();
+    clock.addAndGet(OPEN_DURATION);
+    breaker.tryAcquirePermission();
+
+    breaker.onFailure();
+
+    assertThat(breaker.getState()).isEqualTo(OPEN);
+    assertThat(breaker.getOpenUntil()).isEqualTo(clock.get() + OPEN_DURATION);
+    assertThat(breaker.tryAcquirePermission()).isFalse();
+  }
+
+  @Test
+  void shouldReleaseTrialCallWithoutResultAfterOpenDuration() {
+    openBreaker();
+    clock.addAndGet(OPEN_DURATION);
+    breaker.tryAcquirePermission();
+    clock.addAndGet(OPEN_DURATION);
+
+    assertThat(breaker.tryAcquirePermission()).isTrue();
+  }
+
+  private void openBreaker() {
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onFailure();
+  }
+}
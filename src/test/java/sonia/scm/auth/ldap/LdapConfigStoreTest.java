@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.store.ConfigurationStore;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LdapConfigStoreTest {
+
+  @SuppressWarnings("unchecked")
+  private final ConfigurationStore<LdapConfig> configurationStore = mock(ConfigurationStore.class);
+
+  private final LdapConfigStore store = new LdapConfigStore(configurationStore);
+
+  @Test
+  void shouldReadConfigurationOnlyOnce() {
+    LdapConfig config = new LdapConfig();
+    config.setBaseDn("dc=hitchhiker,dc=com");
+    when(configurationStore.getOptional()).thenReturn(Optional.of(config));
+
+    assertThat(store.get().getBaseDn()).isEqualTo("dc=hitchhiker,dc=com");
+    assertThat(store.get().getBaseDn()).isEqualTo("dc=hitchhiker,dc=com");
+
+    verify(configurationStore, times(1)).getOptional();
+  }
+
+  @Test
+  void shouldReturnDefaultConfigurationIfNothingIsStored() {
+    when(configurationStore.getOptional()).thenReturn(Optional.empty());
+
+    assertThat(store.get()).isNotNull();
+    assertThat(store.getVersion()).isOne();
+  }
+
+  @Test
+  void shouldReplaceConfigurationAndIncrementVersion() {
+    when(configurationStore.getOptional()).thenReturn(Optional.of(new LdapConfig()));
+    long version = store.getVersion();
+
+    LdapConfig config = new LdapConfig();
+    config.setBaseDn("dc=hitchhiker,dc=com");
+    store.set(config);
+
+    verify(configurationStore).set(config);
+    assertThat(store.get().getBaseDn()).isEqualTo("dc=hitchhiker,dc=com");
+    assertThat(store.getVersion()).isEqualTo(version + 1);
+  }
+
+  @Test
+  void shouldNotPublishChangesOfReturnedConfiguration() {
+    when(configurationStore.getOptional()).thenReturn(Optional.of(new LdapConfig()));
+
+    store.get().setBaseDn("dc=hitchhiker,dc=com");
+
+    assertThat(store.get().getBaseDn()).isEqualTo("dc=scm-manager,dc=org");
+  }
+
+  @Test
+  void shouldNotPublishChangesOfSavedConfiguration() {
+    LdapConfig config = new LdapConfig();
+    store.set(config);
+
+    config.setBaseDn("dc=hitchhiker,dc=com");
+
+    assertThat(store.get().getBaseDn()).isEqualTo("dc=scm-manager,dc=org");
+  }
+
+  @Test
+  void shouldShareQueryPlanOfPublishedConfiguration() {
+    when(configurationStore.getOptional()).thenReturn(Optional.of(new LdapConfig()));
+
+    LdapQueryPlan plan = LdapQueryPlan.of(store.get());
+
+    assertThat(LdapQueryPlan.of(store.get())).isSameAs(plan);
+  }
+
+  @Test
+  void shouldCompileNewQueryPlanForNewVersion() {
+    when(configurationStore.getOptional()).thenReturn(Optional.of(new LdapConfig()));
+    LdapQueryPlan plan = LdapQueryPlan.of(store.get());
+
+    LdapConfig config = new LdapConfig();
+    config.setUnitGroup("ou=Teams");
+    store.set(config);
+
+    LdapQueryPlan changed = LdapQueryPlan.of(store.get());
+    assertThat(changed).isNotSameAs(plan);
+    assertThat(changed.getGroupBaseDn()).isEqualTo("ou=Teams,dc=scm-manager,dc=org");
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.security.NoSuchAlgorithmException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LdapConnectionFactoryTest extends LdapServerTestBaseJunit5 {
+
+  private LdapConfig config;
+  private LdapConnectionFactory connectionFactory;
+
+  @BeforeEach
+  void setUpFactory() throws NoSuchAlgorithmException {
+    config = createConfig();
+    config.setConnectionPoolEnabled(true);
+    config.setConnectionPoolMinSize(0);
+    config.setConnectionPoolMaxSize(2);
+    config.setConnectionPoolBorrowTimeout(100);
+    connectionFactory = new LdapConnectionFactory();
+  }
+
+  @Test
+  void shouldReturnPooledConnectionOnlyOnceOnDoubleClose() {
+    ldif(1);
+    LdapConnection connection = connectionFactory.createBindConnection(config);
+    connection.close();
+    connection.close();
+
+    LdapConnection first = connectionFactory.createBindConnection(config);
+    LdapConnection second = connectionFactory.createBindConnection(config);
+
+    assertThat(second).isNotSameAs(first);
+    // the permit of the connection was only released once
+    assertThat(connectionFactory.tryCreateBindConnection(config)).isEmpty();
+  }
+
+  @Test
+  void shouldReturnPooledConnectionAgainAfterItWasBorrowedAgain() {
+    ldif(1);
+    LdapConnection connection = connectionFactory.createBindConnection(config);
+    connection.close();
+
+    LdapConnection borrowed = connectionFactory.createBindConnection(config);
+    assertThat(borrowed).isSameAs(connection);
+    borrowed.close();
+
+    assertThat(connectionFactory.createBindConnection(config)).isSameAs(connection);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LdapConnectionPagingTest extends LdapTestBase {
+
+  private static final String GROUPS = "ou=Groups,dc=scm-manager,dc=org";
+  private static final String SHIPS = "cn=Ships," + GROUPS;
+  private static final String BOATS = "cn=Boats," + GROUPS;
+  private static final String TRILLIAN = "uid=trillian,ou=People,dc=scm-manager,dc=org";
+  private static final String DENT = "uid=dent,ou=People,dc=scm-manager,dc=org";
+  private static final String ZAPHOD = "uid=zaphod,ou=People,dc=scm-manager,dc=org";
+
+  private final LdapContext context = mock(LdapContext.class);
+  private final LdapConnection connection = new LdapConnection(context);
+
+  private Control[] requestControls;
+  private Control[] responseControls;
+  private final List<Control[]> pageRequests = new ArrayList<>();
+  private final List<Control[]> nestedRequests = new ArrayList<>();
+  private SearchResult nestedResult = result("cn=nested");
+
+  @BeforeEach
+  void setUpContext() throws NamingException {
+    doAnswer(invocation -> {
+      requestControls = invocation.getArgument(0);
+      return null;
+    }).when(context).setRequestControls(any());
+    when(context.getResponseControls()).thenAnswer(invocation -> responseControls);
+    // like jndi, every operation replaces the response controls of the previous one
+    when(context.search(any(LdapName.class), anyString(), any(SearchControls.class))).thenAnswer(invocation -> {
+      nestedRequests.add(requestControls);
+      responseControls = null;
+      return enumeration(nestedResult);
+    });
+  }
+
+  @Test
+  void shouldReturnResultsOfAllPages() throws NamingException, IOException {
+    pages(new String[]{"cn=a", "cn=b"}, new String[]{"cn=c"});
+
+    List<String> names = new ArrayList<>();
+    connection.search(GROUPS, "(cn=*)", new SearchControls(), 2, result -> names.add(result.getName()));
+
+    assertThat(names).containsExactly("cn=a", "cn=b", "cn=c");
+    assertThat(pageRequests).hasSize(2);
+    assertThat(pageRequests.get(1)[0].getEncodedValue()).isEqualTo(pagedResults(2, cookie(1)).getEncodedValue());
+    assertThat(requestControls).isNull();
+  }
+
+  @Test
+  void shouldNotSendPagingControlWithOperationsOfHandler() throws NamingException, IOException {
+    pages(new String[]{"cn=a"}, new String[]{"cn=b"});
+
+    List<String> names = new ArrayList<>();
+    connection.search(GROUPS, "(cn=*)", new SearchControls(), 1, result -> {
+      names.add(result.getName());
+      connection.search(new LdapName(result.getName()), "(objectClass=*)", new SearchControls()).close();
+    });
+
+    assertThat(names).containsExactly("cn=a", "cn=b");
+    assertThat(nestedRequests).hasSize(2).containsOnlyNulls();
+  }
+
+  @Test
+  void shouldHandleResultsReceivedBeforeSizeLimitWasExceeded() throws NamingException {
+    when(context.search(eq(GROUPS), anyString(), any(SearchControls.class))).thenAnswer(invocation -> {
+      // the server ignores the paged results control
+      responseControls = null;
+      return new SizeLimitedEnumeration(result("cn=a"));
+    });
+
+    List<String> names = new ArrayList<>();
+    assertThatThrownBy(() -> connection.search(GROUPS, "(cn=*)", new SearchControls(), 10, result -> names.add(result.getName())))
+      .isInstanceOf(SizeLimitExceededException.class);
+
+    assertThat(names).containsExactly("cn=a");
+    assertThat(requestControls).isNull();
+  }
+
+  @Test
+  void shouldReadRangesOfGroupsAfterAllPages() throws NamingException, IOException {
+    // the members of the first group do not fit into a single range
+    pages(new SearchResult[]{group(SHIPS, "uniqueMember;range=0-0", TRILLIAN)}, new SearchResult[]{group(BOATS, "uniqueMember", DENT)});
+    nestedResult = group(SHIPS, "uniqueMember;range=1-*", ZAPHOD);
+    LdapConfig config = createConfig();
+    config.setSearchPageSize(1);
+    LdapConnectionFactory connectionFactory = mock(LdapConnectionFactory.class);
+    when(connectionFactory.createBindConnection(config)).thenReturn(connection);
+    GroupSnapshotIndex index = new GroupSnapshotIndex(connectionFactory, () -> 0L, Runnable::run, () -> {});
+
+    GroupSnapshot snapshot = index.refresh(config);
+
+    assertThat(snapshot.getGroupCount()).isEqualTo(2);
+    assertThat(snapshot.getGroups(TRILLIAN, "trillian", null)).containsExactly(SHIPS);
+    assertThat(snapshot.getGroups(ZAPHOD, "zaphod", null)).containsExactly(SHIPS);
+    assertThat(snapshot.getGroups(DENT, "dent", null)).containsExactly(BOATS);
+    assertThat(pageRequests).hasSize(2);
+    assertThat(pageRequests.get(1)[0].getEncodedValue()).isEqualTo(pagedResults(1, cookie(1)).getEncodedValue());
+    assertThat(nestedRequests).hasSize(1).containsOnlyNulls();
+  }
+
+  private void pages(String[]... pages) throws NamingException {
+    SearchResult[][] results = new SearchResult[pages.length][];
+    for (int i = 0; i < pages.length; i++) {
+      results[i] = Arrays.stream(pages[i]).map(this::result).toArray(SearchResult[]::new);
+    }
+    pages(results);
+  }
+
+  private void pages(SearchResult[]... pages) throws NamingException {
+    when(context.search(eq(GROUPS), anyString(), any(SearchControls.class))).thenAnswer(invocation -> {
+      int page = pageRequests.size();
+      pageRequests.add(requestControls);
+      byte[] cookie = page + 1 < pages.length ? cookie(page + 1) : new byte[0];
+      responseControls = new Control[]{pagedResultsResponse(cookie)};
+      return enumeration(pages[page]);
+    });
+  }
+
+  private byte[] cookie(int page) {
+    return new byte[]{(byte) page};
+  }
+
+  private PagedResultsControl pagedResults(int pageSize, byte[] cookie) throws IOException {
+    return new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL);
+  }
+
+  private PagedResultsResponseControl pagedResultsResponse(byte[] cookie) throws IOException {
+    // sequence of the estimated result size and the cookie
+    byte[] value = new byte[7 + cookie.length];
+    value[0] = 0x30;
+    value[1] = (byte) (5 + cookie.length);
+    value[2] = 0x02;
+    value[3] = 0x01;
+    value[4] = 0x00;
+    value[5] = 0x04;
+    value[6] = (byte) cookie.length;
+    System.arraycopy(cookie, 0, value, 7, cookie.length);
+    return new PagedResultsResponseControl(PagedResultsResponseControl.OID, false, value);
+  }
+
+  private SearchResult result(String name) {
+    return new SearchResult(name, null, new BasicAttributes(true));
+  }
+
+  private SearchResult group(String dn, String attribute, String... values) {
+    BasicAttribute members = new BasicAttribute(attribute);
+    for (String value : values) {
+      members.add(value);
+    }
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put(members);
+    SearchResult result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+  private NamingEnumeration<SearchResult> enumeration(SearchResult... results) {
+    return new IteratorEnumeration(Arrays.asList(results).iterator());
+  }
+
+  private static class IteratorEnumeration implements NamingEnumeration<SearchResult> {
+
+    private final Iterator<SearchResult> iterator;
+
+    private IteratorEnumeration(Iterator<SearchResult> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public SearchResult next() {
+      return iterator.next();
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      return next();
+    }
+  }
+
+  private static class SizeLimitedEnumeration extends IteratorEnumeration {
+
+    private SizeLimitedEnumeration(SearchResult... results) {
+      super(Arrays.asList(results).iterator());
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+      if (!hasMoreElements()) {
+        throw new SizeLimitExceededException();
+      }
+      return true;
+    }
+  }
+}
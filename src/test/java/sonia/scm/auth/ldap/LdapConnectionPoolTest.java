@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LdapConnectionPoolTest {
+
+  private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+  private final AtomicLong clock = new AtomicLong(1000);
+  private final List<LdapConnection> created = new ArrayList<>();
+
+  @Test
+  void shouldReuseReleasedConnection() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection first = pool.borrow();
+    pool.release(first);
+    LdapConnection second = pool.borrow();
+
+    assertThat(second).isSameAs(first);
+    assertThat(created).hasSize(1);
+  }
+
+  @Test
+  void shouldOpenNewConnectionIfAllAreBorrowed() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection first = pool.borrow();
+    LdapConnection second = pool.borrow();
+
+    assertThat(second).isNotSameAs(first);
+    assertThat(created).hasSize(2);
+  }
+
+  @Test
+  void shouldFailIfPoolIsExhausted() {
+    LdapConnectionPool pool = createPool(0, 1);
+
+    pool.borrow();
+
+    assertThrows(BindConnectionFailedException.class, pool::borrow);
+  }
+
+  @Test
+  void shouldNotWaitOnTryBorrowFromExhaustedPool() {
+    LdapConnectionPool pool = createPool(0, 1);
+
+    LdapConnection connection = pool.borrow();
+
+    assertThat(pool.tryBorrow()).isEmpty();
+    pool.release(connection);
+    assertThat(pool.tryBorrow()).containsSame(connection);
+  }
+
+  @Test
+  void shouldAllowBorrowAfterFailedCreation() {
+    LdapConnectionPool pool = new LdapConnectionPool(() -> {
+      throw new BindConnectionFailedException("connection refused");
+    }, () -> true, Runnable::run, clock::get, 0, 1, 0, IDLE_TIMEOUT);
+
+    assertThrows(BindConnectionFailedException.class, pool::borrow);
+    BindConnectionFailedException exception = assertThrows(BindConnectionFailedException.class, pool::borrow);
+    assertThat(exception.getMessage()).isEqualTo("connection refused");
+  }
+
+  @Test
+  void shouldDestroyBrokenConnection() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection connection = pool.borrow();
+    when(connection.isBroken()).thenReturn(true);
+    pool.release(connection);
+
+    verify(connection).destroy();
+    assertThat(pool.getIdleCount()).isZero();
+  }
+
+  @Test
+  void shouldValidateConnectionsWhichWereIdleForAWhile() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection connection = pool.borrow();
+    pool.release(connection);
+    clock.addAndGet(TimeUnit.SECONDS.toMillis(30));
+    when(connection.isValid()).thenReturn(false);
+
+    LdapConnection next = pool.borrow();
+
+    verify(connection).destroy();
+    assertThat(next).isNotSameAs(connection);
+  }
+
+  @Test
+  void shouldNotValidateRecentlyUsedConnections() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection connection = pool.borrow();
+    pool.release(connection);
+    pool.borrow();
+
+    verify(connection, never()).isValid();
+  }
+
+  @Test
+  void shouldEvictIdleConnections() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection connection = pool.borrow();
+    pool.release(connection);
+    clock.addAndGet(IDLE_TIMEOUT + 1);
+    pool.evictIdle();
+
+    verify(connection).destroy();
+    assertThat(pool.getIdleCount()).isZero();
+  }
+
+  @Test
+  void shouldKeepMinimumSizeOnEviction() {
+    LdapConnectionPool pool = createPool(1, 2);
+
+    LdapConnection first = pool.borrow();
+    LdapConnection second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+    clock.addAndGet(IDLE_TIMEOUT + 1);
+    pool.evictIdle();
+
+    assertThat(pool.getIdleCount()).isOne();
+  }
+
+  @Test
+  void shouldFillPoolToMinimumSize() {
+    LdapConnectionPool pool = createPool(3, 5);
+
+    LdapConnection connection = pool.borrow();
+    pool.release(connection);
+
+    assertThat(pool.getIdleCount()).isEqualTo(3);
+    assertThat(created).hasSize(3);
+  }
+
+  @Test
+  void shouldFillPoolInBackground() {
+    List<Runnable> tasks = new ArrayList<>();
+    LdapConnectionPool pool = createPool(3, 5, () -> true, tasks::add);
+
+    pool.release(pool.borrow());
+
+    assertThat(created).hasSize(1);
+    assertThat(tasks).hasSize(1);
+
+    tasks.get(0).run();
+
+    assertThat(pool.getIdleCount()).isEqualTo(3);
+  }
+
+  @Test
+  void shouldNotScheduleFillingTwice() {
+    List<Runnable> tasks = new ArrayList<>();
+    LdapConnectionPool pool = createPool(3, 5, () -> true, tasks::add);
+
+    LdapConnection first = pool.borrow();
+    LdapConnection second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+
+    assertThat(tasks).hasSize(1);
+  }
+
+  @Test
+  void shouldNotFillPoolIfNotPermitted() {
+    LdapConnectionPool pool = createPool(3, 5, () -> false, Runnable::run);
+
+    pool.release(pool.borrow());
+
+    assertThat(pool.getIdleCount()).isOne();
+    assertThat(created).hasSize(1);
+  }
+
+  @Test
+  void shouldStopFillingAfterFirstFailure() {
+    AtomicInteger attempts = new AtomicInteger();
+    LdapConnection connection = mock(LdapConnection.class);
+    LdapConnectionPool pool = new LdapConnectionPool(() -> {
+      if (attempts.incrementAndGet() > 1) {
+        throw new BindConnectionFailedException("connection refused");
+      }
+      return connection;
+    }, () -> true, Runnable::run, clock::get, 3, 5, 0, IDLE_TIMEOUT);
+
+    pool.release(pool.borrow());
+
+    assertThat(attempts).hasValue(2);
+    assertThat(pool.getIdleCount()).isOne();
+  }
+
+  @Test
+  void shouldCountBorrowedConnectionsTowardsMinimumSize() {
+    LdapConnectionPool pool = createPool(3, 5);
+
+    LdapConnection first = pool.borrow();
+    pool.borrow();
+    pool.release(first);
+
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+    assertThat(created).hasSize(3);
+  }
+
+  @Test
+  void shouldNotFillPoolBeyondMaximumSize() {
+    LdapConnectionPool pool = createPool(5, 2);
+
+    pool.release(pool.borrow());
+
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldDestroyConnectionsReleasedAfterClose() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    LdapConnection connection = pool.borrow();
+    pool.close();
+    pool.release(connection);
+
+    verify(connection).destroy();
+    assertThat(pool.getIdleCount()).isZero();
+  }
+
+  @Test
+  void shouldBeAbandonedAfterIdleTimeout() {
+    LdapConnectionPool pool = createPool(0, 2);
+
+    pool.release(pool.borrow());
+    assertThat(pool.isAbandoned()).isFalse();
+
+    clock.addAndGet(IDLE_TIMEOUT + 1);
+    assertThat(pool.isAbandoned()).isTrue();
+  }
+
+  private LdapConnectionPool createPool(int minSize, int maxSize) {
+    return createPool(minSize, maxSize, () -> true, Runnable::run);
+  }
+
+  private LdapConnectionPool createPool(int minSize, int maxSize, BooleanSupplier fillPermitted, Executor fillExecutor) {
+    return new LdapConnectionPool(() -> {
+      LdapConnection connection = mock(LdapConnection.class);
+      created.add(connection);
+      return connection;
+    }, fillPermitted, fillExecutor, clock::get, minSize, maxSize, 0, IDLE_TIMEOUT);
+  }
+}
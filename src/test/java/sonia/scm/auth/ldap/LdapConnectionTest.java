@@ -43,6 +43,8 @@ import java.util.Objects;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 
+import static org.junit.Assert.assertNotNull;
+
 public class LdapConnectionTest extends LdapTestBase {
 
   private static final String LDIF = "/ldif/004.ldif";
@@ -108,6 +110,19 @@ public class LdapConnectionTest extends LdapTestBase {
     connection.close();
   }
 
+  @Test
+  public void shouldKeepSocketFactoryOfOuterConnectionAfterNestedConnectionIsClosed() throws Exception {
+    LdapConfig config = createConfig();
+
+    config.setEnableStartTls(true);
+
+    try (LdapConnection outer = new LdapConnection(config, sslContext, BIND_DN, BIND_PWD)) {
+      new LdapConnection(config, sslContext, BIND_DN, BIND_PWD).close();
+
+      assertNotNull(new ThreadLocalSocketFactory().getDefaultCipherSuites());
+    }
+  }
+
   @Test(expected = AuthenticationException.class)
   public void testWithWrongPassword() throws NamingException, IOException {
     LdapConfig config = createConfig();
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LdapDnTest {
+
+  private static final String GROUPS = "ou=groups,dc=hitchhiker,dc=com";
+
+  @Test
+  void shouldReturnNameOfFirstRdn() {
+    assertThat(LdapDn.parse("cn=HeartOfGold,ou=Groups,dc=hitchhiker,dc=com").getName()).isEqualTo("HeartOfGold");
+  }
+
+  @Test
+  void shouldUnescapeName() {
+    assertThat(LdapDn.parse("cn=Heart\\, of Gold,ou=Groups,dc=hitchhiker,dc=com").getName()).isEqualTo("Heart, of Gold");
+    assertThat(LdapDn.parse("cn=\\48eart,ou=Groups,dc=hitchhiker,dc=com").getName()).isEqualTo("Heart");
+  }
+
+  @Test
+  void shouldReturnNameOfMultiValuedRdn() {
+    assertThat(LdapDn.parse("uid=hog+cn=HeartOfGold,ou=Groups,dc=hitchhiker,dc=com").getName()).isEqualTo("HeartOfGold");
+  }
+
+  @Test
+  void shouldNormalizeCaseSpacingAndEscaping() {
+    LdapDn dn = LdapDn.parse("CN = Heart\\2C of Gold , OU=Groups,DC=Hitchhiker,dc=com");
+
+    assertThat(dn.getNormalized()).isEqualTo("cn=heart\\, of gold,ou=groups,dc=hitchhiker,dc=com");
+  }
+
+  @Test
+  void shouldSortValuesOfMultiValuedRdn() {
+    assertThat(LdapDn.parse("uid=hog+cn=HeartOfGold,dc=com").getNormalized())
+      .isEqualTo(LdapDn.parse("cn=HeartOfGold+uid=hog,dc=com").getNormalized());
+  }
+
+  @Test
+  void shouldFindAncestor() {
+    assertThat(LdapDn.parse("cn=HeartOfGold,OU=Groups,dc=hitchhiker,dc=com").isDescendantOf(GROUPS)).isTrue();
+    assertThat(LdapDn.parse("cn=HeartOfGold,ou=Ships,ou=Groups,dc=hitchhiker,dc=com").isDescendantOf(GROUPS)).isTrue();
+  }
+
+  @Test
+  void shouldNotBeDescendantOfItself() {
+    assertThat(LdapDn.parse(GROUPS).isDescendantOf(GROUPS)).isFalse();
+  }
+
+  @Test
+  void shouldNotMatchSuffixWithinRdn() {
+    assertThat(LdapDn.parse("cn=HeartOfGold,ou=Xgroups,dc=hitchhiker,dc=com").isDescendantOf(GROUPS)).isFalse();
+    assertThat(LdapDn.parse("cn=HeartOfGold\\,ou=groups,dc=hitchhiker,dc=com").isDescendantOf(GROUPS)).isFalse();
+  }
+
+  @Test
+  void shouldSplitInvalidDnLeniently() {
+    LdapDn dn = LdapDn.parse("cn=HeartOfGold,=invalid");
+
+    assertThat(dn.getName()).isEqualTo("HeartOfGold");
+    assertThat(dn.isDescendantOf("=invalid")).isTrue();
+  }
+
+  @Test
+  void shouldInternParsedDns() {
+    String dn = "cn=HeartOfGold,ou=Groups,dc=hitchhiker,dc=com";
+
+    assertThat(LdapDn.of(dn)).isSameAs(LdapDn.of(new String(dn)));
+    assertThat(LdapDn.getInternedCount()).isPositive();
+  }
+
+  @Test
+  void shouldEvictLeastRecentlyUsedDns() {
+    String hot = "cn=HeartOfGold,ou=Groups,dc=hitchhiker,dc=com";
+    LdapDn interned = LdapDn.of(hot);
+
+    for (int i = 0; i < 20000; i++) {
+      LdapDn.of("uid=user" + i + ",ou=People,dc=hitchhiker,dc=com");
+      if (i % 100 == 0) {
+        LdapDn.of(hot);
+      }
+    }
+
+    assertThat(LdapDn.getInternedCount()).isLessThanOrEqualTo(10000);
+    assertThat(LdapDn.of(hot)).isSameAs(interned);
+  }
+
+  @Test
+  void shouldCompareByNormalizedForm() {
+    LdapDn dn = LdapDn.parse("cn=HeartOfGold,ou=Groups,dc=hitchhiker,dc=com");
+
+    assertThat(dn)
+      .isEqualTo(LdapDn.parse("CN=heartofgold, OU=Groups, DC=hitchhiker, DC=com"))
+      .hasSameHashCodeAs(LdapDn.parse("CN=heartofgold, OU=Groups, DC=hitchhiker, DC=com"))
+      .isNotEqualTo(LdapDn.parse("cn=Ships,ou=Groups,dc=hitchhiker,dc=com"));
+  }
+}
@@ -18,23 +18,43 @@ package sonia.scm.auth.ldap;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import sonia.scm.auth.ldap.UserEntryCache.UserEntry;
+import sonia.scm.cache.Cache;
+import sonia.scm.cache.CacheManager;
 import sonia.scm.store.InMemoryConfigurationStore;
 
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class LdapGroupResolverTest extends LdapServerTestBaseJunit5 {
 
+  private final Map<String, Boolean> unknownPrincipalBackend = new ConcurrentHashMap<>();
+  private final Map<String, UserEntry> userEntryBackend = new ConcurrentHashMap<>();
+
   private LdapConfig config;
   private LdapGroupResolver groupResolver;
 
   @BeforeEach
   void setUpAuthenticator() throws NoSuchAlgorithmException {
     config = createConfig();
-    LdapConfigStore ldapConfigStore = new LdapConfigStore(new InMemoryConfigurationStore<>());
-    ldapConfigStore.set(config);
+    LdapConfigStore ldapConfigStore = createConfigStore(config);
     groupResolver = new LdapGroupResolver(ldapConfigStore, new LdapConnectionFactory());
   }
 
@@ -162,4 +182,271 @@ class LdapGroupResolverTest extends LdapServerTestBaseJunit5 {
     Set<String> groups = groupResolver.resolve("trillian");
     assertThat(groups).containsOnly("Happy Vertical People Transporter");
   }
+
+  @Test
+  void shouldCacheResolvedGroups() throws NoSuchAlgorithmException {
+    ldif(6);
+    Map<String, Set<String>> cacheBackend = new HashMap<>();
+    LdapGroupResolver cachingResolver = createCachingResolver(cacheBackend);
+
+    Set<String> groups = cachingResolver.resolve("trillian");
+
+    assertThat(cacheBackend).containsEntry("trillian", groups);
+  }
+
+  @Test
+  void shouldReturnCachedGroups() throws NoSuchAlgorithmException {
+    ldif(6);
+    Map<String, Set<String>> cacheBackend = new HashMap<>();
+    cacheBackend.put("trillian", Set.of("Cached"));
+    LdapGroupResolver cachingResolver = createCachingResolver(cacheBackend);
+
+    Set<String> groups = cachingResolver.resolve("trillian");
+
+    assertThat(groups).containsOnly("Cached");
+  }
+
+  @Test
+  void shouldNotCacheFailedResolution() throws NoSuchAlgorithmException {
+    config.setBaseDn(null);
+    Map<String, Set<String>> cacheBackend = new HashMap<>();
+    LdapGroupResolver cachingResolver = createCachingResolver(cacheBackend);
+
+    cachingResolver.resolve("trillian");
+
+    assertThat(cacheBackend).isEmpty();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void shouldClearCacheOnConfigurationChange() {
+    CacheManager cacheManager = mock(CacheManager.class);
+    Cache<String, Set<String>> cache = mock(Cache.class);
+    when(cacheManager.getCache(any())).thenReturn(mock(Cache.class));
+    when(cacheManager.<String, Set<String>>getCache(LdapGroupResolver.CACHE_NAME)).thenReturn(cache);
+    LdapConfigStore store = new LdapConfigStore(new InMemoryConfigurationStore<>(), cacheManager);
+
+    store.set(config);
+
+    verify(cache).clear();
+  }
+
+  @Test
+  void shouldReturnGroupsOfAllPages() {
+    ldif(3);
+    config.setGroupResolution(GroupResolution.SEARCH);
+    config.setSearchPageSize(1);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse");
+  }
+
+  @Test
+  void shouldReturnGroupsWithoutPaging() {
+    ldif(3);
+    config.setSearchPageSize(0);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "HappyVerticalPeopleTransporter");
+  }
+
+  @Test
+  void shouldReturnGroupsFromAttributeOnly() {
+    ldif(3);
+    config.setGroupResolution(GroupResolution.ATTRIBUTE);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "HappyVerticalPeopleTransporter");
+  }
+
+  @Test
+  void shouldNotSearchGroupsWithAttributeOnly() {
+    ldif(7);
+    config.setGroupResolution(GroupResolution.ATTRIBUTE);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).isEmpty();
+  }
+
+  @Test
+  void shouldReturnGroupsFromSearchOnly() {
+    ldif(3);
+    config.setGroupResolution(GroupResolution.SEARCH);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse");
+  }
+
+  @Test
+  void shouldReturnGroupsFromTokenGroups() {
+    ldif(18);
+    config.setGroupResolution(GroupResolution.TOKEN_GROUPS);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void shouldCacheSecurityIdentifiersOfTokenGroups() throws NoSuchAlgorithmException {
+    ldif(18);
+    config.setGroupResolution(GroupResolution.TOKEN_GROUPS);
+    Map<String, String> sidBackend = new HashMap<>();
+    CacheManager cacheManager = mock(CacheManager.class);
+    when(cacheManager.getCache(any())).thenReturn(mock(Cache.class));
+    Cache<String, String> sidCache = mock(Cache.class);
+    when(cacheManager.<String, String>getCache(TokenGroupResolver.CACHE_NAME)).thenReturn(sidCache);
+    when(sidCache.get(any())).thenAnswer(invocation -> sidBackend.get(invocation.<String>getArgument(0)));
+    when(sidCache.put(any(), any())).thenAnswer(invocation -> sidBackend.put(invocation.getArgument(0), invocation.getArgument(1)));
+    LdapConfigStore store = createConfigStore(config);
+    LdapGroupResolver cachingResolver = new LdapGroupResolver(store, new LdapConnectionFactory(), cacheManager);
+
+    cachingResolver.resolve("trillian");
+
+    assertThat(sidBackend)
+      .containsEntry("S-1-5-21-1-2-3-1101", "cn=HeartOfGold,ou=Groups,dc=scm-manager,dc=org")
+      .containsEntry("S-1-5-21-1-2-3-1102", "cn=RestaurantAtTheEndOfTheUniverse,ou=Groups,dc=scm-manager,dc=org")
+      .containsEntry("S-1-5-32-545", "");
+  }
+
+  @Test
+  void shouldInvalidatePrincipalsOfChangedGroup() throws NoSuchAlgorithmException {
+    Map<String, Set<String>> cacheBackend = new HashMap<>();
+    cacheBackend.put("trillian", Set.of("HeartOfGold", "RestaurantAtTheEndOfTheUniverse"));
+    cacheBackend.put("zaphod", Set.of("RestaurantAtTheEndOfTheUniverse"));
+    LdapGroupResolver cachingResolver = createCachingResolver(cacheBackend);
+
+    cachingResolver.onEntryChanged(config, entry("cn=HeartOfGold,ou=Groups,dc=scm-manager,dc=org", new BasicAttributes("cn", "HeartOfGold")));
+
+    assertThat(cacheBackend).containsOnlyKeys("zaphod");
+  }
+
+  @Test
+  void shouldInvalidateChangedUser() throws NoSuchAlgorithmException {
+    Map<String, Set<String>> cacheBackend = new HashMap<>();
+    cacheBackend.put("trillian", Set.of("HeartOfGold"));
+    cacheBackend.put("zaphod", Set.of("HeartOfGold"));
+    LdapGroupResolver cachingResolver = createCachingResolver(cacheBackend);
+
+    cachingResolver.onEntryChanged(config, entry("uid=zaphod,ou=People,dc=scm-manager,dc=org", new BasicAttributes("uid", "zaphod")));
+
+    assertThat(cacheBackend).containsOnlyKeys("trillian");
+  }
+
+  @Test
+  void shouldRemoveCachedEntryOfChangedUser() throws NoSuchAlgorithmException {
+    userEntryBackend.put("trillian", new UserEntry("uid=trillian,ou=People,dc=scm-manager,dc=org", "trillian", "Tricia McMillan", null));
+    userEntryBackend.put("Zaphod", new UserEntry("uid=zaphod,ou=People,dc=scm-manager,dc=org", "zaphod", "Zaphod Beeblebrox", null));
+    userEntryBackend.put("dent", new UserEntry("uid=dent,ou=People,dc=scm-manager,dc=org", "dent", "Arthur Dent", null));
+    LdapGroupResolver cachingResolver = createCachingResolver(new HashMap<>());
+
+    cachingResolver.onEntryChanged(config, entry("uid=zaphod,ou=People,dc=scm-manager,dc=org", new BasicAttributes("uid", "zaphod")));
+    // a deleted entry may be reported without attributes
+    cachingResolver.onEntryChanged(config, entry("UID=Dent,ou=People,dc=scm-manager,dc=org", new BasicAttributes()));
+
+    assertThat(userEntryBackend).containsOnlyKeys("trillian");
+  }
+
+  @Test
+  void shouldCacheUnknownPrincipal() throws NoSuchAlgorithmException {
+    ldif(6);
+    LdapGroupResolver cachingResolver = createCachingResolver(new HashMap<>());
+
+    assertThat(cachingResolver.resolve("slartibartfast")).isEmpty();
+
+    assertThat(unknownPrincipalBackend).containsKey("slartibartfast");
+  }
+
+  @Test
+  void shouldNotSearchCachedUnknownPrincipal() throws NoSuchAlgorithmException {
+    ldif(6);
+    unknownPrincipalBackend.put("trillian", Boolean.TRUE);
+    LdapGroupResolver cachingResolver = createCachingResolver(new HashMap<>());
+
+    assertThat(cachingResolver.resolve("trillian")).isEmpty();
+  }
+
+  @Test
+  void shouldNotCacheKnownPrincipalAsUnknown() throws NoSuchAlgorithmException {
+    ldif(6);
+    LdapGroupResolver cachingResolver = createCachingResolver(new HashMap<>());
+
+    cachingResolver.resolve("trillian");
+
+    assertThat(unknownPrincipalBackend).isEmpty();
+  }
+
+  @Test
+  void shouldRemoveUnknownPrincipalOnUserChange() throws NoSuchAlgorithmException {
+    unknownPrincipalBackend.put("slartibartfast", Boolean.TRUE);
+    LdapGroupResolver cachingResolver = createCachingResolver(new HashMap<>());
+
+    cachingResolver.onEntryChanged(config, entry("uid=slartibartfast,ou=People,dc=scm-manager,dc=org", new BasicAttributes("uid", "slartibartfast")));
+
+    assertThat(unknownPrincipalBackend).isEmpty();
+  }
+
+  @Test
+  @Timeout(5)
+  @SuppressWarnings("unchecked")
+  void shouldEvictCachesOfChangesReceivedByListener() throws Exception {
+    Map<String, Set<String>> cacheBackend = new ConcurrentHashMap<>();
+    cacheBackend.put("trillian", Set.of("HeartOfGold"));
+    cacheBackend.put("zaphod", Set.of("RestaurantAtTheEndOfTheUniverse"));
+    userEntryBackend.put("zaphod", new UserEntry("uid=zaphod,ou=People,dc=scm-manager,dc=org", "zaphod", "Zaphod Beeblebrox", null));
+    userEntryBackend.put("dent", new UserEntry("uid=dent,ou=People,dc=scm-manager,dc=org", "dent", "Arthur Dent", null));
+    LdapGroupResolver cachingResolver = createCachingResolver(cacheBackend);
+
+    NamingEnumeration<SearchResult> changes = mock(NamingEnumeration.class);
+    when(changes.hasMore()).thenReturn(true, true, false);
+    when(changes.next()).thenReturn(
+      entry("uid=zaphod,ou=People,dc=scm-manager,dc=org", new BasicAttributes("uid", "zaphod")),
+      entry("cn=HeartOfGold,ou=Groups,dc=scm-manager,dc=org", new BasicAttributes("cn", "HeartOfGold"))
+    );
+    LdapContext context = mock(LdapContext.class);
+    when(context.search(anyString(), anyString(), any(SearchControls.class))).thenReturn(changes, mock(NamingEnumeration.class));
+    LdapConnectionFactory connectionFactory = mock(LdapConnectionFactory.class);
+    when(connectionFactory.createNotificationConnection(config)).thenReturn(new LdapConnection(context));
+    config.setChangeNotification(ChangeNotification.PERSISTENT_SEARCH);
+
+    LdapChangeListener listener = new LdapChangeListener(connectionFactory, cachingResolver::onEntryChanged, () -> {}, 10);
+    try {
+      listener.update(config);
+      while (!cacheBackend.isEmpty() || userEntryBackend.containsKey("zaphod")) {
+        Thread.sleep(10);
+      }
+    } finally {
+      listener.stop();
+    }
+
+    assertThat(userEntryBackend).containsOnlyKeys("dent");
+  }
+
+  private SearchResult entry(String dn, Attributes attributes) {
+    SearchResult entry = new SearchResult(dn, null, attributes);
+    entry.setNameInNamespace(dn);
+    return entry;
+  }
+
+  @SuppressWarnings("unchecked")
+  private LdapGroupResolver createCachingResolver(Map<String, Set<String>> cacheBackend) throws NoSuchAlgorithmException {
+    CacheManager cacheManager = mock(CacheManager.class);
+    Cache<String, Set<String>> cache = mock(Cache.class);
+    when(cacheManager.<String, Set<String>>getCache(LdapGroupResolver.CACHE_NAME)).thenReturn(cache);
+    when(cache.get(any())).thenAnswer(invocation -> cacheBackend.get(invocation.<String>getArgument(0)));
+    when(cache.put(any(), any())).thenAnswer(invocation -> cacheBackend.put(invocation.getArgument(0), invocation.getArgument(1)));
+    when(cache.removeAll(any())).thenAnswer(invocation -> cacheBackend.keySet().removeIf(invocation.getArgument(0)));
+    when(cacheManager.getCache(GroupParentCache.CACHE_NAME)).thenReturn(mock(Cache.class));
+    Cache<String, Boolean> unknownPrincipals = mock(Cache.class);
+    when(cacheManager.<String, Boolean>getCache(LdapGroupResolver.UNKNOWN_PRINCIPALS_CACHE_NAME)).thenReturn(unknownPrincipals);
+    when(unknownPrincipals.contains(any())).thenAnswer(invocation -> unknownPrincipalBackend.containsKey(invocation.<String>getArgument(0)));
+    when(unknownPrincipals.put(any(), any())).thenAnswer(invocation -> unknownPrincipalBackend.put(invocation.getArgument(0), invocation.getArgument(1)));
+    when(unknownPrincipals.removeAll(any())).thenAnswer(invocation -> unknownPrincipalBackend.keySet().removeIf(invocation.getArgument(0)));
+    Cache<String, UserEntry> userEntries = mock(Cache.class);
+    when(cacheManager.<String, UserEntry>getCache(UserEntryCache.CACHE_NAME)).thenReturn(userEntries);
+    when(userEntries.get(any())).thenAnswer(invocation -> userEntryBackend.get(invocation.<String>getArgument(0)));
+    when(userEntries.removeAll(any())).thenAnswer(invocation -> userEntryBackend.keySet().removeIf(invocation.getArgument(0)));
+    LdapConfigStore store = createConfigStore(config);
+    return new LdapGroupResolver(store, new LdapConnectionFactory(), cacheManager);
+  }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import javax.naming.directory.SearchControls;
+import java.text.MessageFormat;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LdapQueryPlanTest {
+
+  private final LdapConfig config = new LdapConfig();
+
+  @Test
+  void shouldFormatLikeMessageFormat() {
+    String[] patterns = {
+      "(&(uid={0})(objectClass=posixAccount))",
+      "(|(member={0})(memberUid={1})(mail={2}))",
+      "(&(cn={1})(description=it''s {0}))",
+      "(&(cn='{0}')(uid={0}))",
+      "(&(uid={0})(unknown={5}))",
+      "(&(uid={0})(objectClass=person)}"
+    };
+    for (String pattern : patterns) {
+      LdapQueryPlan.FilterTemplate template = LdapQueryPlan.FilterTemplate.compile(pattern);
+
+      assertThat(template.format("trillian", "tricia", "tricia@hitchhiker.com"))
+        .isEqualTo(MessageFormat.format(pattern, "trillian", "tricia", "tricia@hitchhiker.com"));
+    }
+  }
+
+  @Test
+  void shouldEscapeValues() {
+    LdapQueryPlan.FilterTemplate template = LdapQueryPlan.FilterTemplate.compile("(&(member={0})(cn={1}))");
+
+    assertThat(template.format("cn=Heart of Gold (ship),dc=hitchhiker,dc=com", "*"))
+      .isEqualTo("(&(member=cn=Heart of Gold \\28ship\\29,dc=hitchhiker,dc=com)(cn=\\2a))");
+  }
+
+  @Test
+  void shouldEscapeValuesOfMessageFormatPatterns() {
+    LdapQueryPlan.FilterTemplate template = LdapQueryPlan.FilterTemplate.compile("(uid={0,})");
+
+    assertThat(template.format("*")).isEqualTo("(uid=\\2a)");
+  }
+
+  @Test
+  void shouldAppendNestedGroupFiltersInParentheses() {
+    config.setSearchFilterNestedGroup("member={0}");
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    StringBuilder filter = new StringBuilder("(|");
+    plan.appendNestedGroupFilter(filter, "cn=a*", "a*");
+    plan.appendNestedGroupFilter(filter, "cn=b", "b");
+    filter.append(')');
+
+    assertThat(filter).hasToString("(|(member=cn=a\\2a)(member=cn=b))");
+  }
+
+  @Test
+  void shouldNotCompileEmptyPattern() {
+    assertThat(LdapQueryPlan.FilterTemplate.compile("")).isNull();
+    assertThat(LdapQueryPlan.FilterTemplate.compile(null)).isNull();
+  }
+
+  @Test
+  void shouldCreateBaseDns() {
+    config.setBaseDn("dc=Hitchhiker,dc=com");
+    config.setUnitPeople("ou=People");
+    config.setUnitGroup("");
+
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    assertThat(plan.getUserBaseDn()).isEqualTo("ou=People,dc=Hitchhiker,dc=com");
+    assertThat(plan.getNormalizedUserBaseDn()).isEqualTo("ou=people,dc=hitchhiker,dc=com");
+    assertThat(plan.getGroupBaseDn()).isEqualTo("dc=Hitchhiker,dc=com");
+  }
+
+  @Test
+  void shouldFailWithoutBaseDn() {
+    config.setBaseDn(null);
+
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    assertThrows(ConfigurationException.class, plan::getUserBaseDn);
+  }
+
+  @Test
+  void shouldFailWithoutUserFilter() {
+    config.setSearchFilter(null);
+
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    assertThrows(ConfigurationException.class, () -> plan.createUserFilter("trillian"));
+  }
+
+  @Test
+  void shouldParseSearchScope() {
+    config.setSearchScope("sub");
+
+    assertThat(LdapQueryPlan.of(config).getUserSearchScope()).isEqualTo(SearchControls.SUBTREE_SCOPE);
+  }
+
+  @Test
+  void shouldSkipEmptyAttributes() {
+    config.setAttributeNameFullname("");
+    config.setAttributeNameGroup(null);
+
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    assertThat(plan.getUserAttributes()).containsExactly(config.getAttributeNameId(), config.getAttributeNameMail());
+    assertThat(plan.getGroupResolutionAttributes(true)).containsExactly(config.getAttributeNameMail());
+  }
+
+  @Test
+  void shouldUseTransitiveAssertionForNestedActiveDirectoryGroups() {
+    config.setSearchFilterGroup("(&(objectClass=group)(member={0}))");
+    config.setEnableNestedADGroups(true);
+
+    assertThat(LdapQueryPlan.of(config).createGroupFilter("cn=trillian", "trillian", ""))
+      .contains("(&(objectClass=group)(member:1.2.840.113556.1.4.1941:=cn=trillian))");
+  }
+
+  @Test
+  void shouldReuseCompiledPlan() {
+    assertThat(LdapQueryPlan.of(config)).isSameAs(LdapQueryPlan.of(config));
+  }
+
+  @Test
+  void shouldCompileAgainAfterModification() {
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    config.setSearchFilter("(&(sAMAccountName={0})(objectClass=person))");
+
+    LdapQueryPlan modified = LdapQueryPlan.of(config);
+    assertThat(modified).isNotSameAs(plan);
+    assertThat(modified.createUserFilter("trillian")).isEqualTo("(&(sAMAccountName=trillian)(objectClass=person))");
+  }
+
+  @Test
+  void shouldCreateUserDnWithEscapedUsername() {
+    config.setUserDnTemplate("uid={0},ou=O'Reilly,dc=hitchhiker,dc=com");
+
+    assertThat(LdapQueryPlan.of(config).createUserDn("dent, arthur"))
+      .isEqualTo("uid=dent\\, arthur,ou=O'Reilly,dc=hitchhiker,dc=com");
+  }
+
+  @Test
+  void shouldFailToCreateUserDnWithoutTemplate() {
+    LdapQueryPlan plan = LdapQueryPlan.of(config);
+
+    assertThrows(ConfigurationException.class, () -> plan.createUserDn("trillian"));
+  }
+
+  @Test
+  void shouldCheckUserDnTemplate() {
+    assertThat(LdapQueryPlan.checkUserDnTemplate(null)).isNull();
+    assertThat(LdapQueryPlan.checkUserDnTemplate("uid={0},ou=O'Reilly,dc=hitchhiker,dc=com")).isNull();
+    assertThat(LdapQueryPlan.checkUserDnTemplate("ou=People,dc=hitchhiker,dc=com")).contains("placeholder");
+    assertThat(LdapQueryPlan.checkUserDnTemplate("uid={0},ou=People,dc")).contains("not a valid dn");
+  }
+}
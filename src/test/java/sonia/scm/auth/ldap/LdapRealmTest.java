@@ -20,6 +20,7 @@ import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.BearerToken;
+import org.apache.shiro.authc.ExcessiveAttemptsException;
 import org.apache.shiro.authc.UnknownAccountException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.junit.jupiter.api.BeforeEach;
@@ -67,6 +68,14 @@ class LdapRealmTest extends LdapServerTestBaseJunit5 {
   @SuppressWarnings("rawtypes")
   private Cache cache;
 
+  @Mock
+  @SuppressWarnings("rawtypes")
+  private Cache groupCache;
+
+  @Mock
+  @SuppressWarnings("rawtypes")
+  private Cache unknownPrincipalCache;
+
 
   @Spy
   private LdapAuthenticatorFactory ldapAuthenticatorFactory;
@@ -85,6 +94,8 @@ class LdapRealmTest extends LdapServerTestBaseJunit5 {
     config = createConfig();
     lenient().when(configStore.get()).thenReturn(config);
     lenient().when(cacheManager.getCache(LdapRealm.CACHE_NAME)).thenReturn(cache);
+    lenient().when(cacheManager.getCache(LdapGroupResolver.CACHE_NAME)).thenReturn(groupCache);
+    lenient().when(cacheManager.getCache(LdapGroupResolver.UNKNOWN_PRINCIPALS_CACHE_NAME)).thenReturn(unknownPrincipalCache);
     lenient().when(ldapAuthenticatorFactory.create(config)).thenReturn(ldapAuthenticator);
     realm = new LdapRealm(configStore, syncingRealmHelper, cacheManager, ldapAuthenticatorFactory, invalidCredentialsCache);
   }
@@ -147,6 +158,26 @@ class LdapRealmTest extends LdapServerTestBaseJunit5 {
     verify(cache).put("trillian", authenticationInfoMock);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  void shouldInvalidateCachedGroupsOnLogin() {
+    ldif(1);
+    mockAuthenticator();
+
+    realm.getAuthenticationInfo(createToken("trillian", "trilli123"));
+    verify(groupCache).remove("trillian");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void shouldRemoveUnknownPrincipalOnLogin() {
+    ldif(1);
+    mockAuthenticator();
+
+    realm.getAuthenticationInfo(createToken("trillian", "trilli123"));
+    verify(unknownPrincipalCache).remove("trillian");
+  }
+
   @Test
   @SuppressWarnings("unchecked")
   void shouldReturnAuthenticationInfoFromCache() {
@@ -180,6 +211,36 @@ class LdapRealmTest extends LdapServerTestBaseJunit5 {
     verifyNoInteractions(ldapAuthenticatorFactory);
   }
 
+  @Test
+  void shouldNotQueryLdapIfLoginIsThrottled() {
+    UsernamePasswordToken token = createToken("trillian", "trilli123");
+    doThrow(ExcessiveAttemptsException.class).when(invalidCredentialsCache).verifyNotThrottled(token, config);
+
+    assertThrows(ExcessiveAttemptsException.class, () -> realm.getAuthenticationInfo(token));
+
+    verifyNoInteractions(ldapAuthenticatorFactory);
+  }
+
+  @Test
+  void shouldRecordFailureForWrongPassword() {
+    mockAuthenticator();
+    UsernamePasswordToken token = createToken("trillian", "trilli1234");
+
+    assertThrows(UserAuthenticationFailedException.class, () -> realm.getAuthenticationInfo(token));
+
+    verify(invalidCredentialsCache).recordFailure(token, config);
+  }
+
+  @Test
+  void shouldNotRecordFailureForUnknownAccount() {
+    ldif(1);
+    UsernamePasswordToken token = createToken("hansolo", "trilli123");
+
+    assertThrows(UnknownAccountException.class, () -> realm.getAuthenticationInfo(token));
+
+    verify(invalidCredentialsCache, never()).recordFailure(any(), any());
+  }
+
   @Test
   void shouldCacheInvalidCredential() {
     ldif(1);
@@ -191,6 +252,18 @@ class LdapRealmTest extends LdapServerTestBaseJunit5 {
     verify(cache, never()).put(any(String.class), any(AuthenticationInfo.class));
   }
 
+  @Test
+  void shouldNotCacheCredentialsAsInvalidIfCircuitBreakerIsOpen() {
+    when(ldapAuthenticator.authenticate("trillian", "trilli123"))
+      .thenThrow(new CircuitBreakerOpenException("circuit breaker is open"));
+    UsernamePasswordToken token = createToken("trillian", "trilli123");
+
+    assertThrows(CircuitBreakerOpenException.class, () -> realm.getAuthenticationInfo(token));
+
+    verify(invalidCredentialsCache, never()).cacheAsInvalid(any());
+    verify(invalidCredentialsCache, never()).recordFailure(any(), any());
+  }
+
   @Test
   void shouldThrowExceptionIfTokenClassDoesntMatch() {
     ldif(1);
@@ -17,17 +17,26 @@
 package sonia.scm.auth.ldap;
 
 import com.google.inject.util.Providers;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
-import sonia.scm.store.InMemoryConfigurationStore;
+import sonia.scm.cache.Cache;
+import sonia.scm.cache.CacheManager;
 
 import javax.net.ssl.SSLContext;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 class LdapRecursiveGroupTest extends LdapServerTestBaseJunit5 {
 
@@ -38,8 +47,7 @@ class LdapRecursiveGroupTest extends LdapServerTestBaseJunit5 {
   void setUpAuthenticator() throws NoSuchAlgorithmException {
     config = createConfig();
     config.setEnableNestedGroups(true);
-    LdapConfigStore ldapConfigStore = new LdapConfigStore(new InMemoryConfigurationStore<>());
-    ldapConfigStore.set(config);
+    LdapConfigStore ldapConfigStore = createConfigStore(config);
     groupResolver = new LdapGroupResolver(ldapConfigStore, new LdapConnectionFactory());
   }
 
@@ -177,4 +185,212 @@ class LdapRecursiveGroupTest extends LdapServerTestBaseJunit5 {
     Set<String> groups = groupResolver.resolve("trillian");
     assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantAtTheStartOfTheUniverse", "RestaurantsOfTheUniverse");
   }
+
+  @Test
+  void shouldReturnGroupsFromUniqueMemberWithBatchedSearch() {
+    ldif(13);
+    config.setNestedGroupBatchSize(10);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  void shouldNotReturnGroupsFromUniqueMemberWithBatchedSearch() {
+    ldif(13);
+    config.setNestedGroupBatchSize(10);
+
+    Set<String> groups = groupResolver.resolve("dephn");
+    assertThat(groups).containsOnly("HeartOfGold");
+  }
+
+  @Test
+  void shouldReturnGroupsFromMemberOfWithBatchedSearch() {
+    ldif(12);
+    config.setNestedGroupBatchSize(2);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "HappyVerticalPeopleTransporter", "RestaurantsOfTheUniverse");
+  }
+
+  @Test
+  @Timeout(value = 1)
+  void shouldReturnGroupsFromUniqueMemberWithLoopAndBatchedSearch() {
+    ldif(14);
+    config.setNestedGroupBatchSize(10);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantAtTheStartOfTheUniverse", "RestaurantsOfTheUniverse");
+  }
+
+  @Test
+  void shouldReturnGroupsFromUniqueMemberWithConcurrentSearch() {
+    ldif(13);
+    config.setNestedGroupParallelism(4);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  @Timeout(value = 1)
+  void shouldReturnGroupsFromUniqueMemberWithLoopAndConcurrentSearch() {
+    ldif(14);
+    config.setNestedGroupParallelism(4);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantAtTheStartOfTheUniverse", "RestaurantsOfTheUniverse");
+  }
+
+  @Test
+  @Timeout(value = 5)
+  void shouldReturnGroupsWithConcurrentSearchFromExhaustedPool() {
+    ldif(13);
+    config.setNestedGroupParallelism(4);
+    config.setConnectionPoolEnabled(true);
+    config.setConnectionPoolMaxSize(2);
+    config.setConnectionPoolBorrowTimeout(10000);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  @Timeout(value = 5)
+  void shouldReturnGroupsWithConcurrentSearchFromSingleConnectionPool() {
+    ldif(13);
+    config.setNestedGroupParallelism(4);
+    config.setConnectionPoolEnabled(true);
+    config.setConnectionPoolMaxSize(1);
+    config.setConnectionPoolBorrowTimeout(10000);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  void shouldReturnGroupsFromMemberOfWithConcurrentBatchedSearch() {
+    ldif(12);
+    config.setNestedGroupParallelism(2);
+    config.setNestedGroupBatchSize(2);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "HappyVerticalPeopleTransporter", "RestaurantsOfTheUniverse");
+  }
+
+  @Test
+  void shouldReturnGroupsFromUniqueMemberWithSnapshot() {
+    ldif(13);
+    config.setGroupSnapshotEnabled(true);
+    groupResolver.getSnapshotIndex().refresh(config);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+    assertThat(groupResolver.getSnapshotIndex().get(config)).isPresent();
+  }
+
+  @Test
+  void shouldReturnGroupsFromMemberOfWithSnapshot() {
+    ldif(12);
+    config.setGroupSnapshotEnabled(true);
+    groupResolver.getSnapshotIndex().refresh(config);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "HappyVerticalPeopleTransporter", "RestaurantsOfTheUniverse");
+  }
+
+  @Test
+  @Timeout(value = 1)
+  void shouldReturnGroupsFromUniqueMemberWithLoopAndSnapshot() {
+    ldif(14);
+    config.setGroupSnapshotEnabled(true);
+    groupResolver.getSnapshotIndex().refresh(config);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantAtTheStartOfTheUniverse", "RestaurantsOfTheUniverse");
+  }
+
+  @Test
+  void shouldLoadSnapshotPageByPage() {
+    ldif(13);
+    config.setGroupSnapshotEnabled(true);
+    config.setSearchPageSize(2);
+
+    GroupSnapshot snapshot = groupResolver.getSnapshotIndex().refresh(config);
+
+    assertThat(snapshot.getGroupCount()).isEqualTo(5);
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  void shouldApplyChangedGroupsToSnapshot() throws LDAPException {
+    ldif(13);
+    config.setGroupSnapshotEnabled(true);
+    config.setGroupSnapshotChangeTracking(ChangeTracking.MODIFY_TIMESTAMP);
+    groupResolver.getSnapshotIndex().refresh(config);
+
+    ldapServer.modify(
+      "cn=RestaurantAtTheStartOfTheUniverse,ou=Groups,dc=scm-manager,dc=org",
+      new Modification(ModificationType.ADD, "uniqueMember", "uid=trillian,ou=People,dc=scm-manager,dc=org")
+    );
+
+    assertThat(groupResolver.getSnapshotIndex().applyChanges(config)).isPositive();
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).contains("RestaurantAtTheStartOfTheUniverse");
+  }
+
+  @Test
+  void shouldSearchGroupsUntilSnapshotIsLoaded() {
+    ldif(13);
+    config.setGroupSnapshotEnabled(true);
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  void shouldNotUseSnapshotOfOtherConfiguration() {
+    ldif(13);
+    config.setGroupSnapshotEnabled(true);
+    groupResolver.getSnapshotIndex().refresh(config);
+
+    config.setUnitGroup("ou=Earth,ou=Groups");
+
+    assertThat(groupResolver.getSnapshotIndex().get(config)).isEmpty();
+  }
+
+  @Test
+  void shouldFallBackToSingleSearchesIfMembershipAttributeIsUnknown() {
+    ldif(13);
+    config.setNestedGroupBatchSize(10);
+    config.setSearchFilterNestedGroup("(&(objectClass=groupOfUniqueNames)(uniqueMember=cn={1},ou=Groups,dc=scm-manager,dc=org))");
+
+    Set<String> groups = groupResolver.resolve("trillian");
+    assertThat(groups).containsOnly("HeartOfGold", "RestaurantAtTheEndOfTheUniverse", "RestaurantsOfTheUniverse", "RestaurantsAtEarth");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void shouldServeNestedGroupEdgesFromSharedCache() throws NoSuchAlgorithmException {
+    ldif(13);
+    Map<String, Set<String>> parentCacheBackend = new HashMap<>();
+    Cache<String, Set<String>> parentCache = mock(Cache.class);
+    when(parentCache.get(any())).thenAnswer(invocation -> parentCacheBackend.get(invocation.<String>getArgument(0)));
+    when(parentCache.put(any(), any())).thenAnswer(invocation -> parentCacheBackend.put(invocation.getArgument(0), invocation.getArgument(1)));
+    CacheManager cacheManager = mock(CacheManager.class);
+    when(cacheManager.<String, Set<String>>getCache(LdapGroupResolver.CACHE_NAME)).thenReturn(mock(Cache.class));
+    when(cacheManager.<String, Set<String>>getCache(GroupParentCache.CACHE_NAME)).thenReturn(parentCache);
+    LdapConfigStore ldapConfigStore = createConfigStore(config);
+    LdapGroupResolver cachingResolver = new LdapGroupResolver(ldapConfigStore, new LdapConnectionFactory(), cacheManager);
+
+    Set<String> groups = cachingResolver.resolve("trillian");
+    long fetched = cachingResolver.getParentCache().getMissCount();
+    assertThat(fetched).isPositive();
+    assertThat(cachingResolver.getParentCache().getHitCount()).isZero();
+
+    assertThat(cachingResolver.resolve("trillian")).isEqualTo(groups);
+    assertThat(cachingResolver.getParentCache().getHitCount()).isEqualTo(fetched);
+    assertThat(cachingResolver.getParentCache().getMissCount()).isEqualTo(fetched);
+  }
 }
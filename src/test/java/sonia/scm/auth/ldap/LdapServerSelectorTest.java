@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LdapServerSelectorTest {
+
+  private static final long COOL_DOWN = TimeUnit.SECONDS.toMillis(30);
+
+  private final AtomicLong clock = new AtomicLong(1000);
+  private final LdapServerSelector selector = new LdapServerSelector(clock::get);
+  private final LdapConfig config = new LdapConfig();
+
+  @BeforeEach
+  void setUpConfig() {
+    config.setHostUrl("ldap://one:389 ldap://two:389\tldap://three:389");
+    config.setServerCoolDown(TimeUnit.MILLISECONDS.toSeconds(COOL_DOWN));
+    config.setCircuitBreakerFailureThreshold(1);
+  }
+
+  @Test
+  void shouldParseWhitespaceSeparatedUrls() {
+    assertThat(LdapServerSelector.parseUrls(" ldap://one:389  ldaps://two:636 "))
+      .containsExactly("ldap://one:389", "ldaps://two:636");
+  }
+
+  @Test
+  void shouldFailWithoutUrl() {
+    assertThrows(ConfigurationException.class, () -> LdapServerSelector.parseUrls("  "));
+  }
+
+  @Test
+  void shouldKeepConfiguredOrderForUnmeasuredServers() {
+    assertThat(urls(selector.select(config)))
+      .containsExactly("ldap://one:389", "ldap://two:389", "ldap://three:389");
+  }
+
+  @Test
+  void shouldPreferFasterServer() {
+    List<LdapServer> servers = selector.getServers(config);
+    servers.get(0).recordSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+    servers.get(1).recordSuccess(TimeUnit.MILLISECONDS.toNanos(5));
+    servers.get(2).recordSuccess(TimeUnit.MILLISECONDS.toNanos(20));
+
+    assertThat(urls(selector.select(config)))
+      .containsExactly("ldap://two:389", "ldap://three:389", "ldap://one:389");
+  }
+
+  @Test
+  void shouldSkipServerWithOpenCircuitBreaker() {
+    selector.getServers(config).get(0).recordFailure();
+
+    assertThat(urls(selector.select(config)))
+      .containsExactly("ldap://two:389", "ldap://three:389");
+  }
+
+  @Test
+  void shouldReturnServerAfterCoolDown() {
+    selector.getServers(config).get(0).recordFailure();
+    clock.addAndGet(COOL_DOWN);
+
+    assertThat(urls(selector.select(config))).contains("ldap://one:389");
+  }
+
+  @Test
+  void shouldReturnNoServerIfAllCircuitBreakersAreOpen() {
+    selector.getServers(config).forEach(LdapServer::recordFailure);
+
+    assertThat(selector.select(config)).isEmpty();
+  }
+
+  @Test
+  void shouldApplyFailureThresholdOfConfiguration() {
+    config.setCircuitBreakerFailureThreshold(2);
+    LdapServer server = selector.getServers(config).get(0);
+
+    server.recordFailure();
+    assertThat(urls(selector.select(config))).contains("ldap://one:389");
+
+    server.recordFailure();
+    assertThat(urls(selector.select(config))).doesNotContain("ldap://one:389");
+  }
+
+  @Test
+  void shouldPenalizeServerWithFailures() {
+    List<LdapServer> servers = selector.getServers(config);
+    servers.get(0).recordSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+    servers.get(1).recordSuccess(TimeUnit.MILLISECONDS.toNanos(15));
+    servers.get(2).recordSuccess(TimeUnit.MILLISECONDS.toNanos(25));
+    config.setCircuitBreakerFailureThreshold(2);
+    servers.get(0).configure(config);
+    servers.get(0).recordFailure();
+
+    assertThat(urls(selector.select(config)))
+      .containsExactly("ldap://two:389", "ldap://three:389", "ldap://one:389");
+  }
+
+  @Test
+  void shouldSortServerWhichNeverRespondedBehindHealthyServers() {
+    config.setCircuitBreakerFailureThreshold(5);
+    List<LdapServer> servers = selector.getServers(config);
+    servers.get(1).recordSuccess(TimeUnit.MILLISECONDS.toNanos(15));
+    servers.get(2).recordSuccess(TimeUnit.MILLISECONDS.toNanos(25));
+    // the first server has never answered
+    servers.get(0).recordFailure();
+
+    assertThat(urls(selector.select(config)))
+      .containsExactly("ldap://two:389", "ldap://three:389", "ldap://one:389");
+  }
+
+  @Test
+  void shouldDecayFailuresAfterCoolDown() {
+    config.setCircuitBreakerFailureThreshold(5);
+    List<LdapServer> servers = selector.getServers(config);
+    servers.get(0).recordSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+    servers.get(1).recordSuccess(TimeUnit.MILLISECONDS.toNanos(15));
+    servers.get(2).recordSuccess(TimeUnit.MILLISECONDS.toNanos(25));
+    servers.get(0).recordFailure();
+    servers.get(0).recordFailure();
+
+    clock.addAndGet(COOL_DOWN);
+    assertThat(servers.get(0).getFailures()).isOne();
+
+    clock.addAndGet(COOL_DOWN);
+    assertThat(servers.get(0).getFailures()).isZero();
+    assertThat(urls(selector.select(config)))
+      .containsExactly("ldap://one:389", "ldap://two:389", "ldap://three:389");
+  }
+
+  private List<String> urls(List<LdapServer> servers) {
+    return servers.stream().map(LdapServer::getUrl).toList();
+  }
+}
@@ -21,6 +21,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 /**
  * @author Sebastian Sdorra
  */
@@ -59,6 +62,16 @@ public class LdapTestBase {
     return config;
   }
 
+  /**
+   * Returns a store which always returns the given configuration, so that tests can change the configuration after
+   * the store was created.
+   */
+  protected LdapConfigStore createConfigStore(LdapConfig config) {
+    LdapConfigStore store = mock(LdapConfigStore.class);
+    when(store.get()).thenAnswer(invocation -> config);
+    return store;
+  }
+
   protected InetAddress getInetAddress() throws UnknownHostException {
     return InetAddress.getByName(HOST);
   }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LdapUtilTest {
+
+  @Test
+  void shouldReturnValueWithoutSpecialCharactersUnchanged() {
+    String value = "cn=Trillian McMillan,ou=People,dc=hitchhiker,dc=com";
+
+    assertThat(LdapUtil.escapeSearchFilter(value)).isSameAs(value);
+  }
+
+  @Test
+  void shouldEscapeSpecialCharacters() {
+    assertThat(LdapUtil.escapeSearchFilter("a\\b*c(d)e\u0000")).isEqualTo("a\\5cb\\2ac\\28d\\29e\\00");
+  }
+
+  @Test
+  void shouldAppendEscapedValue() {
+    StringBuilder filter = new StringBuilder("(uid=");
+
+    LdapUtil.appendEscapedSearchFilter(filter, "dent*").append(')');
+
+    assertThat(filter).hasToString("(uid=dent\\2a)");
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class RangedAttributeReaderTest {
+
+  private static final String DN = "cn=everyone,ou=Groups,dc=scm-manager,dc=org";
+
+  private final LdapConnection connection = mock(LdapConnection.class);
+  private final List<String> values = new ArrayList<>();
+
+  @Test
+  void shouldReadAttributeWithoutRange() throws NamingException {
+    Attributes attributes = attributes("member", "a", "b");
+
+    RangedAttributeReader.forEachValue(connection, DN, attributes, "member", values::add);
+
+    assertThat(values).containsExactly("a", "b");
+    verifyNoInteractions(connection);
+  }
+
+  @Test
+  void shouldIgnoreMissingAttribute() throws NamingException {
+    RangedAttributeReader.forEachValue(connection, DN, attributes("cn", "everyone"), "member", values::add);
+
+    assertThat(values).isEmpty();
+  }
+
+  @Test
+  void shouldReadAllRanges() throws NamingException {
+    when(connection.search(eq(name(DN)), anyString(), any(SearchControls.class)))
+      .thenReturn(result(attributes("member;range=2-3", "c", "d")))
+      .thenReturn(result(attributes("member;range=4-*", "e")));
+
+    RangedAttributeReader.forEachValue(connection, DN, attributes("member;range=0-1", "a", "b"), "member", values::add);
+
+    assertThat(values).containsExactly("a", "b", "c", "d", "e");
+
+    ArgumentCaptor<SearchControls> controls = ArgumentCaptor.forClass(SearchControls.class);
+    verify(connection, times(2)).search(eq(name(DN)), anyString(), controls.capture());
+    assertThat(controls.getAllValues())
+      .extracting(c -> c.getReturningAttributes()[0])
+      .containsExactly("member;range=2-*", "member;range=4-*");
+  }
+
+  @Test
+  void shouldReturnPendingRangeWithoutReadingIt() throws NamingException {
+    when(connection.search(eq(name(DN)), anyString(), any(SearchControls.class)))
+      .thenReturn(result(attributes("member;range=2-*", "c")));
+
+    RangedAttributeReader.PendingRange pending = RangedAttributeReader.forEachValueOfFirstRange(DN, attributes("member;range=0-1", "a", "b"), "member", values::add);
+
+    assertThat(values).containsExactly("a", "b");
+    verifyNoInteractions(connection);
+
+    pending.read(connection);
+
+    assertThat(values).containsExactly("a", "b", "c");
+  }
+
+  @Test
+  void shouldNotReturnPendingRangeForLastRange() throws NamingException {
+    assertThat(RangedAttributeReader.forEachValueOfFirstRange(DN, attributes("member;range=0-*", "a"), "member", values::add)).isNull();
+    assertThat(RangedAttributeReader.forEachValueOfFirstRange(DN, attributes("member", "a"), "member", values::add)).isNull();
+
+    assertThat(values).containsExactly("a", "a");
+  }
+
+  @Test
+  void shouldReadRangesOfEntryWithSlashInDn() throws NamingException {
+    String dn = "cn=Ships/Boats,ou=Groups,dc=scm-manager,dc=org";
+    when(connection.search(eq(name(dn)), anyString(), any(SearchControls.class)))
+      .thenReturn(result(attributes("member;range=2-*", "c")));
+
+    RangedAttributeReader.forEachValue(connection, dn, attributes("member;range=0-1", "a", "b"), "member", values::add);
+
+    assertThat(values).containsExactly("a", "b", "c");
+  }
+
+  @Test
+  void shouldFindRangeIgnoringCase() throws NamingException {
+    Attributes attributes = attributes("Member;Range=0-*", "a");
+
+    assertThat(RangedAttributeReader.find(attributes, "member")).isNotNull();
+  }
+
+  @Test
+  void shouldStopIfServerReturnsSameRangeAgain() throws NamingException {
+    when(connection.search(eq(name(DN)), anyString(), any(SearchControls.class)))
+      .thenReturn(result(attributes("member;range=0-1", "a", "b")));
+
+    RangedAttributeReader.forEachValue(connection, DN, attributes("member;range=0-1", "a", "b"), "member", values::add);
+
+    assertThat(values).containsExactly("a", "b");
+  }
+
+  @Test
+  void shouldParseNextRangeStart() {
+    assertThat(RangedAttributeReader.nextRangeStart("member;range=0-1499")).isEqualTo(1500);
+    assertThat(RangedAttributeReader.nextRangeStart("member;range=1500-*")).isEqualTo(-1);
+    assertThat(RangedAttributeReader.nextRangeStart("member")).isEqualTo(-1);
+    assertThat(RangedAttributeReader.nextRangeStart("member;range=invalid")).isEqualTo(-1);
+  }
+
+  private LdapName name(String dn) throws InvalidNameException {
+    return new LdapName(dn);
+  }
+
+  private Attributes attributes(String id, String... values) {
+    BasicAttribute attribute = new BasicAttribute(id);
+    for (String value : values) {
+      attribute.add(value);
+    }
+    Attributes attributes = new BasicAttributes(true);
+    attributes.put(attribute);
+    return attributes;
+  }
+
+  private AutoCloseableNamingEnumeration<SearchResult> result(Attributes attributes) {
+    SearchResult searchResult = new SearchResult(DN, null, attributes);
+    return new AutoCloseableNamingEnumeration<>(new IteratorEnumeration<>(singletonList(searchResult).iterator()));
+  }
+
+  private static class IteratorEnumeration<T> implements NamingEnumeration<T> {
+
+    private final Iterator<T> iterator;
+
+    private IteratorEnumeration(Iterator<T> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public T next() {
+      return iterator.next();
+    }
+
+    @Override
+    public boolean hasMore() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public void close() {
+      // nothing to close
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return hasMore();
+    }
+
+    @Override
+    public T nextElement() {
+      return next();
+    }
+  }
+}
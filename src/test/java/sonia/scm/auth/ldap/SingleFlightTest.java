@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.auth.ldap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@Timeout(10)
+class SingleFlightTest {
+
+  private static final int CALLERS = 50;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+  private final AtomicInteger executions = new AtomicInteger();
+
+  @AfterEach
+  void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void shouldShareRunningOperation() throws Exception {
+    SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    CountDownLatch release = new CountDownLatch(1);
+
+    List<Future<String>> results = startCallers(singleFlight, "trillian", () -> {
+      await(release);
+      return "groups of trillian";
+    });
+    waitForRunningOperation(singleFlight);
+    // give the other callers time to join the running operation
+    TimeUnit.MILLISECONDS.sleep(100);
+    release.countDown();
+
+    for (Future<String> result : results) {
+      assertThat(result.get()).isEqualTo("groups of trillian");
+    }
+    assertThat(executions).hasValueLessThan(CALLERS);
+    assertThat(singleFlight.getRunningCount()).isZero();
+  }
+
+  @Test
+  void shouldShareFailureOfRunningOperation() throws Exception {
+    SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    CountDownLatch release = new CountDownLatch(1);
+
+    List<Future<String>> results = startCallers(singleFlight, "trillian", () -> {
+      await(release);
+      throw new UserSearchFailedException("search failed", null);
+    });
+    waitForRunningOperation(singleFlight);
+    release.countDown();
+
+    for (Future<String> result : results) {
+      ExecutionException exception = assertThrows(ExecutionException.class, result::get);
+      assertThat(exception.getCause()).isInstanceOf(UserSearchFailedException.class);
+    }
+    assertThat(singleFlight.getRunningCount()).isZero();
+  }
+
+  @Test
+  void shouldExecuteOperationAgainAfterFailure() {
+    SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+    assertThrows(UserSearchFailedException.class, () -> singleFlight.execute("trillian", () -> {
+      throw new UserSearchFailedException("search failed", null);
+    }));
+
+    assertThat(singleFlight.execute("trillian", () -> "groups of trillian")).isEqualTo("groups of trillian");
+  }
+
+  @Test
+  void shouldNotShareOperationsOfDifferentKeys() throws Exception {
+    SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> trillian = executor.submit(() -> singleFlight.execute("trillian", () -> {
+      await(release);
+      return "trillian";
+    }));
+    waitForRunningOperation(singleFlight);
+
+    assertThat(singleFlight.execute("zaphod", () -> "zaphod")).isEqualTo("zaphod");
+    release.countDown();
+    assertThat(trillian.get()).isEqualTo("trillian");
+  }
+
+  @Test
+  void shouldExecuteOperationItselfAfterTimeout() throws Exception {
+    SingleFlight<String, String> singleFlight = new SingleFlight<>(10);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> hanging = executor.submit(() -> singleFlight.execute("trillian", () -> {
+      await(release);
+      return "late";
+    }));
+    waitForRunningOperation(singleFlight);
+
+    assertThat(singleFlight.execute("trillian", () -> "own")).isEqualTo("own");
+    release.countDown();
+    assertThat(hanging.get()).isEqualTo("late");
+  }
+
+  private List<Future<String>> startCallers(SingleFlight<String, String> singleFlight, String key, Supplier<String> operation) {
+    List<Future<String>> results = new ArrayList<>();
+    for (int i = 0; i < CALLERS; i++) {
+      results.add(executor.submit(() -> singleFlight.execute(key, () -> {
+        executions.incrementAndGet();
+        return operation.get();
+      })));
+    }
+    return results;
+  }
+
+  private void waitForRunningOperation(SingleFlight<?, ?> singleFlight) throws InterruptedException {
+    while (singleFlight.getRunningCount() == 0) {
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+  }
+
+  private void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    }
+  }
+}